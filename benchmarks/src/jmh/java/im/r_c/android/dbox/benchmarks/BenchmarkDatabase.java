@@ -0,0 +1,93 @@
+package im.r_c.android.dbox.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import im.r_c.android.dbox.DBox;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+
+/**
+ * Opens a fresh database file for a benchmark and fills it with test data.
+ */
+class BenchmarkDatabase {
+    private final File mFile;
+    private final Connection mConnection;
+
+    private BenchmarkDatabase(File file, Connection connection) {
+        mFile = file;
+        mConnection = connection;
+    }
+
+    /**
+     * Create an empty database in a temporary file and initialize DBox on it.
+     */
+    static BenchmarkDatabase open() throws IOException, SQLException {
+        File file = File.createTempFile("dbox-benchmark", ".db");
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        try {
+            // Measure DBox itself rather than fsync of the disk
+            statement.execute("PRAGMA synchronous = OFF;");
+            statement.execute("PRAGMA journal_mode = MEMORY;");
+        } finally {
+            statement.close();
+        }
+        DBox.init(connection);
+        return new BenchmarkDatabase(file, connection);
+    }
+
+    void close() throws SQLException {
+        mConnection.close();
+        if (!mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+
+    static List<Course> saveCourses(int count) {
+        DBox<Course> box = DBox.of(Course.class);
+        List<Course> courses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Course course = new Course("C" + i, "Course " + i);
+            if (!box.save(course)) {
+                throw new IllegalStateException("Failed to save course " + i);
+            }
+            courses.add(course);
+        }
+        return courses;
+    }
+
+    /**
+     * Save students, each with {@code fanOut} courses, one favorite course and a class.
+     */
+    static void saveStudents(int count, int fanOut, List<Course> courses) {
+        DBox<Clazz> clazzBox = DBox.of(Clazz.class);
+        Clazz[] clazzes = new Clazz[10];
+        for (int i = 0; i < clazzes.length; i++) {
+            clazzes[i] = new Clazz("Class " + i);
+            clazzBox.save(clazzes[i]);
+        }
+
+        DBox<Student> box = DBox.of(Student.class);
+        for (int i = 0; i < count; i++) {
+            Student student = new Student("Student " + i);
+            for (int j = 0; j < fanOut; j++) {
+                student.addCourse(courses.get((i + j) % courses.size()));
+            }
+            student.setFavoriteCourses(new Course[]{courses.get(i % courses.size())});
+            student.setClazz(clazzes[i % clazzes.length]);
+            if (!box.save(student)) {
+                throw new IllegalStateException("Failed to save student " + i);
+            }
+        }
+    }
+}
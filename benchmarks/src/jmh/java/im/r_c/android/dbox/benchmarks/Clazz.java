@@ -0,0 +1,23 @@
+package im.r_c.android.dbox.benchmarks;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+@Table
+class Clazz {
+    private long id;
+
+    @Column(notNull = true)
+    private String name;
+
+    Clazz() {
+    }
+
+    Clazz(String name) {
+        this.name = name;
+    }
+}
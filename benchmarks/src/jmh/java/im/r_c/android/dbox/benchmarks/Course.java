@@ -0,0 +1,39 @@
+package im.r_c.android.dbox.benchmarks;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+@Table
+class Course {
+    private long id;
+
+    @Column(notNull = true, unique = true)
+    private String code;
+
+    @Column(notNull = true)
+    private String name;
+
+    Course() {
+    }
+
+    Course(String code, String name) {
+        this.code = code;
+        this.name = name;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,52 @@
+package im.r_c.android.dbox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.dbox.DBox;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+
+/**
+ * Latency of {@code findAll().results().all()} on objects without relations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FindAllBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int rowCount;
+
+    private BenchmarkDatabase mDatabase;
+    private DBox<Course> mBox;
+
+    @Setup
+    public void setUp() throws Exception {
+        mDatabase = BenchmarkDatabase.open();
+        BenchmarkDatabase.saveCourses(rowCount);
+        mBox = DBox.of(Course.class);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    @Benchmark
+    public List<Course> findAll() {
+        return mBox.findAll().results().all();
+    }
+}
@@ -0,0 +1,56 @@
+package im.r_c.android.dbox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.dbox.DBox;
+import im.r_c.android.dbox.DBoxResults;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+
+/**
+ * Latency of {@link DBoxResults#getOne(int)} on open results,
+ * depending on how deep the object is in the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GetOneBenchmark {
+    private static final int ROW_COUNT = 10000;
+
+    @Param({"0", "1000", "9999"})
+    public int index;
+
+    private BenchmarkDatabase mDatabase;
+    private DBoxResults<Course> mResults;
+
+    @Setup
+    public void setUp() throws Exception {
+        mDatabase = BenchmarkDatabase.open();
+        BenchmarkDatabase.saveCourses(ROW_COUNT);
+        mResults = DBox.of(Course.class).findAll().results();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mResults.close();
+        mDatabase.close();
+    }
+
+    @Benchmark
+    public Course getOne() {
+        return mResults.getOne(index);
+    }
+}
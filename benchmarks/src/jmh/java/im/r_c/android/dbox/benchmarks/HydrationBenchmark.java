@@ -0,0 +1,82 @@
+package im.r_c.android.dbox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.dbox.DBox;
+import im.r_c.android.dbox.DBoxResults;
+
+/**
+ * DBox
+ * Created by richard on 8/1/16.
+ */
+
+/**
+ * Cost of turning rows that have already been fetched into objects, per object.
+ * <p>
+ * The results are kept open and read again by every invocation,
+ * so "gc.alloc.rate.norm" of the gc profiler is the bytes allocated
+ * to hydrate one object, without running the query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(HydrationBenchmark.OBJECT_COUNT)
+public class HydrationBenchmark {
+    static final int OBJECT_COUNT = 1000;
+
+    private BenchmarkDatabase mDatabase;
+    private DBoxResults<Course> mCourses;
+    private DBoxResults<Student> mStudents;
+
+    @Setup
+    public void setUp() throws Exception {
+        mDatabase = BenchmarkDatabase.open();
+        BenchmarkDatabase.saveStudents(OBJECT_COUNT, 1, BenchmarkDatabase.saveCourses(OBJECT_COUNT));
+    }
+
+    @Setup(Level.Iteration)
+    public void openResults() {
+        mCourses = DBox.of(Course.class).findAll().results();
+        mStudents = DBox.of(Student.class).findAll().results();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeResults() {
+        mCourses.close();
+        mStudents.close();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    /**
+     * Objects without relations.
+     */
+    @Benchmark
+    public List<Course> courses() {
+        return mCourses.getAll();
+    }
+
+    /**
+     * Objects with a course list, a favorite course array and a class,
+     * each of which is loaded by a nested query.
+     */
+    @Benchmark
+    public List<Student> students() {
+        return mStudents.getAll();
+    }
+}
@@ -0,0 +1,66 @@
+package im.r_c.android.dbox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.dbox.DBox;
+import im.r_c.android.dbox.DBoxCounts;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+
+/**
+ * Cost of loading 1000 students as the number of courses per student grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RelationBenchmark {
+    private static final int STUDENT_COUNT = 1000;
+
+    @Param({"1", "4", "16"})
+    public int fanOut;
+
+    private BenchmarkDatabase mDatabase;
+    private DBox<Student> mBox;
+
+    @Setup
+    public void setUp() throws Exception {
+        mDatabase = BenchmarkDatabase.open();
+        BenchmarkDatabase.saveStudents(STUDENT_COUNT, fanOut, BenchmarkDatabase.saveCourses(64));
+        mBox = DBox.of(Student.class);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    /**
+     * Load students with all their courses, favorite courses and classes.
+     */
+    @Benchmark
+    public List<Student> findAll() {
+        return mBox.findAll().results().all();
+    }
+
+    /**
+     * Count courses of every student without loading them.
+     */
+    @Benchmark
+    public DBoxCounts countRelated() {
+        return mBox.findAll().countRelated("courseList");
+    }
+}
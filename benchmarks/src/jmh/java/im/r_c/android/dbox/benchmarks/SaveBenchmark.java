@@ -0,0 +1,87 @@
+package im.r_c.android.dbox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.dbox.DBox;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+
+/**
+ * Throughput of {@link DBox#save(Object)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SaveBenchmark {
+    private BenchmarkDatabase mDatabase;
+    private DBox<Course> mCourseBox;
+    private DBox<Student> mStudentBox;
+    private List<Course> mCourses;
+    private Course mCourse;
+    private long mCount;
+
+    @Setup
+    public void setUp() throws Exception {
+        mDatabase = BenchmarkDatabase.open();
+        mCourses = BenchmarkDatabase.saveCourses(16);
+        mCourseBox = DBox.of(Course.class);
+        mStudentBox = DBox.of(Student.class);
+        mCourse = mCourses.get(0);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    /**
+     * Insert a new object without relations.
+     */
+    @Benchmark
+    public boolean insert() {
+        return mCourseBox.save(new Course("N" + mCount++, "New course"));
+    }
+
+    /**
+     * Update a column of an existing object.
+     */
+    @Benchmark
+    public boolean update() {
+        mCourse.setName("Course " + mCount++);
+        return mCourseBox.save(mCourse);
+    }
+
+    /**
+     * Save an existing object that has not changed.
+     */
+    @Benchmark
+    public boolean saveUnchanged() {
+        return mCourseBox.save(mCourse);
+    }
+
+    /**
+     * Insert a new object with 4 courses, 1 favorite course and a class.
+     */
+    @Benchmark
+    public boolean insertWithRelations() {
+        Student student = new Student("Student " + mCount++);
+        for (int i = 0; i < 4; i++) {
+            student.addCourse(mCourses.get(i));
+        }
+        student.setFavoriteCourses(new Course[]{mCourses.get(4)});
+        return mStudentBox.save(student);
+    }
+}
@@ -0,0 +1,54 @@
+package im.r_c.android.dbox.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.ObjectColumn;
+import im.r_c.android.dbox.annotation.Table;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+@Table
+class Student {
+    private long id;
+
+    @Column(notNull = true)
+    private String name;
+
+    @ObjectColumn(Course.class)
+    private List<Course> courseList;
+
+    @ObjectColumn(Course.class)
+    private Course[] favoriteCourses;
+
+    @ObjectColumn(Clazz.class)
+    private Clazz clazz;
+
+    Student() {
+        courseList = new ArrayList<>();
+    }
+
+    Student(String name) {
+        this();
+        this.name = name;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    void addCourse(Course course) {
+        courseList.add(course);
+    }
+
+    void setFavoriteCourses(Course[] favoriteCourses) {
+        this.favoriteCourses = favoriteCourses;
+    }
+
+    void setClazz(Clazz clazz) {
+        this.clazz = clazz;
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package im.r_c.android.dbox;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+
+/**
+ * DBox
+ * Created by richard on 7/30/16.
+ */
+
+/**
+ * Storage on an Android {@link SQLiteDatabase}, opened on first use.
+ */
+class AndroidStorage implements Storage {
+    private final WeakReference<Context> mContextRef;
+    private final String mDatabaseName;
+    private SQLiteDatabase mDb;
+
+    AndroidStorage(Context context, String databaseName) {
+        mContextRef = new WeakReference<>(context);
+        mDatabaseName = databaseName;
+    }
+
+    /**
+     * See {@link DBox#copyDatabaseFromAsset(Context, String, String)}.
+     */
+    static boolean copyFromAsset(Context context, String assetPath, String databaseName) {
+        File dbFile = context.getDatabasePath(databaseName);
+        if (dbFile.exists()) {
+            return true;
+        }
+
+        // Copy to a temporary file first, so that a failed copy never leaves a broken database
+        File dir = dbFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            return false;
+        }
+        File tmpFile = new File(dir, databaseName + ".tmp");
+        boolean ok = false;
+        try {
+            FileChannel out = new FileOutputStream(tmpFile).getChannel();
+            try {
+                AssetFileDescriptor afd = null;
+                try {
+                    afd = context.getAssets().openFd(assetPath);
+                } catch (FileNotFoundException e) {
+                    // The asset is compressed
+                }
+
+                if (afd != null) {
+                    // The asset is a region of the APK file
+                    FileChannel in = afd.createInputStream().getChannel();
+                    try {
+                        long position = afd.getStartOffset();
+                        long end = position + afd.getLength();
+                        while (position < end) {
+                            position += in.transferTo(position, end - position, out);
+                        }
+                    } finally {
+                        in.close();
+                        afd.close();
+                    }
+                } else {
+                    ReadableByteChannel in = Channels.newChannel(context.getAssets().open(assetPath));
+                    try {
+                        long position = 0;
+                        long count;
+                        while ((count = out.transferFrom(in, position, 1 << 20)) > 0) {
+                            position += count;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                out.force(false);
+            } finally {
+                out.close();
+            }
+            ok = tmpFile.renameTo(dbFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (!ok) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+        }
+        return ok;
+    }
+
+    private synchronized SQLiteDatabase db() {
+        if (mDb == null) {
+            Context context = mContextRef.get();
+            if (context == null) {
+                throw new IllegalStateException("Did you forget to call DBox.init() before using it?");
+            }
+            mDb = new DatabaseHelper(context, mDatabaseName, null, 1).getWritableDatabase();
+        }
+        return mDb;
+    }
+
+    @Override
+    public void execSQL(String sql) {
+        db().execSQL(sql);
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] args) {
+        db().execSQL(sql, args);
+    }
+
+    @Override
+    public RowCursor rawQuery(String sql, Object[] args) {
+        String[] stringArgs = toStringArgs(args);
+        if (args == null || stringArgs != null) {
+            return new AndroidCursor(db().rawQuery(sql, stringArgs));
+        }
+        // rawQuery() only binds strings, so bind the values to the query before the cursor is made
+        return new AndroidCursor(db().rawQueryWithFactory(new TypedArgsCursorFactory(args), sql, null, null));
+    }
+
+    @Override
+    public Statement compileStatement(String sql) {
+        return new AndroidStatement(db().compileStatement(sql));
+    }
+
+    @Override
+    public long insert(String table, RowValues values) {
+        return db().insert(table, null, toContentValues(values));
+    }
+
+    @Override
+    public int update(String table, RowValues values, String whereClause, Object[] whereArgs) {
+        String[] stringArgs = toStringArgs(whereArgs);
+        if (whereArgs == null || stringArgs != null) {
+            return db().update(table, toContentValues(values), whereClause, stringArgs);
+        }
+        return DBUtils.update(this, table, values, whereClause, whereArgs);
+    }
+
+    @Override
+    public int delete(String table, String whereClause, Object[] whereArgs) {
+        String[] stringArgs = toStringArgs(whereArgs);
+        if (whereArgs == null || stringArgs != null) {
+            return db().delete(table, whereClause, stringArgs);
+        }
+        return DBUtils.delete(this, table, whereClause, whereArgs);
+    }
+
+    @Override
+    public boolean enableWriteAheadLogging() {
+        return db().enableWriteAheadLogging();
+    }
+
+    @Override
+    public void beginTransaction() {
+        db().beginTransaction();
+    }
+
+    @Override
+    public void beginReadTransaction() {
+        // IMMEDIATE rather than EXCLUSIVE, there's no deferred one in the API
+        db().beginTransactionNonExclusive();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        db().setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction() {
+        db().endTransaction();
+    }
+
+    /**
+     * @return the arguments as strings if all of them are strings, otherwise null
+     */
+    private static String[] toStringArgs(Object[] args) {
+        if (args == null) {
+            return null;
+        }
+        String[] strings = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (!(args[i] instanceof String)) {
+                return null;
+            }
+            strings[i] = (String) args[i];
+        }
+        return strings;
+    }
+
+    private static ContentValues toContentValues(RowValues values) {
+        ContentValues contentValues = new ContentValues(values.size());
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            String column = entry.getKey();
+            Object value = entry.getValue();
+            if (value == null) {
+                contentValues.putNull(column);
+            } else if (value instanceof byte[]) {
+                contentValues.put(column, (byte[]) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                contentValues.put(column, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                contentValues.put(column, ((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                contentValues.put(column, (Boolean) value ? 1 : 0);
+            } else {
+                contentValues.put(column, value.toString());
+            }
+        }
+        return contentValues;
+    }
+
+    private static class AndroidCursor implements RowCursor {
+        private final Cursor mCursor;
+
+        AndroidCursor(Cursor cursor) {
+            mCursor = cursor;
+        }
+
+        @Override
+        public int getCount() {
+            return mCursor.getCount();
+        }
+
+        @Override
+        public int getPosition() {
+            return mCursor.getPosition();
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            return mCursor.moveToPosition(position);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return mCursor.moveToFirst();
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return mCursor.moveToLast();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return mCursor.moveToNext();
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return mCursor.moveToPrevious();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mCursor.getColumnCount();
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            return mCursor.getColumnIndex(columnName);
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            return mCursor.getColumnIndexOrThrow(columnName);
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            return mCursor.getType(columnIndex);
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            return mCursor.isNull(columnIndex);
+        }
+
+        @Override
+        public short getShort(int columnIndex) {
+            return mCursor.getShort(columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return mCursor.getInt(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return mCursor.getLong(columnIndex);
+        }
+
+        @Override
+        public float getFloat(int columnIndex) {
+            return mCursor.getFloat(columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            return mCursor.getDouble(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            return mCursor.getString(columnIndex);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            return mCursor.getBlob(columnIndex);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mCursor.isClosed();
+        }
+
+        @Override
+        public void close() {
+            mCursor.close();
+        }
+    }
+
+    /**
+     * Binds values of any type to a query, like {@link DBUtils#bindArgs(Statement, Object[])}.
+     */
+    private static class TypedArgsCursorFactory implements SQLiteDatabase.CursorFactory {
+        private final Object[] mArgs;
+
+        TypedArgsCursorFactory(Object[] args) {
+            mArgs = args;
+        }
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+            for (int i = 0; i < mArgs.length; i++) {
+                Object arg = mArgs[i];
+                if (arg == null) {
+                    query.bindNull(i + 1);
+                } else if (arg instanceof byte[]) {
+                    query.bindBlob(i + 1, (byte[]) arg);
+                } else if (arg instanceof Double || arg instanceof Float) {
+                    query.bindDouble(i + 1, ((Number) arg).doubleValue());
+                } else if (arg instanceof Number) {
+                    query.bindLong(i + 1, ((Number) arg).longValue());
+                } else if (arg instanceof Boolean) {
+                    query.bindLong(i + 1, (Boolean) arg ? 1 : 0);
+                } else {
+                    query.bindString(i + 1, arg.toString());
+                }
+            }
+            return new SQLiteCursor(masterQuery, editTable, query);
+        }
+    }
+
+    private static class AndroidStatement implements Statement {
+        private final SQLiteStatement mStatement;
+
+        AndroidStatement(SQLiteStatement statement) {
+            mStatement = statement;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            mStatement.bindNull(index);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            mStatement.bindLong(index, value);
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            mStatement.bindDouble(index, value);
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            mStatement.bindString(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            mStatement.bindBlob(index, value);
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            try {
+                return mStatement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public String simpleQueryForString() {
+            try {
+                return mStatement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public long executeInsert() {
+            return mStatement.executeInsert();
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            return mStatement.executeUpdateDelete();
+        }
+
+        @Override
+        public void close() {
+            mStatement.close();
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
+            super(context, name, factory, version);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * DBox
+ * Created by richard on 7/28/16.
+ */
+
+/**
+ * Encodes primitive arrays and string lists into compact BLOBs, and decodes them back.
+ * <p>
+ * Every BLOB starts with the element count as a varint, followed by:
+ * <ul>
+ * <li>int[], long[]: zigzag varints, so small (including negative) numbers take 1 or 2 bytes</li>
+ * <li>float[], double[]: raw IEEE 754 bits, little-endian</li>
+ * <li>List&lt;String&gt;: for each element, a varint of (UTF-8 length + 1), 0 for null, followed by the UTF-8 bytes</li>
+ * </ul>
+ * Elements are read and written directly from and to the primitive arrays, without boxing.
+ */
+class BlobCodec {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mBuffer;
+    private int mPosition;
+
+    private BlobCodec(byte[] buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Encode a field value of a specific column type.
+     *
+     * @param type  column type, see {@link ColumnInfo}
+     * @param value int[], long[], float[], double[] or List of String
+     * @return encoded BLOB, or null if the value is null
+     */
+    static byte[] encode(int type, Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        BlobCodec codec;
+        switch (type) {
+            case ColumnInfo.TYPE_INT_ARRAY: {
+                int[] arr = (int[]) value;
+                codec = new BlobCodec(new byte[5 + arr.length * 5]);
+                codec.writeVarint(arr.length);
+                for (int v : arr) {
+                    codec.writeVarint(((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL);
+                }
+                break;
+            }
+            case ColumnInfo.TYPE_LONG_ARRAY: {
+                long[] arr = (long[]) value;
+                codec = new BlobCodec(new byte[5 + arr.length * 10]);
+                codec.writeVarint(arr.length);
+                for (long v : arr) {
+                    codec.writeVarint((v << 1) ^ (v >> 63));
+                }
+                break;
+            }
+            case ColumnInfo.TYPE_FLOAT_ARRAY: {
+                float[] arr = (float[]) value;
+                codec = new BlobCodec(new byte[5 + arr.length * 4]);
+                codec.writeVarint(arr.length);
+                for (float v : arr) {
+                    codec.writeFixed(Float.floatToIntBits(v), 4);
+                }
+                break;
+            }
+            case ColumnInfo.TYPE_DOUBLE_ARRAY: {
+                double[] arr = (double[]) value;
+                codec = new BlobCodec(new byte[5 + arr.length * 8]);
+                codec.writeVarint(arr.length);
+                for (double v : arr) {
+                    codec.writeFixed(Double.doubleToLongBits(v), 8);
+                }
+                break;
+            }
+            case ColumnInfo.TYPE_STRING_LIST: {
+                List<?> list = (List<?>) value;
+                byte[][] strings = new byte[list.size()][];
+                int size = 5;
+                for (int i = 0; i < strings.length; i++) {
+                    String s = (String) list.get(i);
+                    if (s != null) {
+                        strings[i] = s.getBytes(UTF_8);
+                        size += strings[i].length;
+                    }
+                    size += 5;
+                }
+                codec = new BlobCodec(new byte[size]);
+                codec.writeVarint(strings.length);
+                for (byte[] bytes : strings) {
+                    if (bytes == null) {
+                        codec.writeVarint(0);
+                    } else {
+                        codec.writeVarint(bytes.length + 1);
+                        System.arraycopy(bytes, 0, codec.mBuffer, codec.mPosition, bytes.length);
+                        codec.mPosition += bytes.length;
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Column type " + type + " can't be encoded.");
+        }
+        return Arrays.copyOf(codec.mBuffer, codec.mPosition);
+    }
+
+    /**
+     * Decode a BLOB into a field value of a specific column type.
+     *
+     * @param type column type, see {@link ColumnInfo}
+     * @param blob encoded BLOB
+     * @return decoded value, or null if the BLOB is null
+     */
+    static Object decode(int type, byte[] blob) {
+        if (blob == null) {
+            return null;
+        }
+
+        BlobCodec codec = new BlobCodec(blob);
+        int count = (int) codec.readVarint();
+        switch (type) {
+            case ColumnInfo.TYPE_INT_ARRAY: {
+                int[] arr = new int[count];
+                for (int i = 0; i < count; i++) {
+                    int v = (int) codec.readVarint();
+                    arr[i] = (v >>> 1) ^ -(v & 1);
+                }
+                return arr;
+            }
+            case ColumnInfo.TYPE_LONG_ARRAY: {
+                long[] arr = new long[count];
+                for (int i = 0; i < count; i++) {
+                    long v = codec.readVarint();
+                    arr[i] = (v >>> 1) ^ -(v & 1);
+                }
+                return arr;
+            }
+            case ColumnInfo.TYPE_FLOAT_ARRAY: {
+                float[] arr = new float[count];
+                for (int i = 0; i < count; i++) {
+                    arr[i] = Float.intBitsToFloat((int) codec.readFixed(4));
+                }
+                return arr;
+            }
+            case ColumnInfo.TYPE_DOUBLE_ARRAY: {
+                double[] arr = new double[count];
+                for (int i = 0; i < count; i++) {
+                    arr[i] = Double.longBitsToDouble(codec.readFixed(8));
+                }
+                return arr;
+            }
+            case ColumnInfo.TYPE_STRING_LIST: {
+                List<String> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int length = (int) codec.readVarint() - 1;
+                    if (length < 0) {
+                        list.add(null);
+                    } else {
+                        list.add(new String(blob, codec.mPosition, length, UTF_8));
+                        codec.mPosition += length;
+                    }
+                }
+                return list;
+            }
+            default:
+                throw new IllegalArgumentException("Column type " + type + " can't be decoded.");
+        }
+    }
+
+    private void writeVarint(long v) {
+        while ((v & ~0x7FL) != 0) {
+            mBuffer[mPosition++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        mBuffer[mPosition++] = (byte) v;
+    }
+
+    private long readVarint() {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = mBuffer[mPosition++];
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+
+    private void writeFixed(long v, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            mBuffer[mPosition++] = (byte) (v >>> (i * 8));
+        }
+    }
+
+    private long readFixed(int bytes) {
+        long v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v |= (long) (mBuffer[mPosition++] & 0xFF) << (i * 8);
+        }
+        return v;
+    }
+}
@@ -16,8 +16,9 @@
 
 package im.r_c.android.dbox;
 
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * DBox
@@ -25,18 +26,228 @@ import android.database.sqlite.SQLiteDatabase;
  */
 
 class DBUtils {
-    static boolean isTableExists(SQLiteDatabase db, String tableName) {
-        Cursor c = null;
-        boolean exists = false;
+    /**
+     * Version numbers of the SQLite library, cached until DBox is initialized again.
+     */
+    private static volatile int[] sVersion;
+
+    /**
+     * Check if a table exists in the main database or any attached one.
+     */
+    static boolean isTableExists(Storage db, String tableName) {
+        return getTableColumns(db, tableName) != null;
+    }
+
+    /**
+     * Get columns of a table in the main database or any attached one,
+     * in the same way as unqualified table names are resolved.
+     *
+     * @return Key: column name, Value: declared type, or null if the table doesn't exist
+     */
+    static Map<String, String> getTableColumns(Storage db, String tableName) {
+        RowCursor c = db.rawQuery("PRAGMA table_info('" + tableName + "');", null);
+        try {
+            if (c.getCount() == 0) {
+                return null;
+            }
+            int nameIdx = c.getColumnIndexOrThrow("name");
+            int typeIdx = c.getColumnIndexOrThrow("type");
+            Map<String, String> columns = new LinkedHashMap<>();
+            while (c.moveToNext()) {
+                columns.put(c.getString(nameIdx), c.getString(typeIdx));
+            }
+            return columns;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Get the type affinity of a declared column type,
+     * by the rules in "Datatypes In SQLite" section 3.1.
+     *
+     * @return "INTEGER", "TEXT", "BLOB", "REAL" or "NUMERIC"
+     */
+    static String getAffinity(String type) {
+        type = type == null ? "" : type.toUpperCase(Locale.US);
+        if (type.contains("INT")) {
+            return "INTEGER";
+        } else if (type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT")) {
+            return "TEXT";
+        } else if (type.contains("BLOB") || type.isEmpty()) {
+            return "BLOB";
+        } else if (type.contains("REAL") || type.contains("FLOA") || type.contains("DOUB")) {
+            return "REAL";
+        }
+        return "NUMERIC";
+    }
+
+    /**
+     * Forget what is known about the database, when DBox is initialized on another one.
+     */
+    static void reset() {
+        sVersion = null;
+    }
+
+    /**
+     * Check if the SQLite library is of a version or above.
+     *
+     * @param version major, minor and patch version numbers, missing ones are 0
+     */
+    static boolean isVersionAtLeast(Storage db, int... version) {
+        int[] current = sVersion;
+        if (current == null) {
+            String[] parts = stringForQuery(db, "SELECT sqlite_version();").split("\\.");
+            current = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                current[i] = Integer.parseInt(parts[i]);
+            }
+            sVersion = current;
+        }
+        for (int i = 0; i < version.length; i++) {
+            int n = i < current.length ? current[i] : 0;
+            if (n != version[i]) {
+                return n > version[i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if "INSERT ... ON CONFLICT DO UPDATE" is supported,
+     * which requires SQLite 3.24.0 or above.
+     */
+    static boolean isUpsertSupported(Storage db) {
+        return isVersionAtLeast(db, 3, 24);
+    }
+
+    /**
+     * Check if "file:" URI filenames can be used, which requires SQLite 3.7.7 or above.
+     * <p>
+     * They must also be enabled, which can only be found out by using one,
+     * see {@link #getDatabaseFile(Storage, String)}.
+     */
+    static boolean isUriFilenameSupported(Storage db) {
+        return isVersionAtLeast(db, 3, 7, 7);
+    }
+
+    /**
+     * Get the file of the main database or an attached one.
+     *
+     * @param schemaName name of the database, e.g. "main"
+     * @return path of the file, or null if there's no such database
+     */
+    static String getDatabaseFile(Storage db, String schemaName) {
+        RowCursor c = db.rawQuery("PRAGMA database_list;", null);
         try {
-            c = db.query(tableName, null, null, null, null, null, null);
-            exists = true;
-        } catch (Exception ignored) {
+            int nameIdx = c.getColumnIndexOrThrow("name");
+            int fileIdx = c.getColumnIndexOrThrow("file");
+            while (c.moveToNext()) {
+                if (schemaName.equals(c.getString(nameIdx))) {
+                    return c.getString(fileIdx);
+                }
+            }
+            return null;
         } finally {
-            if (c != null && c.isClosed()) {
-                c.close();
+            c.close();
+        }
+    }
+
+    /**
+     * Run a query that returns a single long value.
+     *
+     * @return the value, or 0 if no rows returned
+     */
+    static long longForQuery(Storage db, String sql, Object... args) {
+        Storage.Statement statement = db.compileStatement(sql);
+        try {
+            bindArgs(statement, args);
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Run an UPDATE or DELETE statement.
+     *
+     * @return count of changed rows
+     */
+    static int executeUpdateDelete(Storage db, String sql, Object... args) {
+        Storage.Statement statement = db.compileStatement(sql);
+        try {
+            bindArgs(statement, args);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Update rows of a table, binding the values and arguments by their types.
+     *
+     * @return number of rows affected
+     */
+    static int update(Storage db, String table, RowValues values, String whereClause, Object[] whereArgs) {
+        StringBuilder sqlBuilder = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        int argCount = values.size() + (whereArgs == null ? 0 : whereArgs.length);
+        Object[] args = new Object[argCount];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            sqlBuilder.append(i == 0 ? "" : ", ").append(entry.getKey()).append(" = ?");
+            args[i++] = entry.getValue();
+        }
+        if (whereArgs != null) {
+            System.arraycopy(whereArgs, 0, args, i, whereArgs.length);
+        }
+        if (whereClause != null && whereClause.length() > 0) {
+            sqlBuilder.append(" WHERE ").append(whereClause);
+        }
+        return executeUpdateDelete(db, sqlBuilder.toString(), args);
+    }
+
+    /**
+     * Delete rows of a table, binding the arguments by their types.
+     *
+     * @return number of rows affected
+     */
+    static int delete(Storage db, String table, String whereClause, Object[] whereArgs) {
+        String sql = "DELETE FROM " + table
+                + (whereClause != null && whereClause.length() > 0 ? " WHERE " + whereClause : "");
+        return executeUpdateDelete(db, sql, whereArgs == null ? new Object[0] : whereArgs);
+    }
+
+    /**
+     * Run a query that returns a single string value.
+     *
+     * @return the value, or null if no rows returned
+     */
+    static String stringForQuery(Storage db, String sql, Object... args) {
+        Storage.Statement statement = db.compileStatement(sql);
+        try {
+            bindArgs(statement, args);
+            return statement.simpleQueryForString();
+        } finally {
+            statement.close();
+        }
+    }
+
+    static void bindArgs(Storage.Statement program, Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                program.bindNull(i + 1);
+            } else if (arg instanceof byte[]) {
+                program.bindBlob(i + 1, (byte[]) arg);
+            } else if (arg instanceof Double || arg instanceof Float) {
+                program.bindDouble(i + 1, ((Number) arg).doubleValue());
+            } else if (arg instanceof Number) {
+                program.bindLong(i + 1, ((Number) arg).longValue());
+            } else if (arg instanceof Boolean) {
+                program.bindLong(i + 1, (Boolean) arg ? 1 : 0);
+            } else {
+                program.bindString(i + 1, arg.toString());
             }
         }
-        return exists;
     }
 }
@@ -16,17 +16,24 @@
 
 package im.r_c.android.dbox;
 
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
-import android.support.annotation.NonNull;
 
-import java.lang.ref.WeakReference;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
+import java.sql.Connection;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * DBox
@@ -39,12 +46,25 @@ import java.util.Map;
 public class DBox<T> {
     private static final String TAG = DBox.class.getSimpleName();
 
-    private static WeakReference<Context> sContextRef;
-    private static String sDatabaseName;
+    private static MetricsStorage sStorage;
+
+    private static DBoxSlowQueryLog sSlowQueryLog;
+
+    private static volatile Executor sRelationExecutor;
+
+    /**
+     * Full-text tables known to exist in the current database.
+     */
+    private static final Set<String> sFullTextTables = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Tables whose table and mapping tables are known to exist and match their classes.
+     */
+    private static final Set<String> sVerifiedTables = Collections.synchronizedSet(new HashSet<String>());
 
     private final Class<T> mClass;
     private final TableInfo mTableInfo;
-    private SQLiteDatabase mDb;
+    private Storage mDb;
 
     /**
      * Invisible constructor.
@@ -63,9 +83,211 @@ public class DBox<T> {
      * @param context      context
      * @param databaseName filename of database
      */
-    public static void init(Context context, String databaseName) {
-        sContextRef = new WeakReference<>(context);
-        sDatabaseName = databaseName;
+    public static synchronized void init(Context context, String databaseName) {
+        init(context, databaseName, new DBoxTypeConverter<?>[0]);
+    }
+
+    /**
+     * Initialize DBox with converters of custom field types.
+     * <p>
+     * Enums (stored as ordinals) and UUIDs (stored as 16-byte BLOBs)
+     * are supported by default, unless converters of them are given here.
+     *
+     * @param context      context
+     * @param databaseName filename of database
+     * @param converters   type converters, see {@link DBoxTypeConverter}
+     */
+    public static synchronized void init(Context context, String databaseName, DBoxTypeConverter<?>... converters) {
+        init(new AndroidStorage(context, databaseName), null, converters);
+    }
+
+    /**
+     * Initialize DBox with a metrics listener and converters of custom field types.
+     *
+     * @param context      context
+     * @param databaseName filename of database
+     * @param metrics      receives events of all statements and transactions, see {@link DBoxMetrics}
+     * @param converters   type converters, see {@link DBoxTypeConverter}
+     */
+    public static synchronized void init(Context context, String databaseName, DBoxMetrics metrics, DBoxTypeConverter<?>... converters) {
+        init(new AndroidStorage(context, databaseName), metrics, converters);
+    }
+
+    /**
+     * Initialize DBox on a JDBC connection to a SQLite database,
+     * e.g. {@code DriverManager.getConnection("jdbc:sqlite:test.db")} with sqlite-jdbc,
+     * so that it can be used on a plain JVM.
+     * <p>
+     * The connection will be shared by all boxes and threads, and should not be used elsewhere.
+     *
+     * @param connection JDBC connection
+     * @param converters type converters, see {@link DBoxTypeConverter}
+     */
+    public static synchronized void init(Connection connection, DBoxTypeConverter<?>... converters) {
+        init(new JdbcStorage(connection), null, converters);
+    }
+
+    /**
+     * Initialize DBox on a JDBC connection to a SQLite database with a metrics listener,
+     * see {@link #init(Connection, DBoxTypeConverter[])}.
+     *
+     * @param connection JDBC connection
+     * @param metrics    receives events of all statements and transactions, see {@link DBoxMetrics}
+     * @param converters type converters, see {@link DBoxTypeConverter}
+     */
+    public static synchronized void init(Connection connection, DBoxMetrics metrics, DBoxTypeConverter<?>... converters) {
+        init(new JdbcStorage(connection), metrics, converters);
+    }
+
+    private static synchronized void init(Storage storage, DBoxMetrics metrics, DBoxTypeConverter<?>[] converters) {
+        DBoxConverters.reset(converters);
+        sStorage = new MetricsStorage(storage, metrics, sSlowQueryLog);
+        sFullTextTables.clear();
+        sVerifiedTables.clear();
+        TableInfo.clearCache();
+        SnapshotCache.clear();
+        DBUtils.reset();
+    }
+
+    /**
+     * Record statements slower than the threshold of the log,
+     * or stop recording if the log is null.
+     * <p>
+     * This can be called at any time, before or after {@link #init(Context, String)}.
+     *
+     * @param slowQueryLog slow query log, or null
+     */
+    public static synchronized void setSlowQueryLog(DBoxSlowQueryLog slowQueryLog) {
+        sSlowQueryLog = slowQueryLog;
+        if (sStorage != null) {
+            sStorage.setSlowQueryLog(slowQueryLog);
+        }
+    }
+
+    /**
+     * Load related objects of different classes concurrently on an executor,
+     * e.g. a fixed thread pool, or load them one by one if the executor is null (default).
+     * <p>
+     * Related objects of the objects loaded together, e.g. by {@link DBoxResults#getAll()},
+     * are loaded by a query per class. When there are several classes, each class is loaded
+     * by a task on the executor, except one loaded on the calling thread,
+     * which cuts the time of loading the objects by the overlapped queries.
+     * It only pays off if the database can run queries concurrently,
+     * see {@link #enableWriteAheadLogging()}, while a JDBC connection
+     * runs one query at a time anyway.
+     * <p>
+     * Objects loaded in a transaction are always loaded on the calling thread.
+     *
+     * @param executor executor, or null
+     */
+    public static void setRelationExecutor(Executor executor) {
+        sRelationExecutor = executor;
+    }
+
+    static Executor getRelationExecutor() {
+        return sRelationExecutor;
+    }
+
+    /**
+     * Enable write-ahead logging of the database,
+     * so that queries from different threads can run concurrently with each other
+     * and with a transaction, which sees changes committed before it starts.
+     *
+     * @return true if enabled
+     */
+    public static boolean enableWriteAheadLogging() {
+        return getStorage().enableWriteAheadLogging();
+    }
+
+    /**
+     * Copy a prebuilt database from assets as the database file,
+     * if the database doesn't exist yet, so that the app starts with data
+     * without saving objects one by one. Call it before {@link #init(Context, String)}.
+     * <p>
+     * An uncompressed asset (e.g. with {@code aaptOptions { noCompress "db" }})
+     * is copied by channel transfer straight from the APK, otherwise it's copied as a stream.
+     * The tables are checked against the classes when the first object of them is saved.
+     *
+     * @param context      context
+     * @param assetPath    path of the database in assets
+     * @param databaseName filename of database
+     * @return true if copied or the database exists
+     */
+    public static boolean copyDatabaseFromAsset(Context context, String assetPath, String databaseName) {
+        return AndroidStorage.copyFromAsset(context, assetPath, databaseName);
+    }
+
+    /**
+     * Attach a database file read-only, e.g. a reference database downloaded or shipped with the app,
+     * so that boxes of classes whose tables are only in it can find objects from it.
+     * <p>
+     * It's attached read-only by a "file:" URI, which needs SQLite 3.7.7 or above (Android 4.1, API level 16)
+     * with URI filenames enabled. Otherwise it's attached by path, and objects saved to its tables
+     * will be written to it.
+     * <p>
+     * Tables of the main database are used if there are tables of the same names.
+     * It can't be called in a transaction, and on Android it disables write-ahead logging.
+     *
+     * @param path       path of the database file, which must exist
+     * @param schemaName name of the attached database, e.g. "ref"
+     * @return succeeded or not
+     */
+    public static synchronized boolean attach(String path, String schemaName) {
+        File file = new File(path);
+        if (!file.isFile()) {
+            // Attaching would create an empty database
+            return false;
+        }
+
+        Storage storage = getStorage();
+        String sql = "ATTACH DATABASE ? AS " + schemaName + ";";
+        try {
+            if (DBUtils.isUriFilenameSupported(storage)) {
+                String uri = "file:" + path.replace("%", "%25").replace("?", "%3f").replace("#", "%23") + "?mode=ro";
+                try {
+                    storage.execSQL(sql, new Object[]{uri});
+                    // If URI filenames are not enabled, the URI is taken as a relative path of another file
+                    String attachedFile = DBUtils.getDatabaseFile(storage, schemaName);
+                    if (attachedFile != null && file.getCanonicalFile().equals(new File(attachedFile).getCanonicalFile())) {
+                        sVerifiedTables.clear();
+                        return true;
+                    }
+                    storage.execSQL("DETACH DATABASE " + schemaName + ";");
+                    if (attachedFile != null && attachedFile.endsWith("?mode=ro")) {
+                        //noinspection ResultOfMethodCallIgnored
+                        new File(attachedFile).delete();
+                    }
+                } catch (Exception e) {
+                    // Most likely the URI taken as a path can't be opened, try the path then
+                    e.printStackTrace();
+                }
+            }
+
+            storage.execSQL(sql, new Object[]{path});
+            sVerifiedTables.clear();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Detach a database attached by {@link #attach(String, String)}.
+     *
+     * @param schemaName name of the attached database
+     * @return succeeded or not
+     */
+    public static synchronized boolean detach(String schemaName) {
+        try {
+            getStorage().execSQL("DETACH DATABASE " + schemaName + ";");
+            sVerifiedTables.clear();
+            SnapshotCache.clear();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
     /**
@@ -75,18 +297,26 @@ public class DBox<T> {
      * @param <T> type of objects the box can handle
      * @return a box object
      */
-    public static <T> DBox<T> of(@NonNull Class<T> clz) {
-        Context context = sContextRef.get();
-        if (context == null) {
-            throw new IllegalStateException("Did you forget to call DBox.init() before using it?");
-        }
-
+    public static <T> DBox<T> of(Class<T> clz) {
         DBox<T> box = new DBox<>(clz, TableInfo.of(clz));
-        DatabaseHelper helper = new DatabaseHelper(context, sDatabaseName, null, 1);
-        box.mDb = helper.getWritableDatabase();
+        box.mDb = getStorage();
         return box;
     }
 
+    /**
+     * Get the storage shared by all boxes,
+     * so that all of them work on the same connection
+     * and can take part in the same transaction.
+     *
+     * @return storage
+     */
+    private static synchronized Storage getStorage() {
+        if (sStorage == null) {
+            throw new IllegalStateException("Did you forget to call DBox.init() before using it?");
+        }
+        return sStorage;
+    }
+
     /**
      * Find all objects of a class.
      *
@@ -112,6 +342,10 @@ public class DBox<T> {
      * This will change the object's id
      * if the object does not exist before
      * or it has been removed by {@link #clear()} or {@link #drop()}.
+     * <p>
+     * When updating, only the columns changed since the object was last saved are written,
+     * or the ones that differ from the stored record if it was found rather than saved,
+     * and nothing is written if none changed.
      *
      * @param obj object to save
      * @return succeeded or not
@@ -126,115 +360,193 @@ public class DBox<T> {
 
         boolean ok = false;
         try {
-            mDb.beginTransaction();
+            TransactionState.begin(mDb);
 
-            // Create table if not exists
-            if (!DBUtils.isTableExists(mDb, mTableInfo.mName)) {
-                String sql = SQLBuilder.createTable(mTableInfo);
-                mDb.execSQL(sql);
-            }
-
-            // Create mapping tables if not exist
-            if (mTableInfo.mObjectColumnMap.size() > 0) {
-                // Has object column
-                boolean hasMappingTableNotCreated = false;
-                for (ObjectColumnInfo oci : mTableInfo.mObjectColumnMap.values()) {
-                    // Check if all mapping tables are created
-                    if (!DBUtils.isTableExists(mDb, SQLBuilder.getMappingTableName(mTableInfo.mName, TableInfo.nameOf(oci.mElemClass)))) {
-                        hasMappingTableNotCreated = true;
-                        break;
-                    }
-                }
-                if (hasMappingTableNotCreated) {
-                    String[] sqls = SQLBuilder.createAllMappingTables(mTableInfo);
-                    for (String sql : sqls) {
-                        mDb.execSQL(sql);
-                    }
-                }
-            }
+            createTablesIfNotExist();
 
             // Save values into this table
-            ContentValues values = SQLBuilder.buildContentValues(mTableInfo, obj);
+            RowValues values = SQLBuilder.buildContentValues(mTableInfo, obj);
+            RowValues changedValues = values;
             if (isUpdating) {
-                int rowCount = mDb.update(mTableInfo.mName, values, TableInfo.COLUMN_ID + " = ?", new String[]{String.valueOf(idA)});
+                // Only write the columns changed since the object was last saved,
+                // or if it wasn't, the ones that differ from the stored record.
+                // Skip the update if nothing changed, as long as the record still exists,
+                // which may have been deleted outside DBox.
+                RowValues snapshot = SnapshotCache.get(mTableInfo.mName, idA, obj);
+                RowValues stored = snapshot != null ? snapshot : selectRow(idA, values);
+                changedValues = stored != null ? SnapshotCache.diff(stored, values) : values;
+                int rowCount;
+                if (stored == null) {
+                    rowCount = 0;
+                } else if (changedValues.size() > 0) {
+                    rowCount = mDb.update(mTableInfo.mName, changedValues, TableInfo.COLUMN_ID + " = ?", new String[]{String.valueOf(idA)});
+                    TransactionState.markChanged(mTableInfo.mName, idA);
+                } else if (snapshot != null) {
+                    rowCount = DBUtils.longForQuery(mDb, SQLBuilder.selectIdByColumn(mTableInfo.mName, TableInfo.COLUMN_ID), idA) > 0 ? 1 : 0;
+                } else {
+                    rowCount = 1;
+                }
                 if (rowCount == 0) {
                     // The record does not exist in fact,
-                    // so insert it.
+                    // so insert it, and clean up the mappings
+                    // that may be left by the previous id.
                     isUpdating = false;
+                    changedValues = values;
+                    deleteAllMappingsOfId(idA);
                 } else if (rowCount != 1) {
                     // Effected row count is not 1,
                     // meaning something went wrong.
                     throw new Exception();
                 }
-
-                // If is updating, all previous mappings of this id should be deleted first
-                deleteAllMappingsOfId(idA);
             }
             if (!isUpdating) {
                 // Newly insert
-                idA = mDb.insert(mTableInfo.mName, null, values);
+                idA = mDb.insert(mTableInfo.mName, values);
                 if (idA <= 0) {
                     throw new Exception();
                 }
                 setId(obj, mClass, idA);
+                TransactionState.markChanged(mTableInfo.mName, idA);
             }
 
-            // Insert relationship mappings into mapping tables
-            // Example:
-            // _TableA_field1_id  _TableA_field2_id  _TableB_id
-            //        1                   0               2
-            //        0                   1               2
-            //        0                   1               3
-            for (Map.Entry<String, ObjectColumnInfo> entry : mTableInfo.mObjectColumnMap.entrySet()) {
-                ObjectColumnInfo oci = entry.getValue();
-                String fieldName = entry.getKey();
-
-                switch (oci.mType) {
-                    case ObjectColumnInfo.TYPE_OBJECT: {
-                        Object o = oci.mField.get(obj);
-                        if (o == null) {
-                            break;
-                        }
-                        handleObjectMapping(fieldName, -1, idA, o, oci.mElemClass);
-                        break;
-                    }
-                    case ObjectColumnInfo.TYPE_OBJECT_ARRAY: {
-                        Object arr = oci.mField.get(obj);
-                        if (arr == null || Array.getLength(arr) == 0) {
-                            break;
-                        }
-                        for (int i = 0; i < Array.getLength(arr); i++) {
-                            Object o = Array.get(arr, i);
-                            if (o == null) {
-                                continue;
-                            }
-                            handleObjectMapping(fieldName, i, idA, o, oci.mElemClass);
-                        }
-                        break;
-                    }
-                    case ObjectColumnInfo.TYPE_OBJECT_LIST: {
-                        List list = (List) oci.mField.get(obj);
-                        if (list == null || list.size() == 0) {
-                            break;
-                        }
-                        for (int i = 0; i < list.size(); i++) {
-                            Object o = list.get(i);
-                            if (o == null) {
-                                continue;
-                            }
-                            handleObjectMapping(fieldName, i, idA, o, oci.mElemClass);
-                        }
-                        break;
-                    }
+            saveFullText(idA, values, changedValues);
+
+            saveObjectMappings(obj, idA, isUpdating);
+
+            TransactionState.putSnapshot(mTableInfo.mName, idA, obj, values);
+
+            TransactionState.setSuccessful(mDb);
+            ok = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            TransactionState.end(mDb);
+        }
+
+        if (!ok && idA > 0) {
+            TransactionState.removeSnapshot(mTableInfo.mName, idA);
+        }
+
+        return ok;
+    }
+
+    /**
+     * Save or update an object, optionally cascading to the objects it contains.
+     * <p>
+     * With {@link Cascade#SAVE}, objects in all object fields (recursively) are saved
+     * before the object itself, each one only once even if it is referred more than once,
+     * and all of them are committed in a single transaction. Objects that have been saved
+     * and not changed since then cost no writes.
+     *
+     * @param obj     object to save
+     * @param cascade cascade mode
+     * @return succeeded or not
+     */
+    public boolean save(T obj, Cascade cascade) {
+        if (cascade != Cascade.SAVE) {
+            return save(obj);
+        }
+
+        boolean ok = false;
+        try {
+            TransactionState.begin(mDb);
+
+            saveCascade(obj, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+
+            TransactionState.setSuccessful(mDb);
+            ok = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            TransactionState.end(mDb);
+        }
+
+        return ok;
+    }
+
+    /**
+     * Insert or replace an object with a single statement.
+     * <p>
+     * This is meant for objects that come with a pre-assigned id,
+     * e.g. records synced from a server. If the object has no id,
+     * the first unique column (annotated with {@code @Column(unique = true)})
+     * is used as the natural key to find the existing record, and the object's id
+     * will be set to the id of that record or the newly inserted one.
+     * <p>
+     * On SQLite 3.24.0 or above "INSERT ... ON CONFLICT DO UPDATE" is used,
+     * otherwise an UPDATE by the key, followed by an INSERT if no record was updated.
+     * Either way, it fails if the object conflicts with another record on any other unique column.
+     *
+     * @param obj object to save
+     * @return succeeded or not
+     */
+    public boolean upsert(T obj) {
+        long idA = getId(obj, mClass);
+        ColumnInfo keyColumn = idA > 0 ? mTableInfo.mColumnMap.get(TableInfo.COLUMN_ID) : mTableInfo.mNaturalKey;
+        if (keyColumn == null) {
+            // Neither id nor natural key, just insert it
+            return save(obj);
+        }
+
+        boolean ok = false;
+        try {
+            TransactionState.begin(mDb);
+
+            createTablesIfNotExist();
+
+            RowValues values = SQLBuilder.buildContentValues(mTableInfo, obj);
+            if (idA > 0) {
+                values.put(TableInfo.COLUMN_ID, idA);
+            } else if (values.get(keyColumn.mName) == null) {
+                // Natural key is null, so it can't conflict with anything
+                keyColumn = null;
+            }
+
+            if (keyColumn == null) {
+                idA = mDb.insert(mTableInfo.mName, values);
+            } else if (DBUtils.isUpsertSupported(mDb)) {
+                Pair<String, Object[]> pair = SQLBuilder.upsert(mTableInfo, values, keyColumn.mName);
+                mDb.execSQL(pair.first, pair.second);
+                if (idA <= 0) {
+                    idA = DBUtils.longForQuery(mDb, SQLBuilder.selectIdByColumn(mTableInfo.mName, keyColumn.mName),
+                            values.get(keyColumn.mName));
                 }
+            } else {
+                // Not REPLACE, which would delete records conflicting on any other unique column,
+                // leaving their mappings, full-text rows and snapshots behind
+                Pair<String, Object[]> pair = SQLBuilder.updateByColumn(mTableInfo, values, keyColumn.mName);
+                if (DBUtils.executeUpdateDelete(mDb, pair.first, pair.second) == 0) {
+                    idA = mDb.insert(mTableInfo.mName, values);
+                } else if (idA <= 0) {
+                    idA = DBUtils.longForQuery(mDb, SQLBuilder.selectIdByColumn(mTableInfo.mName, keyColumn.mName),
+                            values.get(keyColumn.mName));
+                }
+            }
+            if (idA <= 0) {
+                throw new Exception();
             }
+            values.remove(TableInfo.COLUMN_ID);
+            setId(obj, mClass, idA);
+            TransactionState.markChanged(mTableInfo.mName, idA);
 
-            mDb.setTransactionSuccessful();
+            saveFullText(idA, values, values);
+
+            // The record may or may not exist before,
+            // so compare with stored mappings anyway.
+            saveObjectMappings(obj, idA, true);
+
+            TransactionState.putSnapshot(mTableInfo.mName, idA, obj, values);
+
+            TransactionState.setSuccessful(mDb);
             ok = true;
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            mDb.endTransaction();
+            TransactionState.end(mDb);
+        }
+
+        if (!ok && idA > 0) {
+            TransactionState.removeSnapshot(mTableInfo.mName, idA);
         }
 
         return ok;
@@ -257,7 +569,7 @@ public class DBox<T> {
 
         boolean ok = false;
         try {
-            mDb.beginTransaction();
+            TransactionState.begin(mDb);
 
             // Remove record in this table
             int rowCount = mDb.delete(mTableInfo.mName, TableInfo.COLUMN_ID + " = ?", new String[]{String.valueOf(idA)});
@@ -270,16 +582,24 @@ public class DBox<T> {
             // Remove mappings in mapping tables
             deleteAllMappingsOfId(idA);
 
+            if (!mTableInfo.mFullTextColumns.isEmpty()) {
+                createFullTextTableIfNotExist();
+                mDb.delete(SQLBuilder.getFullTextTableName(mTableInfo.mName), "docid = ?", new String[]{String.valueOf(idA)});
+            }
+
             setId(obj, mClass, 0);
+            TransactionState.markChanged(mTableInfo.mName, idA);
 
-            mDb.setTransactionSuccessful();
+            TransactionState.setSuccessful(mDb);
             ok = true;
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            mDb.endTransaction();
+            TransactionState.end(mDb);
         }
 
+        TransactionState.removeSnapshot(mTableInfo.mName, idA);
+
         return ok;
     }
 
@@ -295,7 +615,7 @@ public class DBox<T> {
     public boolean clear() {
         boolean ok = false;
         try {
-            mDb.beginTransaction();
+            TransactionState.begin(mDb);
 
             // Remove all records in this table
             mDb.delete(mTableInfo.mName, null, null);
@@ -306,14 +626,24 @@ public class DBox<T> {
                 mDb.delete(SQLBuilder.getMappingTableName(mTableInfo.mName, tableB), null, null);
             }
 
-            mDb.setTransactionSuccessful();
+            // Remove all records in full-text table
+            if (!mTableInfo.mFullTextColumns.isEmpty()) {
+                createFullTextTableIfNotExist();
+                mDb.delete(SQLBuilder.getFullTextTableName(mTableInfo.mName), null, null);
+            }
+
+            markAllTablesChanged();
+
+            TransactionState.setSuccessful(mDb);
             ok = true;
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            mDb.endTransaction();
+            TransactionState.end(mDb);
         }
 
+        TransactionState.removeSnapshots(mTableInfo.mName);
+
         return ok;
     }
 
@@ -330,7 +660,7 @@ public class DBox<T> {
     public boolean drop() {
         boolean ok = false;
         try {
-            mDb.beginTransaction();
+            TransactionState.begin(mDb);
 
             mDb.execSQL(SQLBuilder.dropTable(mTableInfo.mName));
 
@@ -339,38 +669,686 @@ public class DBox<T> {
                 mDb.execSQL(SQLBuilder.dropTable(SQLBuilder.getMappingTableName(mTableInfo.mName, tableB)));
             }
 
-            mDb.setTransactionSuccessful();
+            mDb.execSQL(SQLBuilder.dropTable(SQLBuilder.getFullTextTableName(mTableInfo.mName)));
+            sFullTextTables.remove(mTableInfo.mName);
+            sVerifiedTables.remove(mTableInfo.mName);
+
+            markAllTablesChanged();
+
+            TransactionState.setSuccessful(mDb);
+            ok = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            TransactionState.end(mDb);
+        }
+        TransactionState.removeSnapshots(mTableInfo.mName);
+        return ok;
+    }
+
+    /**
+     * Export all objects of this box, i.e. records of its table and mapping tables,
+     * into a stream in a compact binary format, which can be imported by {@link #importFrom(InputStream)}.
+     * <p>
+     * Records are read a chunk at a time in a read transaction, so memory use stays the same
+     * however many objects there are, and other threads can still read while writing the stream.
+     * Objects contained in the objects are not included, export them with their own boxes.
+     * The stream is flushed but not closed.
+     *
+     * @param out stream to write to
+     * @return succeeded or not
+     */
+    public boolean exportTo(OutputStream out) {
+        boolean ok = false;
+        try {
+            TransactionState.beginRead(mDb);
+
+            TableArchive.write(mDb, getAllTableNames(), out);
+
+            TransactionState.setSuccessful(mDb);
+            ok = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            TransactionState.end(mDb);
+        }
+        return ok;
+    }
+
+    /**
+     * (CAUTIOUS!!)
+     * Replace all objects of this box with the ones exported by {@link #exportTo(OutputStream)}.
+     * <p>
+     * The objects keep their ids, so they are still related to the objects
+     * containing or contained by them, if those are imported by their own boxes as well.
+     * <p>
+     * Everything happens in a single transaction with compiled statements,
+     * and indexes of mapping tables are created after all records are inserted,
+     * which is much faster than saving the objects one by one.
+     * Nothing is changed if it fails. The stream is not closed.
+     *
+     * @param in stream to read from
+     * @return succeeded or not
+     */
+    public boolean importFrom(InputStream in) {
+        boolean ok = false;
+        try {
+            TransactionState.begin(mDb);
+
+            createTablesIfNotExist();
+
+            // Remove all records, and indexes that would be updated for every inserted row
+            Set<String> tables = getAllTableNames();
+            for (String table : tables) {
+                mDb.delete(table, null, null);
+            }
+            for (String field : mTableInfo.mObjectColumnMap.keySet()) {
+                mDb.execSQL(SQLBuilder.dropIndex(SQLBuilder.getMappingTableIdIndex(mTableInfo.mName, field)));
+            }
+
+            TableArchive.read(mDb, tables, in);
+
+            // Create the indexes again
+            for (String sql : SQLBuilder.createAllMappingTables(mTableInfo)) {
+                mDb.execSQL(sql);
+            }
+
+            // Fill full-text table with the new records
+            if (!mTableInfo.mFullTextColumns.isEmpty()) {
+                mDb.delete(SQLBuilder.getFullTextTableName(mTableInfo.mName), null, null);
+                mDb.execSQL(SQLBuilder.fillFullTextTable(mTableInfo));
+            }
+
+            markAllTablesChanged();
+
+            TransactionState.setSuccessful(mDb);
             ok = true;
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            mDb.endTransaction();
+            TransactionState.end(mDb);
         }
+
+        TransactionState.removeSnapshots(mTableInfo.mName);
+
         return ok;
     }
 
+    /**
+     * @return names of the table and mapping tables of this box
+     */
+    private Set<String> getAllTableNames() {
+        Set<String> tables = new LinkedHashSet<>();
+        tables.add(mTableInfo.mName);
+        for (ObjectColumnInfo oci : mTableInfo.mObjectColumnMap.values()) {
+            tables.add(SQLBuilder.getMappingTableName(mTableInfo.mName, TableInfo.nameOf(oci.mElemClass)));
+        }
+        return tables;
+    }
+
+    /**
+     * Remove all objects that satisfy a specific condition
+     * with a single DELETE statement, without loading them.
+     * <p>
+     * Ids of the objects in memory will NOT be changed.
+     *
+     * @param condition condition (aka where clause)
+     * @return count of removed objects, or -1 if failed
+     */
+    public int delete(DBoxCondition condition) {
+        int count = -1;
+        try {
+            TransactionState.begin(mDb);
+
+            String where = condition.build(mTableInfo);
+            Object[] args = condition.getArgs();
+            boolean hasWhere = where.length() > 0;
+            if (hasWhere) {
+                // The condition may depend on the mapping and full-text records removed below,
+                // e.g. related() and matches(), so find the objects before removing anything
+                where = TableInfo.COLUMN_ID + " IN (" + fixIds(where, args) + ")";
+                args = null;
+            }
+
+            // Remove mappings in mapping tables
+            for (Map.Entry<String, ObjectColumnInfo> entry : mTableInfo.mObjectColumnMap.entrySet()) {
+                String tableB = TableInfo.nameOf(entry.getValue().mElemClass);
+                String idAColumn = SQLBuilder.getMappingTableIdColumn(mTableInfo.mName, entry.getKey());
+                mDb.delete(SQLBuilder.getMappingTableName(mTableInfo.mName, tableB),
+                        hasWhere ? idAColumn + " IN (" + SQLBuilder.selectIdTable() + ")" : null, null);
+            }
+
+            // Remove records in full-text table
+            if (!mTableInfo.mFullTextColumns.isEmpty()) {
+                createFullTextTableIfNotExist();
+                mDb.delete(SQLBuilder.getFullTextTableName(mTableInfo.mName),
+                        hasWhere ? "docid IN (" + SQLBuilder.selectIdTable() + ")" : null, null);
+            }
+
+            // Remove records in this table
+            count = mDb.delete(mTableInfo.mName, hasWhere ? where : null, null);
+            if (hasWhere) {
+                releaseIds();
+            }
+
+            if (count > 0) {
+                markAllTablesChanged();
+            }
+
+            TransactionState.setSuccessful(mDb);
+        } catch (Exception e) {
+            e.printStackTrace();
+            count = -1;
+        } finally {
+            TransactionState.end(mDb);
+        }
+
+        TransactionState.removeSnapshots(mTableInfo.mName);
+
+        return count;
+    }
+
+    /**
+     * Update columns of all objects that satisfy a specific condition
+     * with a single UPDATE statement, without loading them.
+     * <p>
+     * Only normal columns can be updated in this way.
+     *
+     * @param condition condition (aka where clause)
+     * @param values    key: column name, value: new value of the column
+     * @return count of updated objects, or -1 if failed
+     */
+    public int update(DBoxCondition condition, Map<String, Object> values) {
+        RowValues contentValues = SQLBuilder.buildContentValues(mTableInfo, values);
+        if (contentValues.size() == 0) {
+            return 0;
+        }
+
+        int count = -1;
+        try {
+            TransactionState.begin(mDb);
+
+            String where = condition.build(mTableInfo);
+            Object[] args = condition.getArgs();
+            boolean hasWhere = where.length() > 0;
+
+            // If any full-text column is updated, remove the matched records from full-text table,
+            // and copy them back after updating, because they may not match the condition any more.
+            boolean isFullTextUpdated = false;
+            for (ColumnInfo ci : mTableInfo.mFullTextColumns) {
+                if (contentValues.containsKey(ci.mName)) {
+                    isFullTextUpdated = true;
+                    break;
+                }
+            }
+            boolean isIdFixed = false;
+            if (isFullTextUpdated) {
+                createFullTextTableIfNotExist();
+                if (hasWhere) {
+                    // The condition may depend on the full-text records removed below, e.g. matches(),
+                    // so find the objects before removing anything
+                    where = TableInfo.COLUMN_ID + " IN (" + fixIds(where, args) + ")";
+                    args = null;
+                    isIdFixed = true;
+                }
+                mDb.delete(SQLBuilder.getFullTextTableName(mTableInfo.mName),
+                        hasWhere ? "docid IN (" + SQLBuilder.selectIdTable() + ")" : null, null);
+            }
+
+            count = mDb.update(mTableInfo.mName, contentValues, hasWhere ? where : null, hasWhere ? args : null);
+            if (isIdFixed) {
+                releaseIds();
+            }
+
+            if (isFullTextUpdated) {
+                mDb.execSQL(SQLBuilder.fillFullTextTable(mTableInfo));
+            }
+
+            if (count > 0) {
+                TransactionState.markChanged(mTableInfo.mName);
+            }
+
+            TransactionState.setSuccessful(mDb);
+        } catch (Exception e) {
+            e.printStackTrace();
+            count = -1;
+        } finally {
+            TransactionState.end(mDb);
+        }
+
+        TransactionState.removeSnapshots(mTableInfo.mName);
+
+        return count;
+    }
+
+    /**
+     * Read the stored values of the columns of a record.
+     *
+     * @param id      id of the record
+     * @param columns values whose columns are read
+     * @return values as read from the cursor, or null if the record doesn't exist
+     */
+    private RowValues selectRow(long id, RowValues columns) {
+        StringBuilder builder = new StringBuilder("SELECT ").append(TableInfo.COLUMN_ID);
+        for (String column : columns.keySet()) {
+            builder.append(", ").append(column);
+        }
+        builder.append(" FROM ").append(mTableInfo.mName).append(" WHERE ").append(TableInfo.COLUMN_ID).append(" = ?;");
+        RowCursor c = mDb.rawQuery(builder.toString(), new String[]{String.valueOf(id)});
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            RowValues values = new RowValues();
+            int i = 1;
+            for (String column : columns.keySet()) {
+                switch (c.getType(i)) {
+                    case RowCursor.FIELD_TYPE_INTEGER:
+                        values.put(column, c.getLong(i));
+                        break;
+                    case RowCursor.FIELD_TYPE_FLOAT:
+                        values.put(column, c.getDouble(i));
+                        break;
+                    case RowCursor.FIELD_TYPE_STRING:
+                        values.put(column, c.getString(i));
+                        break;
+                    case RowCursor.FIELD_TYPE_BLOB:
+                        values.put(column, c.getBlob(i));
+                        break;
+                    default:
+                        values.putNull(column);
+                        break;
+                }
+                i++;
+            }
+            return values;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Put ids of the records that satisfy a where clause into the temporary id table,
+     * so that statements removing records the clause depends on don't change the set.
+     * Must be called in a transaction, and followed by {@link #releaseIds()}.
+     *
+     * @return sub query that selects the ids
+     */
+    private String fixIds(String where, Object[] args) {
+        mDb.execSQL(SQLBuilder.createIdTable());
+        mDb.execSQL("DELETE FROM " + SQLBuilder.ID_TABLE + ";");
+        mDb.execSQL(SQLBuilder.fillIdTable(mTableInfo.mName, where), args);
+        return SQLBuilder.selectIdTable();
+    }
+
+    private void releaseIds() {
+        mDb.execSQL("DELETE FROM " + SQLBuilder.ID_TABLE + ";");
+    }
+
+    /**
+     * Save all objects contained by an object, and then the object itself.
+     *
+     * @param obj   object to save
+     * @param saved objects that have been saved in the current cascade
+     */
+    @SuppressWarnings("unchecked")
+    private void saveCascade(Object obj, Set<Object> saved) throws Exception {
+        if (!saved.add(obj)) {
+            return;
+        }
+
+        for (ObjectColumnInfo oci : mTableInfo.mObjectColumnMap.values()) {
+            Object value = oci.mField.get(obj);
+            if (value == null) {
+                continue;
+            }
+
+            DBox<?> box = of(oci.mElemClass);
+            switch (oci.mType) {
+                case ObjectColumnInfo.TYPE_OBJECT:
+                    box.saveCascade(value, saved);
+                    break;
+                case ObjectColumnInfo.TYPE_OBJECT_ARRAY:
+                    for (int i = 0; i < Array.getLength(value); i++) {
+                        Object o = Array.get(value, i);
+                        if (o != null) {
+                            box.saveCascade(o, saved);
+                        }
+                    }
+                    break;
+                case ObjectColumnInfo.TYPE_OBJECT_LIST:
+                    for (Object o : (List) value) {
+                        if (o != null) {
+                            box.saveCascade(o, saved);
+                        }
+                    }
+                    break;
+            }
+        }
+
+        if (!save((T) obj)) {
+            throw new Exception();
+        }
+    }
+
+    private void createTablesIfNotExist() {
+        if (!sVerifiedTables.contains(mTableInfo.mName)) {
+            verifyOrCreateTables();
+        }
+        createFullTextTableIfNotExist();
+    }
+
+    /**
+     * Check the existing table and mapping tables against the class,
+     * and create the ones that don't exist.
+     * <p>
+     * A table matches if it has all columns of the class, with types of the same affinity.
+     * Once all tables are found matching, e.g. in a prebuilt or attached database,
+     * they are not checked again until {@link #init(Context, String)} is called,
+     * so saving costs no queries of the schema.
+     */
+    private void verifyOrCreateTables() {
+        boolean allExist = true;
+        boolean hasMappingTableNotCreated = false;
+        for (Map.Entry<String, Map<String, String>> entry : SQLBuilder.getAllTableColumns(mTableInfo).entrySet()) {
+            String table = entry.getKey();
+            Map<String, String> columns = DBUtils.getTableColumns(mDb, table);
+            if (columns == null) {
+                allExist = false;
+                if (table.equals(mTableInfo.mName)) {
+                    mDb.execSQL(SQLBuilder.createTable(mTableInfo));
+                } else {
+                    hasMappingTableNotCreated = true;
+                }
+                continue;
+            }
+
+            for (Map.Entry<String, String> column : entry.getValue().entrySet()) {
+                String type = columns.get(column.getKey());
+                if (type == null || !DBUtils.getAffinity(type).equals(DBUtils.getAffinity(column.getValue()))) {
+                    throw new IllegalStateException("Table \"" + table + "\" doesn't match class \"" + mClass
+                            + "\", expected column: " + column.getKey() + " " + column.getValue()
+                            + ", found: " + (type == null ? "none" : column.getKey() + " " + type) + ".");
+                }
+            }
+        }
+
+        // Mapping tables may exist without the indexes, if they were created by an older version,
+        // so the indexes are created anyway, once a process since the tables are verified only once
+        String[] sqls = hasMappingTableNotCreated
+                ? SQLBuilder.createAllMappingTables(mTableInfo)
+                : SQLBuilder.createAllMappingTableIndexes(mTableInfo);
+        for (String sql : sqls) {
+            mDb.execSQL(sql);
+        }
+
+        if (allExist) {
+            // Tables created above are remembered next time, after they are committed
+            sVerifiedTables.add(mTableInfo.mName);
+        }
+    }
+
+    /**
+     * Create full-text table if there are full-text columns and the table does not exist,
+     * and copy existing records into it.
+     */
+    private void createFullTextTableIfNotExist() {
+        if (mTableInfo.mFullTextColumns.isEmpty() || sFullTextTables.contains(mTableInfo.mName)) {
+            return;
+        }
+        if (DBUtils.isTableExists(mDb, SQLBuilder.getFullTextTableName(mTableInfo.mName))) {
+            // A table created below is remembered next time, after it is committed,
+            // otherwise a rolled back transaction would leave it remembered but gone
+            sFullTextTables.add(mTableInfo.mName);
+        } else {
+            mDb.execSQL(SQLBuilder.createFullTextTable(mTableInfo));
+            mDb.execSQL(SQLBuilder.fillFullTextTable(mTableInfo));
+        }
+    }
+
+    /**
+     * Update the record in full-text table if any full-text column has changed.
+     *
+     * @param id            id of the record
+     * @param values        all values of the record
+     * @param changedValues changed values of the record
+     */
+    private void saveFullText(long id, RowValues values, RowValues changedValues) throws Exception {
+        boolean changed = false;
+        for (ColumnInfo ci : mTableInfo.mFullTextColumns) {
+            if (changedValues.containsKey(ci.mName)) {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+
+        String ftsTable = SQLBuilder.getFullTextTableName(mTableInfo.mName);
+        mDb.delete(ftsTable, "docid = ?", new String[]{String.valueOf(id)});
+        if (mDb.insert(ftsTable, SQLBuilder.buildFullTextContentValues(mTableInfo, id, values)) <= 0) {
+            throw new Exception();
+        }
+    }
+
+    private void saveObjectMappings(Object obj, long idA, boolean isUpdating) throws Exception {
+        // Insert relationship mappings into mapping tables
+        // Example:
+        // _TableA_field1_id  _TableA_field2_id  _TableB_id
+        //        1                   0               2
+        //        0                   1               2
+        //        0                   1               3
+        //
+        // If is updating, previous mappings of this id are compared with the current ones,
+        // and only the changed rows are written.
+        for (Map.Entry<String, ObjectColumnInfo> entry : mTableInfo.mObjectColumnMap.entrySet()) {
+            ObjectColumnInfo oci = entry.getValue();
+            String fieldName = entry.getKey();
+
+            long[] idBs = getMappingIds(obj, oci);
+            if (isUpdating) {
+                updateObjectMappings(fieldName, oci, idA, idBs);
+            } else {
+                insertObjectMappings(fieldName, oci, idA, idBs);
+            }
+        }
+    }
+
     private void deleteAllMappingsOfId(long id) {
         for (Map.Entry<String, ObjectColumnInfo> entry : mTableInfo.mObjectColumnMap.entrySet()) {
             ObjectColumnInfo oci = entry.getValue();
             String tableB = TableInfo.nameOf(oci.mElemClass);
             String fieldName = entry.getKey();
 
-            mDb.delete(SQLBuilder.getMappingTableName(mTableInfo.mName, tableB),
+            String mappingTable = SQLBuilder.getMappingTableName(mTableInfo.mName, tableB);
+            if (mDb.delete(mappingTable,
                     SQLBuilder.getMappingTableIdColumn(mTableInfo.mName, fieldName) + " = ?",
-                    new String[]{String.valueOf(id)});
+                    new String[]{String.valueOf(id)}) > 0) {
+                TransactionState.markChanged(mappingTable, id);
+            }
         }
     }
 
-    private void handleObjectMapping(String field, int index, long idA, Object objB, Class<?> clzB) throws Exception {
+    private void markAllTablesChanged() {
+        TransactionState.markChanged(mTableInfo.mName);
+        for (ObjectColumnInfo oci : mTableInfo.mObjectColumnMap.values()) {
+            TransactionState.markChanged(SQLBuilder.getMappingTableName(mTableInfo.mName, TableInfo.nameOf(oci.mElemClass)));
+        }
+    }
+
+    /**
+     * Collect ids of the objects referred by an object field.
+     * <p>
+     * The position of each id is the index of the object in the array or list
+     * (always 0 for a single object field), and null elements are represented by 0.
+     *
+     * @param obj object that holds the field
+     * @param oci object column info of the field
+     * @return ids of referred objects
+     */
+    private long[] getMappingIds(Object obj, ObjectColumnInfo oci) throws Exception {
+        long[] ids;
+        switch (oci.mType) {
+            case ObjectColumnInfo.TYPE_OBJECT: {
+                Object o = oci.mField.get(obj);
+                ids = new long[o == null ? 0 : 1];
+                if (o != null) {
+                    ids[0] = getMappingId(o, oci.mElemClass);
+                }
+                break;
+            }
+            case ObjectColumnInfo.TYPE_OBJECT_ARRAY: {
+                Object arr = oci.mField.get(obj);
+                ids = new long[arr == null ? 0 : Array.getLength(arr)];
+                for (int i = 0; i < ids.length; i++) {
+                    Object o = Array.get(arr, i);
+                    ids[i] = o == null ? 0 : getMappingId(o, oci.mElemClass);
+                }
+                break;
+            }
+            case ObjectColumnInfo.TYPE_OBJECT_LIST: {
+                List<?> list = (List<?>) oci.mField.get(obj);
+                ids = new long[list == null ? 0 : list.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    Object o = list.get(i);
+                    ids[i] = o == null ? 0 : getMappingId(o, oci.mElemClass);
+                }
+                break;
+            }
+            default:
+                ids = new long[0];
+                break;
+        }
+        return ids;
+    }
+
+    private long getMappingId(Object objB, Class<?> clzB) throws Exception {
         long idB = getId(objB, clzB);
         if (idB <= 0) {
+            // Object B hasn't been saved yet
             throw new Exception();
         }
+        return idB;
+    }
+
+    private void insertObjectMappings(String field, ObjectColumnInfo oci, long idA, long[] idBs) throws Exception {
+        String tableB = TableInfo.nameOf(oci.mElemClass);
+        String mappingTable = SQLBuilder.getMappingTableName(mTableInfo.mName, tableB);
+        boolean indexed = oci.mType != ObjectColumnInfo.TYPE_OBJECT;
+        for (int i = 0; i < idBs.length; i++) {
+            if (idBs[i] <= 0) {
+                continue;
+            }
+            if (mDb.insert(mappingTable,
+                    SQLBuilder.buildMappingContentValues(field, indexed ? i : -1, mTableInfo.mName, idA, tableB, idBs[i])) <= 0) {
+                // Insert mapping failed
+                throw new Exception();
+            }
+            TransactionState.markChanged(mappingTable, idA);
+        }
+    }
+
+    /**
+     * Update mappings of an object field by comparing the stored mapping rows
+     * with the current ids, so that unchanged rows are not touched.
+     * <p>
+     * A stored row is kept if its index and id are both unchanged,
+     * re-indexed if its id moved to another position, and reused for another id
+     * before any row is deleted or inserted.
+     */
+    private void updateObjectMappings(String field, ObjectColumnInfo oci, long idA, long[] idBs) throws Exception {
+        String tableB = TableInfo.nameOf(oci.mElemClass);
+        String mappingTable = SQLBuilder.getMappingTableName(mTableInfo.mName, tableB);
+        String idAColumn = SQLBuilder.getMappingTableIdColumn(mTableInfo.mName, field);
+        String idBColumn = SQLBuilder.getMappingTableIdColumn(tableB, null);
+        String indexColumn = SQLBuilder.getMappingTableIndexColumn(mTableInfo.mName, field);
+        boolean indexed = oci.mType != ObjectColumnInfo.TYPE_OBJECT;
+
+        // Load stored mapping rows of this field
+        List<MappingRow> storedRows = new ArrayList<>();
+        RowCursor c = mDb.rawQuery("SELECT rowid, " + idBColumn + ", " + (indexed ? indexColumn : "-1")
+                + " FROM " + mappingTable + " WHERE " + idAColumn + " = ?;", new String[]{String.valueOf(idA)});
+        try {
+            while (c.moveToNext()) {
+                storedRows.add(new MappingRow(c.getLong(0), c.getLong(1), c.getInt(2)));
+            }
+        } finally {
+            c.close();
+        }
+
+        // Positions that already have a correct stored row
+        boolean[] done = new boolean[idBs.length];
+
+        // Key: id of object B
+        // Value: stored rows not matching their current position
+        Map<Long, List<MappingRow>> looseRowMap = new HashMap<>();
+        int looseCount = 0;
+        for (MappingRow row : storedRows) {
+            int pos = indexed ? row.mIndex : 0;
+            if (pos >= 0 && pos < idBs.length && !done[pos] && idBs[pos] == row.mIdB) {
+                done[pos] = true;
+                continue;
+            }
+            List<MappingRow> rows = looseRowMap.get(row.mIdB);
+            if (rows == null) {
+                rows = new ArrayList<>();
+                looseRowMap.put(row.mIdB, rows);
+            }
+            rows.add(row);
+            looseCount++;
+        }
+
+        // Re-index stored rows whose object has moved
+        for (int i = 0; i < idBs.length && looseCount > 0; i++) {
+            if (done[i] || idBs[i] <= 0) {
+                continue;
+            }
+            List<MappingRow> rows = looseRowMap.get(idBs[i]);
+            if (rows == null || rows.isEmpty()) {
+                continue;
+            }
+            MappingRow row = rows.remove(rows.size() - 1);
+            looseCount--;
+            updateMappingRow(mappingTable, row.mRowId, indexed ? indexColumn : null, i, idBColumn, idBs[i]);
+            TransactionState.markChanged(mappingTable, idA);
+            done[i] = true;
+        }
+
+        // Reuse remaining stored rows for new objects, or insert new rows
+        List<MappingRow> looseRows = new ArrayList<>(looseCount);
+        for (List<MappingRow> rows : looseRowMap.values()) {
+            looseRows.addAll(rows);
+        }
+        for (int i = 0; i < idBs.length; i++) {
+            if (done[i] || idBs[i] <= 0) {
+                continue;
+            }
+            if (!looseRows.isEmpty()) {
+                MappingRow row = looseRows.remove(looseRows.size() - 1);
+                updateMappingRow(mappingTable, row.mRowId, indexed ? indexColumn : null, i, idBColumn, idBs[i]);
+            } else if (mDb.insert(mappingTable,
+                    SQLBuilder.buildMappingContentValues(field, indexed ? i : -1, mTableInfo.mName, idA, tableB, idBs[i])) <= 0) {
+                // Insert mapping failed
+                throw new Exception();
+            }
+            TransactionState.markChanged(mappingTable, idA);
+        }
 
-        String tableB = TableInfo.nameOf(clzB);
-        if (mDb.insert(SQLBuilder.getMappingTableName(mTableInfo.mName, tableB), null,
-                SQLBuilder.buildMappingContentValues(field, index, mTableInfo.mName, idA, tableB, idB)) <= 0) {
-            // Insert mapping failed
+        // Delete stored rows that are no longer needed
+        for (MappingRow row : looseRows) {
+            mDb.delete(mappingTable, "rowid = ?", new String[]{String.valueOf(row.mRowId)});
+            TransactionState.markChanged(mappingTable, idA);
+        }
+    }
+
+    private void updateMappingRow(String mappingTable, long rowId, String indexColumn, int index, String idBColumn, long idB) throws Exception {
+        RowValues values = new RowValues();
+        if (indexColumn != null) {
+            values.put(indexColumn, index);
+        }
+        values.put(idBColumn, idB);
+        if (mDb.update(mappingTable, values, "rowid = ?", new String[]{String.valueOf(rowId)}) != 1) {
             throw new Exception();
         }
     }
@@ -400,18 +1378,34 @@ public class DBox<T> {
         }
     }
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
+    /**
+     * Cascade mode of saving.
+     */
+    public enum Cascade {
+        /**
+         * Only save the object itself,
+         * objects contained by it must have been saved before.
+         */
+        NONE,
 
-        DatabaseHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
-            super(context, name, factory, version);
-        }
+        /**
+         * Save objects contained by the object as well.
+         */
+        SAVE
+    }
 
-        @Override
-        public void onCreate(SQLiteDatabase db) {
-        }
+    /**
+     * A stored row of a mapping table.
+     */
+    private static class MappingRow {
+        long mRowId;
+        long mIdB;
+        int mIndex;
 
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        MappingRow(long rowId, long idB, int index) {
+            mRowId = rowId;
+            mIdB = idB;
+            mIndex = index;
         }
     }
 }
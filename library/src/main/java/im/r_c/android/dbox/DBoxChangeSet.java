@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.util.List;
+
+/**
+ * DBox
+ * Created by richard on 7/24/16.
+ */
+
+/**
+ * Changes of the results of an observed query between two deliveries.
+ * <p>
+ * To turn the previous results into the current ones:
+ * remove objects at {@link #getRemovedPositions()} from the last one to the first one,
+ * then insert {@link #getInsertedObjects()} at {@link #getInsertedPositions()}
+ * from the first one to the last one, and finally replace objects at
+ * {@link #getUpdatedPositions()} with {@link #getUpdatedObjects()}.
+ * <p>
+ * An object moved to another position because of ordering is reported
+ * as removed and then inserted.
+ *
+ * @param <T> type of result object
+ */
+public class DBoxChangeSet<T> {
+    private final int mSize;
+    private final long[] mRemovedIds;
+    private final int[] mRemovedPositions;
+    private final long[] mInsertedIds;
+    private final int[] mInsertedPositions;
+    private final List<T> mInsertedObjects;
+    private final long[] mUpdatedIds;
+    private final int[] mUpdatedPositions;
+    private final List<T> mUpdatedObjects;
+
+    DBoxChangeSet(int size,
+                  long[] removedIds, int[] removedPositions,
+                  long[] insertedIds, int[] insertedPositions, List<T> insertedObjects,
+                  long[] updatedIds, int[] updatedPositions, List<T> updatedObjects) {
+        mSize = size;
+        mRemovedIds = removedIds;
+        mRemovedPositions = removedPositions;
+        mInsertedIds = insertedIds;
+        mInsertedPositions = insertedPositions;
+        mInsertedObjects = insertedObjects;
+        mUpdatedIds = updatedIds;
+        mUpdatedPositions = updatedPositions;
+        mUpdatedObjects = updatedObjects;
+    }
+
+    /**
+     * @return count of objects in the current results
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return true if nothing changed
+     */
+    public boolean isEmpty() {
+        return mRemovedIds.length == 0 && mInsertedIds.length == 0 && mUpdatedIds.length == 0;
+    }
+
+    /**
+     * @return ids of removed objects, in ascending order of position
+     */
+    public long[] getRemovedIds() {
+        return mRemovedIds;
+    }
+
+    /**
+     * @return positions of removed objects in the previous results, in ascending order
+     */
+    public int[] getRemovedPositions() {
+        return mRemovedPositions;
+    }
+
+    /**
+     * @return ids of inserted objects, in ascending order of position
+     */
+    public long[] getInsertedIds() {
+        return mInsertedIds;
+    }
+
+    /**
+     * @return positions of inserted objects in the current results, in ascending order
+     */
+    public int[] getInsertedPositions() {
+        return mInsertedPositions;
+    }
+
+    /**
+     * @return inserted objects, in the same order as {@link #getInsertedIds()}
+     */
+    public List<T> getInsertedObjects() {
+        return mInsertedObjects;
+    }
+
+    /**
+     * @return ids of updated objects, in ascending order of position
+     */
+    public long[] getUpdatedIds() {
+        return mUpdatedIds;
+    }
+
+    /**
+     * @return positions of updated objects in the current results, in ascending order
+     */
+    public int[] getUpdatedPositions() {
+        return mUpdatedPositions;
+    }
+
+    /**
+     * @return updated objects, in the same order as {@link #getUpdatedIds()}
+     */
+    public List<T> getUpdatedObjects() {
+        return mUpdatedObjects;
+    }
+}
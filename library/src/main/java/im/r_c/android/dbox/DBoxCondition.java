@@ -17,6 +17,7 @@
 package im.r_c.android.dbox;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -30,9 +31,24 @@ import java.util.List;
  */
 public class DBoxCondition {
     private List<Builder> mBuilderList;
-    private List<String> mArgList;
+    private List<Object> mArgList;
     private int mGroupDepth = 0;
 
+    /**
+     * Object field that the next predicate should act on, see {@link #related(String)}.
+     */
+    private String mPendingRelatedField;
+
+    /**
+     * Whether {@link #not()} was called after {@link #related(String)}.
+     */
+    private boolean mPendingRelatedNot;
+
+    /**
+     * Groups begun right after {@link #related(String)} and not ended yet, the innermost last.
+     */
+    private List<RelatedGroup> mRelatedGroupList = new ArrayList<>();
+
     public DBoxCondition() {
         mBuilderList = new ArrayList<>();
         mArgList = new ArrayList<>();
@@ -63,10 +79,18 @@ public class DBoxCondition {
     }
 
     public DBoxCondition compare(final String column, final String operator, String value) {
-        mBuilderList.add(new Builder() {
+        return compareValue(column, operator, value);
+    }
+
+    /**
+     * Like {@link #compare(String, String, String)}, but the value is bound by its type,
+     * so that e.g. a double or a byte array compares like the stored value.
+     */
+    DBoxCondition compareValue(final String column, final String operator, Object value) {
+        addPredicate(new Builder() {
             @Override
-            public String build(String table) {
-                return table + "." + column + " " + operator + " ?";
+            public String build(TableInfo tableInfo) {
+                return tableInfo.mName + "." + column + " " + operator + " ?";
             }
         });
         mArgList.add(value);
@@ -74,9 +98,13 @@ public class DBoxCondition {
     }
 
     public DBoxCondition not() {
+        if (mPendingRelatedField != null) {
+            mPendingRelatedNot = !mPendingRelatedNot;
+            return this;
+        }
         mBuilderList.add(new Builder() {
             @Override
-            public String build(String table) {
+            public String build(TableInfo tableInfo) {
                 return "NOT";
             }
         });
@@ -84,9 +112,19 @@ public class DBoxCondition {
     }
 
     public DBoxCondition beginGroup() {
+        if (mPendingRelatedField != null) {
+            // Predicates of the whole group act on the related field,
+            // so collect them separately until the group is ended
+            mRelatedGroupList.add(new RelatedGroup(mPendingRelatedField, mPendingRelatedNot, mBuilderList, mGroupDepth));
+            mPendingRelatedField = null;
+            mPendingRelatedNot = false;
+            mBuilderList = new ArrayList<>();
+            mGroupDepth++;
+            return this;
+        }
         mBuilderList.add(new Builder() {
             @Override
-            public String build(String table) {
+            public String build(TableInfo tableInfo) {
                 return "(";
             }
         });
@@ -95,9 +133,24 @@ public class DBoxCondition {
     }
 
     public DBoxCondition endGroup() {
+        checkNoPendingRelatedField();
+        int last = mRelatedGroupList.size() - 1;
+        if (last >= 0 && mRelatedGroupList.get(last).mGroupDepth == mGroupDepth - 1) {
+            final RelatedGroup group = mRelatedGroupList.remove(last);
+            final Builder builder = scopedBuilder(mBuilderList, group.mNot);
+            mBuilderList = group.mOuterBuilderList;
+            mBuilderList.add(new Builder() {
+                @Override
+                public String build(TableInfo tableInfo) {
+                    return buildRelated(tableInfo, group.mField, builder);
+                }
+            });
+            mGroupDepth--;
+            return this;
+        }
         mBuilderList.add(new Builder() {
             @Override
-            public String build(String table) {
+            public String build(TableInfo tableInfo) {
                 return ")";
             }
         });
@@ -106,9 +159,10 @@ public class DBoxCondition {
     }
 
     public DBoxCondition and() {
+        checkNoPendingRelatedField();
         mBuilderList.add(new Builder() {
             @Override
-            public String build(String table) {
+            public String build(TableInfo tableInfo) {
                 return "AND";
             }
         });
@@ -116,9 +170,10 @@ public class DBoxCondition {
     }
 
     public DBoxCondition or() {
+        checkNoPendingRelatedField();
         mBuilderList.add(new Builder() {
             @Override
-            public String build(String table) {
+            public String build(TableInfo tableInfo) {
                 return "OR";
             }
         });
@@ -126,10 +181,10 @@ public class DBoxCondition {
     }
 
     public DBoxCondition between(final String column, String startValue, String endValue) {
-        mBuilderList.add(new Builder() {
+        addPredicate(new Builder() {
             @Override
-            public String build(String table) {
-                return table + "." + column + " BETWEEN ? AND ?";
+            public String build(TableInfo tableInfo) {
+                return tableInfo.mName + "." + column + " BETWEEN ? AND ?";
             }
         });
         mArgList.add(startValue);
@@ -150,17 +205,43 @@ public class DBoxCondition {
     }
 
     public DBoxCondition like(final String column, String pattern) {
-        mBuilderList.add(new Builder() {
+        addPredicate(new Builder() {
             @Override
-            public String build(String table) {
-                return table + "." + column + " LIKE ?";
+            public String build(TableInfo tableInfo) {
+                return tableInfo.mName + "." + column + " LIKE ?";
             }
         });
         mArgList.add(pattern);
         return this;
     }
 
+    /**
+     * Match a full-text query against a column annotated with {@code @Column(fullText = true)},
+     * using the full-text index instead of scanning the table like {@link #contains(String, String)}.
+     *
+     * @param column full-text column, or null to match against all full-text columns
+     * @param query  full-text query, see SQLite FTS4 for the syntax
+     * @return the condition itself
+     */
+    public DBoxCondition matches(final String column, String query) {
+        addPredicate(new Builder() {
+            @Override
+            public String build(TableInfo tableInfo) {
+                return SQLBuilder.fullTextMatch(tableInfo.mName, column);
+            }
+        });
+        mArgList.add(query);
+        return this;
+    }
+
     public DBoxCondition in(final String column, String... values) {
+        return inValues(column, values);
+    }
+
+    /**
+     * Like {@link #in(String, String...)}, but the values are bound by their types.
+     */
+    DBoxCondition inValues(final String column, Object[] values) {
         final StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append("(");
         for (int i = 0; i < values.length; i++) {
@@ -171,51 +252,263 @@ public class DBoxCondition {
             mArgList.add(values[i]);
         }
         stringBuilder.append(")");
-        mBuilderList.add(new Builder() {
+        addPredicate(new Builder() {
             @Override
-            public String build(String table) {
-                return table + "." + column + " IN " + stringBuilder.toString();
+            public String build(TableInfo tableInfo) {
+                return tableInfo.mName + "." + column + " IN " + stringBuilder.toString();
             }
         });
         return this;
     }
 
     public DBoxCondition isNull(final String column) {
-        mBuilderList.add(new Builder() {
+        addPredicate(new Builder() {
             @Override
-            public String build(String table) {
-                return table + "." + column + " IS NULL";
+            public String build(TableInfo tableInfo) {
+                return tableInfo.mName + "." + column + " IS NULL";
             }
         });
         return this;
     }
 
     public DBoxCondition isNotNull(final String column) {
-        mBuilderList.add(new Builder() {
+        addPredicate(new Builder() {
+            @Override
+            public String build(TableInfo tableInfo) {
+                return tableInfo.mName + "." + column + " IS NOT NULL";
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Check if there is any object in an object field.
+     * <p>
+     * The predicate is compiled into an "EXISTS" sub query over the mapping table,
+     * so no object needs to be loaded.
+     *
+     * @param field name of an instance field annotated with {@code @ObjectColumn}
+     * @return the condition itself
+     */
+    public DBoxCondition hasAny(final String field) {
+        addPredicate(new Builder() {
+            @Override
+            public String build(TableInfo tableInfo) {
+                return "EXISTS (" + buildMappingQuery(tableInfo, field, "1") + ")";
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Check if there are more than a specific number of objects in an object field.
+     *
+     * @param field name of an instance field annotated with {@code @ObjectColumn}
+     * @param size  number of objects
+     * @return the condition itself
+     */
+    public DBoxCondition sizeGreaterThan(final String field, final int size) {
+        addPredicate(new Builder() {
+            @Override
+            public String build(TableInfo tableInfo) {
+                return "(" + buildMappingQuery(tableInfo, field, "COUNT(*)") + ") > " + size;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Make the next predicate act on the objects in an object field
+     * instead of this table, e.g.
+     * {@code new DBoxCondition().related("courseList").equalTo("code", "C1001")}
+     * finds objects that have at least one course with code "C1001" in "courseList".
+     * <p>
+     * A {@link #not()} right after it is negated on the objects too, and a group begun right after it
+     * acts on the objects as a whole until it's ended, e.g.
+     * {@code related("courseList").not().beginGroup().equalTo("code", "C1001").or().equalTo("code", "C1002").endGroup()}
+     * finds objects that have at least one course other than the two.
+     * It must not be followed by {@link #and()}, {@link #or()} or {@link #endGroup()}.
+     * <p>
+     * The predicate is compiled into an "EXISTS" sub query over the mapping table
+     * and the table of the field, so no object needs to be loaded.
+     *
+     * @param field name of an instance field annotated with {@code @ObjectColumn}
+     * @return the condition itself
+     */
+    public DBoxCondition related(String field) {
+        if (mPendingRelatedField != null) {
+            throw new IllegalStateException("There is already a related field \"" + mPendingRelatedField + "\" waiting for a predicate.");
+        }
+        mPendingRelatedField = field;
+        return this;
+    }
+
+    /**
+     * Make a whole condition act on the objects in an object field
+     * instead of this table, e.g.
+     * {@code new DBoxCondition().related("clazz", new DBoxCondition().equalTo("name", "Class 1").or().equalTo("name", "Class 2"))}.
+     * <p>
+     * The condition must have been completely built before passed in.
+     *
+     * @param field     name of an instance field annotated with {@code @ObjectColumn}
+     * @param condition condition on the table of the field
+     * @return the condition itself
+     */
+    public DBoxCondition related(final String field, final DBoxCondition condition) {
+        addPredicate(new Builder() {
+            @Override
+            public String build(TableInfo tableInfo) {
+                return buildRelated(tableInfo, field, condition.mergedBuilder());
+            }
+        });
+        mArgList.addAll(condition.mArgList);
+        return this;
+    }
+
+    /**
+     * Nest another condition as a group, which will be and-ed with
+     * the previous and the next predicates if no "OR" is between them.
+     * <p>
+     * The condition must have been completely built before passed in.
+     *
+     * @param condition condition
+     * @return the condition itself
+     */
+    DBoxCondition nest(final DBoxCondition condition) {
+        addPredicate(new Builder() {
             @Override
-            public String build(String table) {
-                return table + "." + column + " IS NOT NULL";
+            public String build(TableInfo tableInfo) {
+                String where = condition.build(tableInfo);
+                return "(" + (where.trim().length() > 0 ? where : "1") + ")";
             }
         });
+        mArgList.addAll(condition.mArgList);
         return this;
     }
 
+    /**
+     * Add a predicate, which acts on the pending related field if any.
+     */
+    private void addPredicate(final Builder builder) {
+        final String field = mPendingRelatedField;
+        if (field == null) {
+            mBuilderList.add(builder);
+            return;
+        }
+
+        final Builder scoped = scopedBuilder(Collections.singletonList(builder), mPendingRelatedNot);
+        mPendingRelatedField = null;
+        mPendingRelatedNot = false;
+        mBuilderList.add(new Builder() {
+            @Override
+            public String build(TableInfo tableInfo) {
+                return buildRelated(tableInfo, field, scoped);
+            }
+        });
+    }
+
+    private void checkNoPendingRelatedField() {
+        if (mPendingRelatedField != null) {
+            throw new IllegalStateException("The related field \"" + mPendingRelatedField + "\" is not followed by a predicate.");
+        }
+    }
+
+    /**
+     * Make a builder that builds the predicates acting on a related field, negated if needed.
+     */
+    private static Builder scopedBuilder(final List<Builder> builderList, final boolean not) {
+        return new Builder() {
+            @Override
+            public String build(TableInfo tableInfo) {
+                String where = join(builderList, tableInfo);
+                if (!not) {
+                    return where;
+                }
+                return "NOT (" + (where.trim().length() > 0 ? where : "1") + ")";
+            }
+        };
+    }
+
+    /**
+     * Make a builder that builds the full where clause of this condition.
+     */
+    private Builder mergedBuilder() {
+        return new Builder() {
+            @Override
+            public String build(TableInfo tableInfo) {
+                return DBoxCondition.this.build(tableInfo);
+            }
+        };
+    }
+
+    /**
+     * Build an "EXISTS" sub query that checks the objects in an object field.
+     * <p>
+     * Example:
+     * <p>
+     * EXISTS (SELECT 1 FROM _Student_Course_mapping
+     * JOIN Course ON Course.id = _Student_Course_mapping._Course_id
+     * WHERE _Student_Course_mapping._Student_courseList_id = Student.id
+     * AND (Course.code = ?))
+     */
+    private static String buildRelated(TableInfo tableInfo, String field, Builder builder) {
+        ObjectColumnInfo oci = tableInfo.mObjectColumnMap.get(field);
+        if (oci == null) {
+            throw new IllegalArgumentException("There is no object field \"" + field + "\" in table \"" + tableInfo.mName + "\".");
+        }
+
+        TableInfo tableInfoB = TableInfo.of(oci.mElemClass);
+        String mappingTable = SQLBuilder.getMappingTableName(tableInfo.mName, tableInfoB.mName);
+        String where = builder.build(tableInfoB);
+        return "EXISTS (SELECT 1 FROM " + mappingTable
+                + " JOIN " + tableInfoB.mName + " ON " + tableInfoB.mName + "." + TableInfo.COLUMN_ID
+                + " = " + mappingTable + "." + SQLBuilder.getMappingTableIdColumn(tableInfoB.mName, null)
+                + " WHERE " + mappingTable + "." + SQLBuilder.getMappingTableIdColumn(tableInfo.mName, field)
+                + " = " + tableInfo.mName + "." + TableInfo.COLUMN_ID
+                + (where.trim().length() > 0 ? " AND (" + where + ")" : "") + ")";
+    }
+
+    /**
+     * Build a sub query over the mapping rows of an object field of the current object, e.g.
+     * <p>
+     * SELECT COUNT(*) FROM _Student_Course_mapping
+     * WHERE _Student_Course_mapping._Student_courseList_id = Student.id
+     */
+    private static String buildMappingQuery(TableInfo tableInfo, String field, String select) {
+        ObjectColumnInfo oci = tableInfo.mObjectColumnMap.get(field);
+        if (oci == null) {
+            throw new IllegalArgumentException("There is no object field \"" + field + "\" in table \"" + tableInfo.mName + "\".");
+        }
+
+        String mappingTable = SQLBuilder.getMappingTableName(tableInfo.mName, TableInfo.nameOf(oci.mElemClass));
+        return "SELECT " + select + " FROM " + mappingTable
+                + " WHERE " + mappingTable + "." + SQLBuilder.getMappingTableIdColumn(tableInfo.mName, field)
+                + " = " + tableInfo.mName + "." + TableInfo.COLUMN_ID;
+    }
+
     /**
      * Build the full condition where clause.
      *
-     * @param table the table that the conditions act on
+     * @param tableInfo the table that the conditions act on
      * @return where clause
      */
-    String build(String table) {
+    String build(TableInfo tableInfo) {
         if (mGroupDepth != 0) {
             throw new IllegalStateException("There are " + mGroupDepth + " groups haven't been ended.");
         }
+        checkNoPendingRelatedField();
+        return join(mBuilderList, tableInfo);
+    }
 
+    /**
+     * Join the parts built by builders, adding "AND" where no operator is between two predicates.
+     */
+    private static String join(List<Builder> builderList, TableInfo tableInfo) {
         StringBuilder whereClauseBuilder = new StringBuilder();
         String last = null;
-        for (int i = 0; i < mBuilderList.size(); i++) {
-            Builder builder = mBuilderList.get(i);
-            String part = builder.build(table);
+        for (int i = 0; i < builderList.size(); i++) {
+            Builder builder = builderList.get(i);
+            String part = builder.build(tableInfo);
             if (i != 0 && !(")".equals(part) || "OR".equals(part) || "AND".equals(part))
                     && !("(".equals(last) || "OR".equals(last) || "AND".equals(last) || "NOT".equals(last))) {
                 // Not ")" or "OR", so add a default "AND"
@@ -229,13 +522,35 @@ public class DBoxCondition {
 
     /**
      * Get arguments that should be bound to the where clause.
-     * Must be called after {@link #build(String)}.
+     * Must be called after {@link #build(TableInfo)}.
      *
      * @return arguments
      */
-    String[] getArgs() {
-        String[] args = new String[mArgList.size()];
-        return mArgList.toArray(args);
+    Object[] getArgs() {
+        return mArgList.toArray();
+    }
+
+    /**
+     * A group begun right after {@link #related(String)}.
+     */
+    private static class RelatedGroup {
+        final String mField;
+        final boolean mNot;
+        /**
+         * Builders outside the group, which the group is added to when ended.
+         */
+        final List<Builder> mOuterBuilderList;
+        /**
+         * Group depth outside the group.
+         */
+        final int mGroupDepth;
+
+        RelatedGroup(String field, boolean not, List<Builder> outerBuilderList, int groupDepth) {
+            mField = field;
+            mNot = not;
+            mOuterBuilderList = outerBuilderList;
+            mGroupDepth = groupDepth;
+        }
     }
 
     /**
@@ -243,6 +558,6 @@ public class DBoxCondition {
      * to be built uniformly.
      */
     private interface Builder {
-        String build(String table);
+        String build(TableInfo tableInfo);
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package im.r_c.android.dbox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * DBox
+ * Created by richard on 7/29/16.
+ */
+
+/**
+ * Built-in type converters, and the registry of the converters in use.
+ */
+public class DBoxConverters {
+    /**
+     * Key: field type,
+     * Value: converter.
+     */
+    private static final Map<Class<?>, DBoxTypeConverter<?>> sConverterMap = new HashMap<>();
+
+    static {
+        reset();
+    }
+
+    private DBoxConverters() {
+    }
+
+    /**
+     * Make a converter that stores an enum as its ordinal.
+     * <p>
+     * Enum fields without a registered converter use it by default,
+     * so constants must only be appended to keep stored values valid.
+     *
+     * @param enumClass enum class
+     * @param <E>       enum type
+     * @return converter
+     */
+    public static <E extends Enum<E>> DBoxTypeConverter<E> enumOrdinal(final Class<E> enumClass) {
+        final E[] constants = enumClass.getEnumConstants();
+        return new DBoxTypeConverter.LongConverter<E>() {
+            @Override
+            public Class<E> getType() {
+                return enumClass;
+            }
+
+            @Override
+            public long toLong(E value) {
+                return value.ordinal();
+            }
+
+            @Override
+            public E fromLong(long value) {
+                return constants[(int) value];
+            }
+        };
+    }
+
+    /**
+     * Make a converter that stores a UUID as a 16-byte BLOB of its two longs, big-endian.
+     * <p>
+     * UUID fields without a registered converter use it by default.
+     * As a BLOB, a UUID costs a 16-byte array on every read and write besides the UUID itself,
+     * so for a large number of objects, consider keeping the two longs in two long fields instead,
+     * which are stored as INTEGERs and allocate nothing.
+     *
+     * @return converter
+     */
+    public static DBoxTypeConverter<UUID> uuid() {
+        return new DBoxTypeConverter.BlobConverter<UUID>() {
+            @Override
+            public Class<UUID> getType() {
+                return UUID.class;
+            }
+
+            @Override
+            public byte[] toBlob(UUID value) {
+                byte[] bytes = new byte[16];
+                putLong(bytes, 0, value.getMostSignificantBits());
+                putLong(bytes, 8, value.getLeastSignificantBits());
+                return bytes;
+            }
+
+            @Override
+            public UUID fromBlob(byte[] value) {
+                return new UUID(getLong(value, 0), getLong(value, 8));
+            }
+        };
+    }
+
+    private static void putLong(byte[] bytes, int offset, long v) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Replace the registered converters with the built-in ones and the given ones.
+     *
+     * @param converters custom converters, which take precedence over built-in ones
+     */
+    static synchronized void reset(DBoxTypeConverter<?>... converters) {
+        sConverterMap.clear();
+        sConverterMap.put(UUID.class, uuid());
+        for (DBoxTypeConverter<?> converter : converters) {
+            sConverterMap.put(converter.getType(), converter);
+        }
+    }
+
+    /**
+     * Find the converter of a field type.
+     *
+     * @param type field type
+     * @return converter, or null if the type can't be converted
+     */
+    @SuppressWarnings("unchecked")
+    static synchronized DBoxTypeConverter<?> find(Class<?> type) {
+        DBoxTypeConverter<?> converter = sConverterMap.get(type);
+        if (converter == null && type.isEnum()) {
+            converter = enumOrdinal((Class) type);
+            sConverterMap.put(type, converter);
+        }
+        return converter;
+    }
+
+    /**
+     * Get the SQL type of the column of a converted field.
+     */
+    static String sqlTypeOf(DBoxTypeConverter<?> converter) {
+        if (converter instanceof DBoxTypeConverter.LongConverter) {
+            return "INTEGER";
+        } else if (converter instanceof DBoxTypeConverter.DoubleConverter) {
+            return "REAL";
+        } else if (converter instanceof DBoxTypeConverter.StringConverter) {
+            return "TEXT";
+        } else {
+            return "BLOB";
+        }
+    }
+
+    /**
+     * Convert a field value and put it into content values.
+     */
+    @SuppressWarnings("unchecked")
+    static void put(RowValues values, String column, DBoxTypeConverter<?> converter, Object value) {
+        if (value == null) {
+            values.putNull(column);
+        } else if (converter instanceof DBoxTypeConverter.LongConverter) {
+            values.put(column, ((DBoxTypeConverter.LongConverter<Object>) converter).toLong(value));
+        } else if (converter instanceof DBoxTypeConverter.DoubleConverter) {
+            values.put(column, ((DBoxTypeConverter.DoubleConverter<Object>) converter).toDouble(value));
+        } else if (converter instanceof DBoxTypeConverter.StringConverter) {
+            values.put(column, ((DBoxTypeConverter.StringConverter<Object>) converter).toText(value));
+        } else {
+            values.put(column, ((DBoxTypeConverter.BlobConverter<Object>) converter).toBlob(value));
+        }
+    }
+
+    /**
+     * Convert a non-null field value to Long, Double, String or byte[].
+     */
+    @SuppressWarnings("unchecked")
+    static Object toDatabase(DBoxTypeConverter<?> converter, Object value) {
+        if (converter instanceof DBoxTypeConverter.LongConverter) {
+            return ((DBoxTypeConverter.LongConverter<Object>) converter).toLong(value);
+        } else if (converter instanceof DBoxTypeConverter.DoubleConverter) {
+            return ((DBoxTypeConverter.DoubleConverter<Object>) converter).toDouble(value);
+        } else if (converter instanceof DBoxTypeConverter.StringConverter) {
+            return ((DBoxTypeConverter.StringConverter<Object>) converter).toText(value);
+        } else {
+            return ((DBoxTypeConverter.BlobConverter<Object>) converter).toBlob(value);
+        }
+    }
+
+    /**
+     * Read a column of a cursor and convert it to a field value.
+     */
+    static Object read(RowCursor cursor, int columnIdx, DBoxTypeConverter<?> converter) {
+        if (cursor.isNull(columnIdx)) {
+            return null;
+        } else if (converter instanceof DBoxTypeConverter.LongConverter) {
+            return ((DBoxTypeConverter.LongConverter<?>) converter).fromLong(cursor.getLong(columnIdx));
+        } else if (converter instanceof DBoxTypeConverter.DoubleConverter) {
+            return ((DBoxTypeConverter.DoubleConverter<?>) converter).fromDouble(cursor.getDouble(columnIdx));
+        } else if (converter instanceof DBoxTypeConverter.StringConverter) {
+            return ((DBoxTypeConverter.StringConverter<?>) converter).fromText(cursor.getString(columnIdx));
+        } else {
+            return ((DBoxTypeConverter.BlobConverter<?>) converter).fromBlob(cursor.getBlob(columnIdx));
+        }
+    }
+}
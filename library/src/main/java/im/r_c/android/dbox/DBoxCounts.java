@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.util.Arrays;
+
+/**
+ * DBox
+ * Created by richard on 7/26/16.
+ */
+
+/**
+ * Numbers of objects in an object field, mapped from ids of the owner objects.
+ * <p>
+ * Ids are stored in ascending order in a primitive array,
+ * so looking up a count needs neither boxing nor hashing.
+ */
+public class DBoxCounts {
+    private final long[] mIds;
+    private final int[] mCounts;
+
+    DBoxCounts(long[] ids, int[] counts) {
+        mIds = ids;
+        mCounts = counts;
+    }
+
+    /**
+     * Get the count of an owner object.
+     *
+     * @param id id of the owner object
+     * @return count, or 0 if there is no object in the field
+     */
+    public int get(long id) {
+        int i = Arrays.binarySearch(mIds, id);
+        return i >= 0 ? mCounts[i] : 0;
+    }
+
+    /**
+     * Get the number of owner objects that have at least one object in the field.
+     */
+    public int size() {
+        return mIds.length;
+    }
+
+    public long idAt(int index) {
+        return mIds[index];
+    }
+
+    public int countAt(int index) {
+        return mCounts[index];
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+
+/**
+ * Receives an event for every statement and transaction run by DBox,
+ * registered by {@link DBox#init(android.content.Context, String, DBoxMetrics, DBoxTypeConverter[])}.
+ * <p>
+ * Methods are called synchronously on the thread that runs the operation,
+ * so they should be cheap and thread-safe. Arguments of the statements
+ * are never passed, only the SQL with "?" placeholders, so statements of
+ * the same shape have the same SQL.
+ * <p>
+ * See {@link DBoxMetricsRecorder} for a default implementation.
+ */
+public interface DBoxMetrics {
+    /**
+     * Called when the cursor of a query is closed.
+     * <p>
+     * Objects in object fields are loaded by nested queries,
+     * each of which is reported by its own call as well.
+     *
+     * @param sql                SQL of the query
+     * @param bindCount          count of bound arguments
+     * @param nanos              wall time from running the query until its cursor is closed
+     * @param rowCount           count of rows stepped
+     * @param objectCount        count of objects materialized from the rows
+     * @param relationQueryCount count of nested queries issued to load objects in object fields
+     */
+    void onQuery(String sql, int bindCount, long nanos, int rowCount, int objectCount, int relationQueryCount);
+
+    /**
+     * Called after a statement that doesn't return rows.
+     *
+     * @param sql             SQL of the statement
+     * @param bindCount       count of bound arguments
+     * @param nanos           wall time of the statement
+     * @param changedRowCount count of inserted, updated or deleted rows, or -1 if unknown
+     */
+    void onWrite(String sql, int bindCount, long nanos, int changedRowCount);
+
+    /**
+     * Called when the outermost transaction ends.
+     *
+     * @param lockWaitNanos time spent waiting for the database to begin the transaction
+     * @param nanos         wall time from beginning to the end of the transaction, including the lock wait
+     * @param committed     committed, or rolled back
+     */
+    void onTransaction(long lockWaitNanos, long nanos, boolean committed);
+}
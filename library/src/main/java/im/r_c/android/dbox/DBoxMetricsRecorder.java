@@ -0,0 +1,317 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+
+/**
+ * Default {@link DBoxMetrics}, which aggregates events into histograms
+ * of atomic counters, so recording never blocks the database threads.
+ * <p>
+ * Usage:
+ * <pre>
+ * DBoxMetricsRecorder recorder = new DBoxMetricsRecorder();
+ * DBox.init(context, "test.db", recorder);
+ * // ...
+ * System.out.println(recorder.dump());
+ * </pre>
+ */
+public class DBoxMetricsRecorder implements DBoxMetrics {
+    private static final int DUMP_SQL_COUNT = 10;
+
+    private final Histogram mQueryTime = new Histogram();
+    private final Histogram mWriteTime = new Histogram();
+    private final Histogram mTransactionTime = new Histogram();
+    private final Histogram mLockWait = new Histogram();
+
+    /**
+     * Key: SQL of queries and writes,
+     * Value: wall time of the statements.
+     */
+    private final ConcurrentMap<String, Histogram> mSqlTimeMap = new ConcurrentHashMap<>();
+
+    private final AtomicLong mRowCount = new AtomicLong();
+    private final AtomicLong mObjectCount = new AtomicLong();
+    private final AtomicLong mRelationQueryCount = new AtomicLong();
+    private final AtomicLong mChangedRowCount = new AtomicLong();
+    private final AtomicLong mRollbackCount = new AtomicLong();
+
+    @Override
+    public void onQuery(String sql, int bindCount, long nanos, int rowCount, int objectCount, int relationQueryCount) {
+        mQueryTime.record(nanos);
+        sqlTime(sql).record(nanos);
+        mRowCount.addAndGet(rowCount);
+        mObjectCount.addAndGet(objectCount);
+        mRelationQueryCount.addAndGet(relationQueryCount);
+    }
+
+    @Override
+    public void onWrite(String sql, int bindCount, long nanos, int changedRowCount) {
+        mWriteTime.record(nanos);
+        sqlTime(sql).record(nanos);
+        if (changedRowCount > 0) {
+            mChangedRowCount.addAndGet(changedRowCount);
+        }
+    }
+
+    @Override
+    public void onTransaction(long lockWaitNanos, long nanos, boolean committed) {
+        mTransactionTime.record(nanos);
+        mLockWait.record(lockWaitNanos);
+        if (!committed) {
+            mRollbackCount.incrementAndGet();
+        }
+    }
+
+    private Histogram sqlTime(String sql) {
+        Histogram histogram = mSqlTimeMap.get(sql);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = mSqlTimeMap.putIfAbsent(sql, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return wall time of queries, in nanoseconds
+     */
+    public Histogram getQueryTime() {
+        return mQueryTime;
+    }
+
+    /**
+     * @return wall time of writes, in nanoseconds
+     */
+    public Histogram getWriteTime() {
+        return mWriteTime;
+    }
+
+    /**
+     * @return wall time of outermost transactions, in nanoseconds
+     */
+    public Histogram getTransactionTime() {
+        return mTransactionTime;
+    }
+
+    /**
+     * @return time waited to begin outermost transactions, in nanoseconds
+     */
+    public Histogram getLockWait() {
+        return mLockWait;
+    }
+
+    /**
+     * @param sql SQL of a query or a write
+     * @return wall time of the statements with the SQL, in nanoseconds, or null if never run
+     */
+    public Histogram getSqlTime(String sql) {
+        return mSqlTimeMap.get(sql);
+    }
+
+    /**
+     * @return total count of rows stepped by queries
+     */
+    public long getRowCount() {
+        return mRowCount.get();
+    }
+
+    /**
+     * @return total count of objects materialized
+     */
+    public long getObjectCount() {
+        return mObjectCount.get();
+    }
+
+    /**
+     * @return total count of nested queries issued to load objects in object fields
+     */
+    public long getRelationQueryCount() {
+        return mRelationQueryCount.get();
+    }
+
+    /**
+     * @return total count of rows inserted, updated or deleted
+     */
+    public long getChangedRowCount() {
+        return mChangedRowCount.get();
+    }
+
+    /**
+     * @return count of rolled back transactions
+     */
+    public long getRollbackCount() {
+        return mRollbackCount.get();
+    }
+
+    /**
+     * Dump percentiles of all histograms and the slowest SQL, in microseconds.
+     *
+     * @return readable report
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        appendLine(builder, "queries", mQueryTime);
+        builder.append(String.format(Locale.US, "  rows=%d objects=%d relationQueries=%d%n",
+                mRowCount.get(), mObjectCount.get(), mRelationQueryCount.get()));
+        appendLine(builder, "writes", mWriteTime);
+        builder.append(String.format(Locale.US, "  changedRows=%d%n", mChangedRowCount.get()));
+        appendLine(builder, "transactions", mTransactionTime);
+        builder.append(String.format(Locale.US, "  rollbacks=%d%n", mRollbackCount.get()));
+        appendLine(builder, "lockWait", mLockWait);
+
+        // The slowest SQL by total time
+        List<Map.Entry<String, Histogram>> entries = new ArrayList<>(mSqlTimeMap.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Histogram>>() {
+            @Override
+            public int compare(Map.Entry<String, Histogram> lhs, Map.Entry<String, Histogram> rhs) {
+                long l = lhs.getValue().getSum(), r = rhs.getValue().getSum();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        builder.append("slowest SQL by total time:").append(String.format(Locale.US, "%n"));
+        for (int i = 0; i < entries.size() && i < DUMP_SQL_COUNT; i++) {
+            Histogram histogram = entries.get(i).getValue();
+            builder.append(String.format(Locale.US, "  total=%.1f count=%d p99=%.1f  %s%n",
+                    histogram.getSum() / 1000.0, histogram.getCount(),
+                    histogram.getPercentile(99) / 1000.0, entries.get(i).getKey()));
+        }
+        return builder.toString();
+    }
+
+    private static void appendLine(StringBuilder builder, String name, Histogram histogram) {
+        builder.append(String.format(Locale.US, "%s: count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f%n",
+                name, histogram.getCount(), histogram.getMean() / 1000.0,
+                histogram.getPercentile(50) / 1000.0, histogram.getPercentile(90) / 1000.0,
+                histogram.getPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+    }
+
+    /**
+     * A histogram of non-negative values, whose buckets are 8 per power of two,
+     * so percentiles are accurate to 12.5%.
+     * <p>
+     * Recording is lock-free. Reading while recording gives a consistent
+     * enough view for reporting, but not an atomic snapshot.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram() {
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(indexOf(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            do {
+                max = mMax.get();
+            } while (value > max && !mMax.compareAndSet(max, value));
+        }
+
+        /**
+         * Values below {@link #SUB_BUCKET_COUNT} have a bucket each,
+         * others are bucketed by their highest bit and the {@link #SUB_BUCKET_BITS} bits after it.
+         */
+        private static int indexOf(long value) {
+            if (value < SUB_BUCKET_COUNT) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+            return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+        }
+
+        /**
+         * @return the largest value that falls into the bucket
+         */
+        private static long upperBoundOf(int index) {
+            if (index < SUB_BUCKET_COUNT) {
+                return index;
+            }
+            int exp = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+            int sub = index % SUB_BUCKET_COUNT;
+            long lower = (long) (SUB_BUCKET_COUNT + sub) << (exp - SUB_BUCKET_BITS);
+            return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public double getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : (double) mSum.get() / count;
+        }
+
+        /**
+         * Get the value that the given percent of recorded values are less than or equal to.
+         *
+         * @param percent percent, from 0 to 100
+         * @return upper bound of the bucket that the percentile falls into, or 0 if nothing recorded
+         */
+        public long getPercentile(double percent) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+    }
+}
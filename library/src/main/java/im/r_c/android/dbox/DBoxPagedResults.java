@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+/**
+ * Results of a query that are loaded page by page on demand,
+ * e.g. to back a list adapter over a very large number of objects.
+ * <p>
+ * Only the ids of the results are fetched when created, which fixes
+ * the size and the order of the results. Objects are loaded by their ids
+ * a page at a time, the most recently used pages are kept in memory,
+ * and the page after the one being accessed is loaded in advance
+ * on a background thread.
+ * <p>
+ * No cursor is kept open, so writing to the database never invalidates
+ * the results. Changes of the objects are seen by pages loaded afterwards,
+ * and objects removed after the results were created are null.
+ *
+ * @param <T> type of object
+ */
+public class DBoxPagedResults<T> {
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DBox-Prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Storage mDb;
+    private final TableInfo mTableInfo;
+    private final DBoxCondition mCondition;
+    private final long[] mIds;
+    private final int mPageSize;
+    private final Executor mExecutor;
+
+    /**
+     * Key: page index,
+     * Value: objects of the page, null for removed ones.
+     * <p>
+     * Least recently used pages are dropped first.
+     */
+    private final Map<Integer, Object[]> mPageMap;
+
+    /**
+     * Pages being loaded in advance.
+     */
+    private final Set<Integer> mPrefetchingPages = new HashSet<>();
+
+    DBoxPagedResults(Storage db, TableInfo tableInfo, DBoxCondition condition, long[] ids,
+                     int pageSize, final int maxPageCount, Executor executor) {
+        if (pageSize <= 0 || pageSize > SQLBuilder.MAX_ARG_COUNT) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + SQLBuilder.MAX_ARG_COUNT + ".");
+        }
+        if (maxPageCount <= 0) {
+            throw new IllegalArgumentException("Max page count must be positive.");
+        }
+        mDb = db;
+        mTableInfo = tableInfo;
+        mCondition = condition;
+        mIds = ids;
+        mPageSize = pageSize;
+        mExecutor = executor != null ? executor : sExecutor;
+        mPageMap = new LinkedHashMap<Integer, Object[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object[]> eldest) {
+                return size() > maxPageCount;
+            }
+        };
+    }
+
+    /**
+     * @return count of objects
+     */
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * @return count of objects in a page
+     */
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * Get the id of the object at the specific position, without loading it.
+     *
+     * @param position position
+     * @return id
+     */
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    /**
+     * Get the object at the specific position,
+     * loading its page on the current thread if the page isn't in memory.
+     *
+     * @param position position
+     * @return the object, or null if it has been removed or failed to load
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int position) {
+        if (position < 0 || position >= mIds.length) {
+            throw new IndexOutOfBoundsException("Position: " + position + ", size: " + mIds.length);
+        }
+
+        int page = position / mPageSize;
+        Object[] objects;
+        synchronized (mPageMap) {
+            objects = mPageMap.get(page);
+        }
+        if (objects == null) {
+            // Load it here even if it's being prefetched,
+            // rather than waiting for a thread that may wait for this one.
+            objects = loadPage(page);
+            if (objects == null) {
+                // Not cached, so that it's loaded again next time
+                return null;
+            }
+            synchronized (mPageMap) {
+                mPageMap.put(page, objects);
+            }
+        }
+        prefetch(page + 1);
+        return (T) objects[position % mPageSize];
+    }
+
+    /**
+     * Load a page on the background thread if it isn't in memory.
+     */
+    private void prefetch(final int page) {
+        if (page * mPageSize >= mIds.length) {
+            return;
+        }
+        synchronized (mPageMap) {
+            if (mPageMap.containsKey(page) || !mPrefetchingPages.add(page)) {
+                return;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Object[] objects = loadPage(page);
+                synchronized (mPageMap) {
+                    if (objects != null) {
+                        mPageMap.put(page, objects);
+                    }
+                    mPrefetchingPages.remove(page);
+                }
+            }
+        });
+    }
+
+    /**
+     * Load objects of a page by their ids.
+     * <p>
+     * If the ids ascend, which is the case unless the query is ordered,
+     * they are selected by range together with the condition of the query,
+     * so that an index on id can be used, otherwise they are selected one by one.
+     *
+     * @param page page index
+     * @return objects in the same order as their ids, null for removed ones,
+     * or null if failed, e.g. the database is busy, which must not be cached
+     */
+    private Object[] loadPage(int page) {
+        int start = page * mPageSize;
+        int end = Math.min(start + mPageSize, mIds.length);
+        Object[] objects = new Object[mPageSize];
+
+        boolean ascending = true;
+        for (int i = start + 1; i < end && ascending; i++) {
+            ascending = mIds[i] > mIds[i - 1];
+        }
+        DBoxCondition condition;
+        if (ascending) {
+            condition = new DBoxCondition()
+                    .nest(mCondition)
+                    .nest(new DBoxCondition().between(TableInfo.COLUMN_ID,
+                            String.valueOf(mIds[start]), String.valueOf(mIds[end - 1])));
+        } else {
+            String[] ids = new String[end - start];
+            for (int i = start; i < end; i++) {
+                ids[i - start] = String.valueOf(mIds[i]);
+            }
+            condition = new DBoxCondition().in(TableInfo.COLUMN_ID, ids);
+        }
+
+        try {
+            List<T> list = new DBoxQuery<T>(mDb, mTableInfo, condition).results().all();
+
+            // Put the objects at the positions of their ids
+            Field idField = mTableInfo.mColumnMap.get(TableInfo.COLUMN_ID).mField;
+            LongObjectMap<Object> objectMap = new LongObjectMap<>();
+            for (T t : list) {
+                if (t != null) {
+                    objectMap.put(idField.getLong(t), t);
+                }
+            }
+            for (int i = start; i < end; i++) {
+                objects[i - start] = objectMap.get(mIds[i]);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+        return objects;
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * DBox
+ * Created by richard on 7/25/16.
+ */
+
+/**
+ * A typed predicate made of simple comparisons on instance fields, all of which must be satisfied.
+ * <p>
+ * Unlike {@link DBoxResults.Filter}, it can be translated into SQL by {@link DBoxQuery#filter(DBoxPredicate)},
+ * or evaluated on raw values of the cursor by {@link DBoxResults#getSome(DBoxPredicate)},
+ * so that objects not satisfying it are never created.
+ * <p>
+ * Values are compared according to the type of the field, e.g. a boolean field
+ * is compared with a Boolean, a Date field with a Date, and a number field with any Number.
+ */
+public class DBoxPredicate {
+    private static final int OP_EQUAL_TO = 0;
+    private static final int OP_NOT_EQUAL_TO = 1;
+    private static final int OP_GREATER_THAN = 2;
+    private static final int OP_LESS_THAN = 3;
+    private static final int OP_GREATER_THAN_OR_EQUAL_TO = 4;
+    private static final int OP_LESS_THAN_OR_EQUAL_TO = 5;
+    private static final int OP_IS_NULL = 6;
+    private static final int OP_IS_NOT_NULL = 7;
+    private static final int OP_IN = 8;
+
+    private static final String[] SQL_OPERATORS = {"=", "!=", ">", "<", ">=", "<="};
+
+    private List<Term> mTermList = new ArrayList<>();
+
+    public DBoxPredicate equalTo(String field, Object value) {
+        return add(field, OP_EQUAL_TO, value);
+    }
+
+    public DBoxPredicate notEqualTo(String field, Object value) {
+        return add(field, OP_NOT_EQUAL_TO, value);
+    }
+
+    public DBoxPredicate greaterThan(String field, Object value) {
+        return add(field, OP_GREATER_THAN, value);
+    }
+
+    public DBoxPredicate lessThan(String field, Object value) {
+        return add(field, OP_LESS_THAN, value);
+    }
+
+    public DBoxPredicate greaterThanOrEqualTo(String field, Object value) {
+        return add(field, OP_GREATER_THAN_OR_EQUAL_TO, value);
+    }
+
+    public DBoxPredicate lessThanOrEqualTo(String field, Object value) {
+        return add(field, OP_LESS_THAN_OR_EQUAL_TO, value);
+    }
+
+    public DBoxPredicate isNull(String field) {
+        return add(field, OP_IS_NULL, null);
+    }
+
+    public DBoxPredicate isNotNull(String field) {
+        return add(field, OP_IS_NOT_NULL, null);
+    }
+
+    public DBoxPredicate in(String field, Object... values) {
+        return add(field, OP_IN, values);
+    }
+
+    private DBoxPredicate add(String field, int operator, Object value) {
+        if (value == null && operator != OP_IS_NULL && operator != OP_IS_NOT_NULL) {
+            throw new IllegalArgumentException("Use isNull() or isNotNull() to compare with null.");
+        }
+        mTermList.add(new Term(field, operator, value));
+        return this;
+    }
+
+    /**
+     * Translate into a condition.
+     *
+     * @param tableInfo table that the predicate acts on
+     * @return condition
+     */
+    DBoxCondition toCondition(TableInfo tableInfo) {
+        DBoxCondition condition = new DBoxCondition();
+        for (Term term : mTermList) {
+            ColumnInfo ci = term.columnOf(tableInfo);
+            switch (term.mOperator) {
+                case OP_IS_NULL:
+                    condition.isNull(ci.mName);
+                    break;
+                case OP_IS_NOT_NULL:
+                    condition.isNotNull(ci.mName);
+                    break;
+                case OP_IN:
+                    condition.inValues(ci.mName, (Object[]) term.toDatabase(ci));
+                    break;
+                default:
+                    condition.compareValue(ci.mName, SQL_OPERATORS[term.mOperator], term.toDatabase(ci));
+                    break;
+            }
+        }
+        return condition;
+    }
+
+    /**
+     * Make a matcher that evaluates the predicate on the current row of a cursor.
+     *
+     * @param tableInfo table that the predicate acts on
+     * @param cursor    cursor of a query on the table
+     * @return matcher
+     */
+    Matcher matcher(TableInfo tableInfo, RowCursor cursor) {
+        int[] columnIndexes = new int[mTermList.size()];
+        Object[] values = new Object[mTermList.size()];
+        for (int i = 0; i < columnIndexes.length; i++) {
+            Term term = mTermList.get(i);
+            ColumnInfo ci = term.columnOf(tableInfo);
+            columnIndexes[i] = cursor.getColumnIndexOrThrow(ci.mName);
+            values[i] = term.toDatabase(ci);
+        }
+        return new Matcher(cursor, columnIndexes, values);
+    }
+
+    /**
+     * Convert a non-null value to the Long, Double, String or byte[] that the column stores,
+     * so that it's bound and compared just like the stored value.
+     */
+    private static Object toDatabase(ColumnInfo ci, Object value) {
+        switch (ci.mType) {
+            case ColumnInfo.TYPE_BOOLEAN:
+                return (Boolean) value ? 1L : 0L;
+            case ColumnInfo.TYPE_DATE:
+                return ((Date) value).getTime();
+            case ColumnInfo.TYPE_BYTE:
+            case ColumnInfo.TYPE_SHORT:
+            case ColumnInfo.TYPE_INT:
+            case ColumnInfo.TYPE_LONG:
+            case ColumnInfo.TYPE_FLOAT:
+            case ColumnInfo.TYPE_DOUBLE:
+                // A float is widened exactly, so 0.1f matches the stored 0.1f but not 0.1
+                if (value instanceof Double || value instanceof Float) {
+                    return ((Number) value).doubleValue();
+                }
+                return ((Number) value).longValue();
+            case ColumnInfo.TYPE_BYTE_ARRAY:
+                return value;
+            case ColumnInfo.TYPE_INT_ARRAY:
+            case ColumnInfo.TYPE_LONG_ARRAY:
+            case ColumnInfo.TYPE_FLOAT_ARRAY:
+            case ColumnInfo.TYPE_DOUBLE_ARRAY:
+            case ColumnInfo.TYPE_STRING_LIST:
+                return BlobCodec.encode(ci.mType, value);
+            case ColumnInfo.TYPE_CONVERTED:
+                return DBoxConverters.toDatabase(ci.mConverter, value);
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     * Evaluates the predicate on raw values of the current row of a cursor,
+     * comparing them the way SQLite does, so that it agrees with {@link #toCondition(TableInfo)}.
+     */
+    class Matcher {
+        private final RowCursor mCursor;
+        private final int[] mColumnIndexes;
+        private final Object[] mValues;
+
+        private Matcher(RowCursor cursor, int[] columnIndexes, Object[] values) {
+            mCursor = cursor;
+            mColumnIndexes = columnIndexes;
+            mValues = values;
+        }
+
+        boolean matches() {
+            for (int i = 0; i < mColumnIndexes.length; i++) {
+                if (!matches(mTermList.get(i).mOperator, mColumnIndexes[i], mValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matches(int operator, int columnIdx, Object value) {
+            int type = mCursor.getType(columnIdx);
+            if (operator == OP_IS_NULL) {
+                return type == RowCursor.FIELD_TYPE_NULL;
+            } else if (operator == OP_IS_NOT_NULL) {
+                return type != RowCursor.FIELD_TYPE_NULL;
+            } else if (type == RowCursor.FIELD_TYPE_NULL) {
+                // Like SQL, comparing with NULL is never true
+                return false;
+            }
+
+            if (operator == OP_IN) {
+                for (Object v : (Object[]) value) {
+                    if (v != null && compare(type, columnIdx, v) == 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            int result = compare(type, columnIdx, value);
+            switch (operator) {
+                case OP_EQUAL_TO:
+                    return result == 0;
+                case OP_NOT_EQUAL_TO:
+                    return result != 0;
+                case OP_GREATER_THAN:
+                    return result > 0;
+                case OP_LESS_THAN:
+                    return result < 0;
+                case OP_GREATER_THAN_OR_EQUAL_TO:
+                    return result >= 0;
+                case OP_LESS_THAN_OR_EQUAL_TO:
+                    return result <= 0;
+            }
+            return false;
+        }
+
+        /**
+         * Compare the cursor value with a value made by {@link #toDatabase(ColumnInfo, Object)}.
+         * Like SQLite, numbers are less than strings, which are less than blobs,
+         * numbers are compared by their values, strings and blobs by their bytes.
+         *
+         * @param type storage class of the cursor value
+         * @return negative, zero or positive, like {@link Comparable#compareTo(Object)}
+         */
+        private int compare(int type, int columnIdx, Object value) {
+            int classA = storageClassOrder(type);
+            int classB = value instanceof byte[] ? 3 : (value instanceof String ? 2 : 1);
+            if (classA != classB) {
+                return classA < classB ? -1 : 1;
+            }
+            switch (classA) {
+                case 1:
+                    if (type == RowCursor.FIELD_TYPE_INTEGER && value instanceof Long) {
+                        long a = mCursor.getLong(columnIdx);
+                        long b = (Long) value;
+                        return a < b ? -1 : (a == b ? 0 : 1);
+                    } else {
+                        // Like SQLite, an integer is compared with a real as a double,
+                        // and unlike Double.compare(), 0.0 equals -0.0
+                        double a = mCursor.getDouble(columnIdx);
+                        double b = ((Number) value).doubleValue();
+                        return a < b ? -1 : (a > b ? 1 : 0);
+                    }
+                case 2:
+                    return compareUtf8(mCursor.getString(columnIdx), (String) value);
+                default:
+                    return compareBlobs(mCursor.getBlob(columnIdx), (byte[]) value);
+            }
+        }
+    }
+
+    private static int storageClassOrder(int type) {
+        switch (type) {
+            case RowCursor.FIELD_TYPE_STRING:
+                return 2;
+            case RowCursor.FIELD_TYPE_BLOB:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Compare strings in the order of their UTF-8 bytes, which is what SQLite's BINARY collation does.
+     * It's the order of code points, and differs from {@link String#compareTo(String)}
+     * only when surrogate pairs are compared with chars from U+E000 to U+FFFF.
+     */
+    static int compareUtf8(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char c1 = a.charAt(i);
+            char c2 = b.charAt(i);
+            if (c1 != c2) {
+                return codePointOrder(c1) - codePointOrder(c2);
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Move surrogates above the other chars, so that chars compare in the order of code points.
+     */
+    private static int codePointOrder(char c) {
+        if (c >= 0xE000) {
+            return c - 0x800;
+        } else if (c >= 0xD800) {
+            return c + 0x2000;
+        }
+        return c;
+    }
+
+    /**
+     * Compare blobs like memcmp() on unsigned bytes, with the shorter one less if it's a prefix.
+     */
+    static int compareBlobs(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int result = (a[i] & 0xff) - (b[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static class Term {
+        String mField;
+        int mOperator;
+        Object mValue;
+
+        Term(String field, int operator, Object value) {
+            mField = field;
+            mOperator = operator;
+            mValue = value;
+        }
+
+        /**
+         * @return the value converted by {@link DBoxPredicate#toDatabase(ColumnInfo, Object)},
+         * or an array of such values for IN
+         */
+        Object toDatabase(ColumnInfo ci) {
+            if (mOperator == OP_IN) {
+                Object[] values = (Object[]) mValue;
+                Object[] converted = new Object[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    converted[i] = values[i] == null ? null : DBoxPredicate.toDatabase(ci, values[i]);
+                }
+                return converted;
+            }
+            return mValue == null ? null : DBoxPredicate.toDatabase(ci, mValue);
+        }
+
+        ColumnInfo columnOf(TableInfo tableInfo) {
+            ColumnInfo ci = tableInfo.mColumnMap.get(mField);
+            if (ci == null) {
+                throw new IllegalArgumentException("There is no column field \"" + mField + "\" in table \"" + tableInfo.mName + "\".");
+            }
+            if (ci.isBlob() && mOperator != OP_EQUAL_TO && mOperator != OP_NOT_EQUAL_TO && mOperator != OP_IN
+                    && mOperator != OP_IS_NULL && mOperator != OP_IS_NOT_NULL) {
+                throw new IllegalArgumentException("BLOB field \"" + mField + "\" can only be checked for equality.");
+            }
+            return ci;
+        }
+    }
+}
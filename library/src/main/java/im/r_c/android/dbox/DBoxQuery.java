@@ -16,13 +16,9 @@
 
 package im.r_c.android.dbox;
 
-import android.annotation.SuppressLint;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.util.Log;
-import android.util.Pair;
-
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * DBox
@@ -35,14 +31,14 @@ import java.util.Arrays;
  * @param <T> type of result object
  */
 public class DBoxQuery<T> {
-    private static final String TAG = DBoxQuery.class.getSimpleName();
-
-    private SQLiteDatabase mDb;
+    private Storage mDb;
     private TableInfo mTableInfo;
     private DBoxCondition mCondition;
     private StringBuilder mOrderBuilder;
+    private String mRankColumn;
+    private String mRankQuery;
 
-    DBoxQuery(SQLiteDatabase db, TableInfo tableInfo, DBoxCondition condition) {
+    DBoxQuery(Storage db, TableInfo tableInfo, DBoxCondition condition) {
         mDb = db;
         mTableInfo = tableInfo;
         mCondition = condition;
@@ -65,17 +61,181 @@ public class DBoxQuery<T> {
         return this;
     }
 
+    /**
+     * Filter results with a typed predicate, which is translated into SQL
+     * and and-ed with the condition of the query.
+     *
+     * @param predicate predicate
+     * @return the query itself
+     */
+    public DBoxQuery<T> filter(DBoxPredicate predicate) {
+        mCondition = new DBoxCondition()
+                .nest(mCondition)
+                .nest(predicate.toCondition(mTableInfo));
+        return this;
+    }
+
+    /**
+     * Order by relevance of a full-text query, the most relevant first.
+     * <p>
+     * The column must be annotated with {@code @Column(fullText = true)},
+     * or be null to use all full-text columns. Usually used together with
+     * {@link DBoxCondition#matches(String, String)} with the same query,
+     * records not matching the query are ordered last.
+     *
+     * @param column full-text column, or null
+     * @param query  full-text query
+     * @return the query itself
+     */
+    public DBoxQuery<T> orderByRank(String column, String query) {
+        if (mRankQuery != null) {
+            throw new IllegalStateException("Only one full-text rank is supported in a query.");
+        }
+        mRankColumn = column;
+        mRankQuery = query;
+        mOrderBuilder.append(mOrderBuilder.length() == 0 ? "" : ", ")
+                .append(SQLBuilder.getFullTextRankColumn(mTableInfo.mName)).append(" DESC");
+        return this;
+    }
+
     /**
      * Get the results of the query.
      *
      * @return results object
      */
     public DBoxResults<T> results() {
-        Pair<String, String[]> pair = SQLBuilder.query(mTableInfo, mCondition, mOrderBuilder);
-        Log.d(TAG, pair.first);
-        Log.d(TAG, Arrays.toString(pair.second));
+        Pair<String, Object[]> pair = SQLBuilder.query(mTableInfo, mCondition, mOrderBuilder, mRankColumn, mRankQuery);
         // This cursor will be closed in DBoxResults
-        @SuppressLint("Recycle") Cursor cursor = mDb.rawQuery(pair.first, pair.second);
+        RowCursor cursor = mDb.rawQuery(pair.first, pair.second);
         return new DBoxResults<>(mTableInfo, cursor);
     }
+
+    /**
+     * Get the results of the query, loaded page by page on demand,
+     * keeping at most 8 pages in memory.
+     *
+     * @param pageSize count of objects in a page, from 1 to 999
+     * @return paged results object
+     * @see DBoxPagedResults
+     */
+    public DBoxPagedResults<T> paged(int pageSize) {
+        return paged(pageSize, 8, null);
+    }
+
+    /**
+     * Get the results of the query, loaded page by page on demand.
+     *
+     * @param pageSize     count of objects in a page, from 1 to 999
+     * @param maxPageCount max count of pages kept in memory
+     * @param executor     executor to load pages in advance, or null to use a shared background thread
+     * @return paged results object
+     * @see DBoxPagedResults
+     */
+    public DBoxPagedResults<T> paged(int pageSize, int maxPageCount, Executor executor) {
+        return new DBoxPagedResults<>(mDb, mTableInfo, mCondition, ids(), pageSize, maxPageCount, executor);
+    }
+
+    /**
+     * Count objects in an object field of every result, e.g.
+     * {@code query.countRelated("courseList").get(student.getId())}.
+     * <p>
+     * It's done by a single "GROUP BY" query over the mapping table,
+     * without loading any object, which is much cheaper than
+     * getting the sizes of the loaded collections.
+     *
+     * @param field name of an instance field annotated with {@code @ObjectColumn}
+     * @return counts mapped from ids of the results
+     */
+    public DBoxCounts countRelated(String field) {
+        Pair<String, Object[]> pair = SQLBuilder.countRelated(mTableInfo, field, mCondition);
+        RowCursor cursor = mDb.rawQuery(pair.first, pair.second);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            int[] counts = new int[ids.length];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                counts[i] = cursor.getInt(1);
+            }
+            return new DBoxCounts(ids, counts);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get ids of the results, in the same order as {@link #results()}.
+     *
+     * @return ids
+     */
+    long[] ids() {
+        Pair<String, Object[]> pair = SQLBuilder.queryIds(mTableInfo, mCondition, mOrderBuilder, mRankColumn, mRankQuery);
+        RowCursor cursor = mDb.rawQuery(pair.first, pair.second);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            int n = 0;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                if (n == 0 || ids[n - 1] != id) {
+                    // Rows of the same object are always adjacent
+                    ids[n++] = id;
+                }
+            }
+            return Arrays.copyOf(ids, n);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Observe the results of the query.
+     * <p>
+     * The listener is called with the current results at once,
+     * and then every time a transaction that changes the table of the query,
+     * its mapping tables or tables of the objects it contains is committed.
+     * It is always called on a background thread, and changes committed
+     * while the query is waiting to be re-executed are delivered only once.
+     *
+     * @param listener listener
+     * @return subscription, used to stop observing
+     */
+    public DBoxSubscription observe(Listener<T> listener) {
+        QueryObserver<T> observer = new QueryObserver<>(this, mDb, mTableInfo, listener, null);
+        observer.start();
+        return observer;
+    }
+
+    /**
+     * Observe changes of the results of the query.
+     * <p>
+     * Like {@link #observe(Listener)}, but instead of the whole results,
+     * the listener receives which objects have been inserted, updated or removed,
+     * and only those inserted or updated are loaded. The first change set
+     * contains all current results as inserted.
+     *
+     * @param listener listener
+     * @return subscription, used to stop observing
+     */
+    public DBoxSubscription observeChanges(ChangeListener<T> listener) {
+        QueryObserver<T> observer = new QueryObserver<>(this, mDb, mTableInfo, null, listener);
+        observer.start();
+        return observer;
+    }
+
+    /**
+     * Receive results of an observed query.
+     *
+     * @param <T> type of result object
+     */
+    public interface Listener<T> {
+        void onChanged(List<T> results);
+    }
+
+    /**
+     * Receive change sets of an observed query.
+     *
+     * @param <T> type of result object
+     */
+    public interface ChangeListener<T> {
+        void onChanged(DBoxChangeSet<T> changeSet);
+    }
 }
@@ -16,19 +16,19 @@
 
 package im.r_c.android.dbox;
 
-import android.database.Cursor;
-import android.util.SparseArray;
-import android.util.SparseBooleanArray;
-import android.util.SparseIntArray;
-
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * DBox
@@ -46,10 +46,36 @@ import java.util.Map;
  * @param <T> type of object
  */
 public class DBoxResults<T> implements Iterable<T> {
+    /**
+     * Max count of objects loaded together by {@link #getAll()} and {@link #getSome(int, int)},
+     * whose related objects are loaded by a query per class.
+     */
+    private static final int BATCH_SIZE = 256;
+
     private TableInfo mTableInfo;
-    private Cursor mCursor;
+    private RowCursor mCursor;
+    private ResultsIterator<T> mIterator;
 
-    DBoxResults(TableInfo tableInfo, Cursor cursor) {
+    /**
+     * Cursor positions where the objects start,
+     * built incrementally as far as the objects are accessed.
+     * <p>
+     * Index: index of object
+     * Value: cursor position of the first row of the object
+     */
+    private int[] mObjectStarts = new int[16];
+
+    /**
+     * Count of objects whose start positions are known.
+     */
+    private int mIndexedCount;
+
+    /**
+     * Whether all objects are indexed.
+     */
+    private boolean mIndexComplete;
+
+    DBoxResults(TableInfo tableInfo, RowCursor cursor) {
         mTableInfo = tableInfo;
         mCursor = cursor;
     }
@@ -123,6 +149,20 @@ public class DBoxResults<T> implements Iterable<T> {
         return list;
     }
 
+    /**
+     * Get objects of the results that satisfy a predicate.
+     * <p>
+     * The results object can't be used again after this method called.
+     *
+     * @param predicate predicate
+     * @return list of objects or empty list if no results
+     */
+    public List<T> some(DBoxPredicate predicate) {
+        List<T> list = getSome(predicate);
+        close();
+        return list;
+    }
+
     /**
      * Get all objects of the results.
      * <p>
@@ -136,6 +176,28 @@ public class DBoxResults<T> implements Iterable<T> {
         return list;
     }
 
+    /**
+     * Pass every object of the results to a consumer, filling objects
+     * taken from a pool in place, see {@link #getOne(int, Object)}.
+     * <p>
+     * The results object can't be used again after this method called.
+     *
+     * @param consumer consumer of the objects
+     * @param pool     supplier of objects to fill, which may return null to create a new one
+     */
+    public void forEach(Consumer<T> consumer, Supplier<T> pool) {
+        try {
+            if (moveToFirst()) {
+                ResultsIterator<T> iter = getIterator();
+                while (iter.hasNext()) {
+                    consumer.accept(iter.next(pool.get()));
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
     /**
      * Get the first object of the results.
      * <p>
@@ -188,6 +250,31 @@ public class DBoxResults<T> implements Iterable<T> {
         return t;
     }
 
+    /**
+     * Get the object at the specific index of the results,
+     * filling an existing object in place instead of creating a new one,
+     * e.g. to rebind a view model while scrolling through a long list.
+     * <p>
+     * All fields are set as if the object were newly loaded, except that
+     * lists of object fields are cleared and refilled (so they must be mutable),
+     * and arrays of object fields are refilled if their lengths are unchanged.
+     * Objects in object fields are still newly loaded.
+     * <p>
+     * The results object can be used again after this method called,
+     * and {@link #close()} must be called if it won't be used again.
+     *
+     * @param index index
+     * @param reuse object to fill, or null to create a new one
+     * @return the filled object, or null if no results
+     */
+    public T getOne(int index, T reuse) {
+        T t = null;
+        if (moveTo(index)) {
+            t = getIterator().next(reuse);
+        }
+        return t;
+    }
+
     /**
      * Get some objects of the results.
      * <p>
@@ -201,9 +288,9 @@ public class DBoxResults<T> implements Iterable<T> {
     public List<T> getSome(int start, int count) {
         List<T> list = new ArrayList<>();
         if (moveTo(start)) {
-            Iterator<T> iter = iterator();
-            for (int i = 0; i < count && iter.hasNext(); i++) {
-                list.add(iter.next());
+            ResultsIterator<T> iter = getIterator();
+            while (list.size() < count && iter.hasNext()) {
+                iter.next(list, Math.min(count - list.size(), BATCH_SIZE));
             }
         }
         return list;
@@ -221,10 +308,55 @@ public class DBoxResults<T> implements Iterable<T> {
     public List<T> getSome(Filter<T> filter) {
         List<T> list = new ArrayList<>();
         if (moveToFirst()) {
-            for (T t : this) {
-                if (filter.filter(t)) {
-                    list.add(t);
+            ResultsIterator<T> iter = getIterator();
+            List<T> batch = new ArrayList<>();
+            while (iter.hasNext()) {
+                iter.next(batch, BATCH_SIZE);
+                for (T t : batch) {
+                    if (filter.filter(t)) {
+                        list.add(t);
+                    }
+                }
+                batch.clear();
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get objects of the results that satisfy a predicate.
+     * <p>
+     * The predicate is evaluated on raw values of the cursor
+     * before any object is created, so rejected objects and their relations
+     * are never loaded. Prefer {@link DBoxQuery#filter(DBoxPredicate)}
+     * to filter in SQL if the query can still be changed.
+     * <p>
+     * The results object can be used again after this method called,
+     * and {@link #close()} must be called if it won't be used again.
+     *
+     * @param predicate predicate
+     * @return list of objects or empty list if no results
+     */
+    public List<T> getSome(DBoxPredicate predicate) {
+        List<T> list = new ArrayList<>();
+        if (moveToFirst()) {
+            // Find the accepted objects first, so that they can be loaded in batches
+            // even if rejected ones lie between them
+            DBoxPredicate.Matcher matcher = predicate.matcher(mTableInfo, mCursor);
+            ResultsIterator<T> iter = getIterator();
+            int[] starts = new int[16];
+            int acceptedCount = 0;
+            while (iter.hasNext()) {
+                if (matcher.matches()) {
+                    if (acceptedCount == starts.length) {
+                        starts = Arrays.copyOf(starts, starts.length * 2);
+                    }
+                    starts[acceptedCount++] = mCursor.getPosition();
                 }
+                skipObject();
+            }
+            for (int i = 0; i < acceptedCount; i += BATCH_SIZE) {
+                iter.next(list, starts, i, Math.min(BATCH_SIZE, acceptedCount - i));
             }
         }
         return list;
@@ -241,13 +373,28 @@ public class DBoxResults<T> implements Iterable<T> {
     public List<T> getAll() {
         List<T> list = new ArrayList<>();
         if (moveToFirst()) {
-            for (T t : this) {
-                list.add(t);
+            ResultsIterator<T> iter = getIterator();
+            while (iter.hasNext()) {
+                iter.next(list, BATCH_SIZE);
             }
         }
         return list;
     }
 
+    /**
+     * Get the count of objects of the results, which may be less than
+     * the count of rows, because an object with object fields takes a row
+     * per object it contains.
+     * <p>
+     * The results object can be used again after this method called.
+     *
+     * @return count of objects
+     */
+    public int size() {
+        indexUntil(Integer.MAX_VALUE);
+        return mIndexedCount;
+    }
+
     /**
      * Close the results object.
      * <p>
@@ -275,6 +422,12 @@ public class DBoxResults<T> implements Iterable<T> {
      * @return succeeded or not
      */
     private boolean moveToLast() {
+        if (mIndexComplete) {
+            return mIndexedCount > 0 && mCursor.moveToPosition(mObjectStarts[mIndexedCount - 1]);
+        }
+
+        // Walk back through the rows of the last object,
+        // which is cheaper than indexing all objects before it.
         if (mCursor.moveToLast()) {
             long lastId, id = getId();
             do {
@@ -296,28 +449,66 @@ public class DBoxResults<T> implements Iterable<T> {
      * @return succeeded or not
      */
     private boolean moveTo(int index) {
-        if (mCursor.moveToFirst()) {
-            long lastId, id = getId();
-            boolean found = true;
-            for (int i = 0; i < index; i++) {
-                do {
-                    if (!mCursor.moveToNext()) {
-                        found = false;
-                        break;
-                    }
-                    lastId = id;
-                    id = getId();
-                } while (lastId == id);
+        if (index < 0) {
+            return false;
+        }
+        indexUntil(index);
+        return index < mIndexedCount && mCursor.moveToPosition(mObjectStarts[index]);
+    }
 
-                if (!found) {
-                    break;
-                }
+    /**
+     * Index start positions of objects until the object at the specific index,
+     * or until the end of the results.
+     * <p>
+     * Indexing continues from the last object indexed, and only the id column is read,
+     * so each row is visited about once however the objects are accessed.
+     *
+     * @param index index of object
+     */
+    private void indexUntil(int index) {
+        if (mIndexComplete || index < mIndexedCount) {
+            return;
+        }
+        if (mIndexedCount == 0) {
+            if (!mCursor.moveToFirst()) {
+                mIndexComplete = true;
+                return;
             }
-            if (found) {
-                return true;
+            addObjectStart(0);
+        } else {
+            mCursor.moveToPosition(mObjectStarts[mIndexedCount - 1]);
+        }
+
+        long lastId = getId();
+        while (index >= mIndexedCount) {
+            if (!mCursor.moveToNext()) {
+                mIndexComplete = true;
+                break;
+            }
+            long id = getId();
+            if (id != lastId) {
+                // Rows of the same object are always adjacent
+                addObjectStart(mCursor.getPosition());
+                lastId = id;
             }
         }
-        return false;
+    }
+
+    private void addObjectStart(int position) {
+        if (mIndexedCount == mObjectStarts.length) {
+            mObjectStarts = Arrays.copyOf(mObjectStarts, mObjectStarts.length * 2);
+        }
+        mObjectStarts[mIndexedCount++] = position;
+    }
+
+    /**
+     * Move the cursor to the beginning of the next object.
+     */
+    private void skipObject() {
+        long id = getId();
+        while (mCursor.moveToNext() && getId() == id) {
+            // Skip rows of the same object
+        }
     }
 
     /**
@@ -326,26 +517,183 @@ public class DBoxResults<T> implements Iterable<T> {
      * @return id
      */
     private long getId() {
-        return mCursor.getLong(mCursor.getColumnIndex(TableInfo.COLUMN_ID));
+        return mCursor.getLong(getIterator().mIdColumnIdx);
     }
 
     @Override
     public Iterator<T> iterator() {
-        return new ResultsIterator<>(mTableInfo, mCursor);
+        return getIterator();
+    }
+
+    private ResultsIterator<T> getIterator() {
+        // The iterator keeps no position of its own but only scratch structures,
+        // so one is enough for the cursor.
+        if (mIterator == null) {
+            mIterator = new ResultsIterator<>(mTableInfo, mCursor);
+        }
+        return mIterator;
     }
 
     /**
      * Implement an iterator class for lazy loading.
+     * <p>
+     * Column indexes and all scratch structures are made once for the cursor,
+     * and reused for every object, so hydrating an object only allocates
+     * the object itself, its collections and its snapshot.
      *
      * @param <T> type of object
      */
     private static class ResultsIterator<T> implements Iterator<T> {
+        /**
+         * Placeholder in object caches for objects being loaded or not found.
+         */
+        private static final Object NOT_FOUND = new Object();
+
         private TableInfo mTableInfo;
-        private Cursor mCursor;
+        private RowCursor mCursor;
+
+        /**
+         * The cursor if metrics are registered, otherwise null.
+         */
+        private MetricsStorage.MeteredCursor mMeteredCursor;
+
+        private Constructor<?> mConstructor;
+
+        private int mIdColumnIdx;
+
+        // Normal columns and their indexes in the cursor
+        private ColumnInfo[] mColumns;
+        private int[] mColumnIdxArr;
+
+        // Index: normal column
+        // Value: index of the top level embedded field in mEmbeddedFields, or -1
+        private int[] mEmbeddedIdxArr;
+
+        // Top level embedded fields, and if any of their columns is not NULL
+        private Field[] mEmbeddedFields;
+        private boolean[] mEmbeddedNotNullArr;
+
+        // Object fields and indexes of their mapping columns in the cursor,
+        // the index columns are -1 for fields of single object
+        private ObjectColumnInfo[] mObjectColumns;
+        private int[] mIdAColumnIdxArr;
+        private int[] mIdBColumnIdxArr;
+        private int[] mIndexColumnIdxArr;
+
+        // Index: object field
+        // Value: index of the element class in mBoxArr and mObjCacheArr
+        private int[] mClassIdxArr;
+
+        // Index: element class
+        // Value: the class
+        private Class<?>[] mElemClassArr;
+
+        // Index: element class
+        // Value: DBox object, created at first use
+        private DBox<?>[] mBoxArr;
+
+        // Index: element class
+        // Value: id field of the class, got at first use
+        private Field[] mIdFieldArr;
 
-        private ResultsIterator(TableInfo tableInfo, Cursor cursor) {
+        // Index: element class
+        // Value: any object of the class is to be loaded for the current batch
+        private boolean[] mClassPendingArr;
+
+        // Index: element class
+        // Value: objects already loaded for the current batch, keyed by id,
+        // for avoiding creating an object with same id for more than one time
+        private LongObjectMap<Object>[] mObjCacheArr;
+
+        // Index: object field
+        // Value: processed max index of the corresponding list of the current object
+        private int[] mMaxIndexArr;
+
+        // Index: object field
+        // Value: single object of the field of the current object is found or not
+        private boolean[] mSingleObjFieldArr;
+
+        // Index: object field
+        // Value: ids of the objects of the field of all objects in the current batch,
+        // in order, and their count, collected before the objects are loaded
+        private long[][] mIdBArr;
+        private int[] mIdBCountArr;
+
+        // Index: object field, then object in the current batch
+        // Value: end of the ids of the object in mIdBArr, the start is the end of the previous object
+        private int[][] mIdBEndArr;
+
+        // Objects of the current batch
+        private Object[] mBatch = new Object[1];
+
+        @SuppressWarnings("unchecked")
+        private ResultsIterator(TableInfo tableInfo, RowCursor cursor) {
             mTableInfo = tableInfo;
             mCursor = cursor;
+            if (cursor instanceof MetricsStorage.MeteredCursor) {
+                mMeteredCursor = (MetricsStorage.MeteredCursor) cursor;
+            }
+
+            mIdColumnIdx = cursor.getColumnIndex(TableInfo.COLUMN_ID);
+
+            mColumns = tableInfo.mColumnMap.values().toArray(new ColumnInfo[tableInfo.mColumnMap.size()]);
+            mColumnIdxArr = new int[mColumns.length];
+            mEmbeddedIdxArr = new int[mColumns.length];
+            List<Field> embeddedFields = new ArrayList<>();
+            for (int i = 0; i < mColumns.length; i++) {
+                mColumnIdxArr[i] = cursor.getColumnIndex(mColumns[i].mName);
+                mEmbeddedIdxArr[i] = -1;
+                if (mColumns[i].mEmbeddedPath != null) {
+                    Field field = mColumns[i].mEmbeddedPath[0];
+                    if (!embeddedFields.contains(field)) {
+                        embeddedFields.add(field);
+                    }
+                    mEmbeddedIdxArr[i] = embeddedFields.indexOf(field);
+                }
+            }
+            mEmbeddedFields = embeddedFields.toArray(new Field[embeddedFields.size()]);
+            mEmbeddedNotNullArr = new boolean[mEmbeddedFields.length];
+
+            int objectColumnCount = tableInfo.mObjectColumnMap.size();
+            mObjectColumns = new ObjectColumnInfo[objectColumnCount];
+            if (objectColumnCount == 0) {
+                // The rest is only used for object fields, so skip making it
+                // for objects without any, e.g. most of the related objects of nested queries.
+                return;
+            }
+            mIdAColumnIdxArr = new int[objectColumnCount];
+            mIdBColumnIdxArr = new int[objectColumnCount];
+            mIndexColumnIdxArr = new int[objectColumnCount];
+            mClassIdxArr = new int[objectColumnCount];
+            List<Class<?>> elemClasses = new ArrayList<>();
+            int i = 0;
+            for (Map.Entry<String, ObjectColumnInfo> entry : tableInfo.mObjectColumnMap.entrySet()) {
+                String field = entry.getKey();
+                ObjectColumnInfo oci = entry.getValue();
+                mObjectColumns[i] = oci;
+                mIdAColumnIdxArr[i] = cursor.getColumnIndex(SQLBuilder.getMappingTableIdColumn(tableInfo.mName, field));
+                mIdBColumnIdxArr[i] = cursor.getColumnIndex(SQLBuilder.getMappingTableIdColumn(TableInfo.nameOf(oci.mElemClass), null));
+                mIndexColumnIdxArr[i] = oci.mType == ObjectColumnInfo.TYPE_OBJECT
+                        ? -1 : cursor.getColumnIndex(SQLBuilder.getMappingTableIndexColumn(tableInfo.mName, field));
+                int classIdx = elemClasses.indexOf(oci.mElemClass);
+                if (classIdx < 0) {
+                    classIdx = elemClasses.size();
+                    elemClasses.add(oci.mElemClass);
+                }
+                mClassIdxArr[i] = classIdx;
+                i++;
+            }
+
+            mElemClassArr = elemClasses.toArray(new Class<?>[elemClasses.size()]);
+            mBoxArr = new DBox<?>[elemClasses.size()];
+            mClassPendingArr = new boolean[elemClasses.size()];
+            mObjCacheArr = LongObjectMap.newArray(elemClasses.size());
+            mMaxIndexArr = new int[objectColumnCount];
+            mIdFieldArr = new Field[elemClasses.size()];
+            mSingleObjFieldArr = new boolean[objectColumnCount];
+            mIdBArr = new long[objectColumnCount][];
+            mIdBCountArr = new int[objectColumnCount];
+            mIdBEndArr = new int[objectColumnCount][1];
         }
 
         @Override
@@ -355,145 +703,266 @@ public class DBoxResults<T> implements Iterable<T> {
 
         @Override
         public T next() {
+            return next(null);
+        }
+
+        /**
+         * Load the object at the current position, and move to the next object.
+         *
+         * @param reuse object to fill, or null to create a new one
+         * @return the object, or null if failed
+         */
+        @SuppressWarnings("unchecked")
+        T next(T reuse) {
+            loadBatch(1, reuse);
+            T result = (T) mBatch[0];
+            mBatch[0] = null;
+            return result;
+        }
+
+        /**
+         * Load objects from the current position, and move to the object after them.
+         * <p>
+         * Related objects of all the objects are loaded together,
+         * see {@link #loadRelatedObjects()}.
+         *
+         * @param list  list to add the objects to, null for the ones failed to load
+         * @param count max count of objects to load
+         */
+        void next(List<T> list, int count) {
+            addBatch(list, loadBatch(null, 0, count, null));
+        }
+
+        /**
+         * Load objects starting at the specific cursor positions, like {@link #next(List, int)}.
+         *
+         * @param list   list to add the objects to, null for the ones failed to load
+         * @param starts start positions of the objects
+         * @param offset index of the first position in starts
+         * @param count  count of objects to load
+         */
+        void next(List<T> list, int[] starts, int offset, int count) {
+            addBatch(list, loadBatch(starts, offset, count, null));
+        }
+
+        @SuppressWarnings("unchecked")
+        private void addBatch(List<T> list, int n) {
+            for (int k = 0; k < n; k++) {
+                list.add((T) mBatch[k]);
+                mBatch[k] = null;
+            }
+        }
+
+        private int loadBatch(int count, T reuse) {
+            return loadBatch(null, 0, count, reuse);
+        }
+
+        /**
+         * Load objects into {@link #mBatch}.
+         *
+         * @param starts start positions of the objects, or null to load from the current position
+         * @param offset index of the first position in starts
+         * @param count  max count of objects to load
+         * @param reuse  object to fill as the first one, or null to create a new one
+         * @return count of objects loaded, including the failed ones
+         */
+        private int loadBatch(int[] starts, int offset, int count, T reuse) {
+            if (mBatch.length < count) {
+                mBatch = new Object[count];
+            }
+            if (mObjectColumns.length > 0) {
+                Arrays.fill(mIdBCountArr, 0);
+                for (int i = 0; i < mIdBEndArr.length; i++) {
+                    if (mIdBEndArr[i].length < count) {
+                        mIdBEndArr[i] = new int[count];
+                    }
+                }
+                for (LongObjectMap<Object> objCache : mObjCacheArr) {
+                    objCache.clear();
+                }
+            }
+
+            int n = 0;
+            while (n < count && (starts == null ? hasNext() : mCursor.moveToPosition(starts[offset + n]))) {
+                mBatch[n] = readObject(n, n == 0 ? reuse : null);
+                n++;
+            }
+
+            if (mObjectColumns.length > 0) {
+                // In the loop before, we have collected ids of the objects of all object fields.
+                // Now let's load these objects and set them to those fields.
+                boolean ok = false;
+                try {
+                    loadRelatedObjects();
+                    ok = true;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                for (int k = 0; k < n; k++) {
+                    if (mBatch[k] == null) {
+                        continue;
+                    }
+                    try {
+                        if (!ok) {
+                            throw new Exception();
+                        }
+                        setObjectFields(mBatch[k], k, k == 0 ? reuse : null);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        mBatch[k] = null;
+                    }
+                }
+            }
+
+            if (mMeteredCursor != null) {
+                for (int k = 0; k < n; k++) {
+                    if (mBatch[k] != null) {
+                        mMeteredCursor.mObjectCount++;
+                    }
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Read normal fields of the object at the current position,
+         * collect ids of its related objects, and move to the next object.
+         *
+         * @param batchIdx index of the object in the current batch
+         * @param reuse    object to fill, or null to create a new one
+         * @return the object, or null if failed
+         */
+        @SuppressWarnings("unchecked")
+        private T readObject(int batchIdx, T reuse) {
+            int start = mCursor.getPosition();
             T result = null;
             boolean ok = false;
 
             try {
-                Constructor<?> constructor = mTableInfo.mClass.getDeclaredConstructor();
-                if (!constructor.isAccessible()) {
-                    constructor.setAccessible(true);
+                if (reuse != null) {
+                    result = reuse;
+                } else {
+                    if (mConstructor == null) {
+                        mConstructor = mTableInfo.mClass.getDeclaredConstructor();
+                        if (!mConstructor.isAccessible()) {
+                            mConstructor.setAccessible(true);
+                        }
+                    }
+                    result = (T) mConstructor.newInstance();
                 }
-                result = (T) constructor.newInstance();
 
                 // Set normal fields.
                 // These fields are all the same as long as the id is the same,
                 // no matter which position the cursor is,
                 // so just read the first position.
-                for (ColumnInfo ci : mTableInfo.mColumnMap.values()) {
-                    int columnIdx = mCursor.getColumnIndex(ci.mName);
+                Arrays.fill(mEmbeddedNotNullArr, false);
+                for (int i = 0; i < mColumns.length; i++) {
+                    ColumnInfo ci = mColumns[i];
+                    int columnIdx = mColumnIdxArr[i];
+                    Object holder = result;
+                    if (ci.mEmbeddedPath != null) {
+                        if (mCursor.isNull(columnIdx)) {
+                            // Leave the embedded object null if all its columns are NULL,
+                            // or clear the field if the object is reused.
+                            holder = reuse != null ? ci.holderOf(result) : null;
+                            if (holder != null) {
+                                clearField(ci, holder);
+                            }
+                            continue;
+                        }
+                        holder = ci.holderOrCreate(result);
+                        mEmbeddedNotNullArr[mEmbeddedIdxArr[i]] = true;
+                    }
                     switch (ci.mType) {
                         case ColumnInfo.TYPE_BOOLEAN:
-                            ci.mField.setBoolean(result, mCursor.getInt(columnIdx) != 0);
+                            ci.mField.setBoolean(holder, mCursor.getInt(columnIdx) != 0);
                             break;
                         case ColumnInfo.TYPE_BYTE:
-                            ci.mField.setByte(result, (byte) mCursor.getInt(columnIdx));
+                            ci.mField.setByte(holder, (byte) mCursor.getInt(columnIdx));
                             break;
                         case ColumnInfo.TYPE_SHORT:
-                            ci.mField.setShort(result, mCursor.getShort(columnIdx));
+                            ci.mField.setShort(holder, mCursor.getShort(columnIdx));
                             break;
                         case ColumnInfo.TYPE_INT:
-                            ci.mField.setInt(result, mCursor.getInt(columnIdx));
+                            ci.mField.setInt(holder, mCursor.getInt(columnIdx));
                             break;
                         case ColumnInfo.TYPE_LONG:
-                            ci.mField.setLong(result, mCursor.getLong(columnIdx));
+                            ci.mField.setLong(holder, mCursor.getLong(columnIdx));
                             break;
                         case ColumnInfo.TYPE_DATE:
-                            ci.mField.set(result, new Date(mCursor.getLong(columnIdx)));
+                            ci.mField.set(holder, new Date(mCursor.getLong(columnIdx)));
                             break;
                         case ColumnInfo.TYPE_FLOAT:
-                            ci.mField.setFloat(result, mCursor.getFloat(columnIdx));
+                            ci.mField.setFloat(holder, mCursor.getFloat(columnIdx));
                             break;
                         case ColumnInfo.TYPE_DOUBLE:
-                            ci.mField.setDouble(result, mCursor.getDouble(columnIdx));
+                            ci.mField.setDouble(holder, mCursor.getDouble(columnIdx));
                             break;
                         case ColumnInfo.TYPE_STRING:
-                            ci.mField.set(result, mCursor.getString(columnIdx));
+                            ci.mField.set(holder, mCursor.getString(columnIdx));
                             break;
                         case ColumnInfo.TYPE_BYTE_ARRAY:
-                            ci.mField.set(result, mCursor.getBlob(columnIdx));
+                            ci.mField.set(holder, mCursor.getBlob(columnIdx));
+                            break;
+                        case ColumnInfo.TYPE_INT_ARRAY:
+                        case ColumnInfo.TYPE_LONG_ARRAY:
+                        case ColumnInfo.TYPE_FLOAT_ARRAY:
+                        case ColumnInfo.TYPE_DOUBLE_ARRAY:
+                        case ColumnInfo.TYPE_STRING_LIST:
+                            ci.mField.set(holder, BlobCodec.decode(ci.mType, mCursor.getBlob(columnIdx)));
+                            break;
+                        case ColumnInfo.TYPE_CONVERTED:
+                            ci.mField.set(holder, DBoxConverters.read(mCursor, columnIdx, ci.mConverter));
                             break;
                     }
                 }
 
-                // Index: tableA_field id column index
-                // Value: processed max index of the corresponding list
-                SparseIntArray maxIndexArr = new SparseIntArray();
-
-                // Index: tableA_field id column index
-                // Value: single object of the field is set or not
-                SparseBooleanArray singleObjFieldArr = new SparseBooleanArray();
-
-                // Index: tableA_field id column index
-                // Value: list object of the field
-                SparseArray<List<Object>> listFieldArr = new SparseArray<>();
+                if (reuse != null) {
+                    for (int i = 0; i < mEmbeddedFields.length; i++) {
+                        if (!mEmbeddedNotNullArr[i]) {
+                            mEmbeddedFields[i].set(result, null);
+                        }
+                    }
+                }
 
-                // Index: tableB id column index
-                // Value: DBox object
-                SparseArray<DBox<?>> boxArr = new SparseArray<>();
+                long lastId, idA = mCursor.getLong(mIdColumnIdx);
 
-                // This map is for avoiding creating an object with same id for more than one time.
-                // Key: table name + "#" + id, e.g. "Student#1"
-                // Value: cached object
-                Map<String, Object> objCache = new HashMap<>();
+                if (mObjectColumns.length > 0) {
+                    Arrays.fill(mMaxIndexArr, -1);
+                    Arrays.fill(mSingleObjFieldArr, false);
+                }
 
-                long lastId, idA = mCursor.getLong(mCursor.getColumnIndex(TableInfo.COLUMN_ID));
                 do {
-                    for (Map.Entry<String, ObjectColumnInfo> entry : mTableInfo.mObjectColumnMap.entrySet()) {
-                        String field = entry.getKey();
-
-                        int idAColIdx = mCursor.getColumnIndex(SQLBuilder.getMappingTableIdColumn(mTableInfo.mName, field));
-                        if (mCursor.getLong(idAColIdx) <= 0) {
+                    for (int i = 0; i < mObjectColumns.length; i++) {
+                        if (mCursor.getLong(mIdAColumnIdxArr[i]) <= 0) {
                             // This cursor position is not for current field
                             continue;
                         }
 
-                        ObjectColumnInfo oci = entry.getValue();
-                        String tableB = TableInfo.nameOf(oci.mElemClass);
-                        int idBColIdx = mCursor.getColumnIndex(SQLBuilder.getMappingTableIdColumn(tableB, null));
-                        long idB = mCursor.getLong(idBColIdx);
+                        ObjectColumnInfo oci = mObjectColumns[i];
+                        long idB = mCursor.getLong(mIdBColumnIdxArr[i]);
 
                         if (oci.mType == ObjectColumnInfo.TYPE_OBJECT) {
                             // Field of single object, only need to be set once
-                            if (singleObjFieldArr.get(idAColIdx)) {
+                            if (mSingleObjFieldArr[i]) {
                                 // The field has been set
                                 continue;
                             }
 
-                            String objKey = tableB + "#" + idB;
-                            Object obj = objCache.get(objKey);
-                            if (obj != null) {
-                                // Hit object cache
-                                oci.mField.set(result, obj);
-                            } else {
-                                // Get DBox object for recursively query
-                                DBox<?> box = getOrCreateBox(boxArr, oci.mElemClass, idBColIdx);
-                                // Recursively query the object
-                                obj = box.find(new DBoxCondition().equalTo(TableInfo.COLUMN_ID, "" + idB)).results().first();
-                                oci.mField.set(result, obj);
-                                objCache.put(objKey, obj);
-                            }
-                            singleObjFieldArr.put(idAColIdx, true);
+                            addRelatedId(i, idB);
+                            mSingleObjFieldArr[i] = true;
                         } else {
-                            int indexColIdx = mCursor.getColumnIndex(SQLBuilder.getMappingTableIndexColumn(mTableInfo.mName, field));
-                            int index = mCursor.getInt(indexColIdx);
-                            if (index <= maxIndexArr.get(idAColIdx, -1)) {
+                            int index = mCursor.getInt(mIndexColumnIdxArr[i]);
+                            if (index <= mMaxIndexArr[i]) {
                                 // The object has been added to the list
                                 continue;
                             }
 
-                            // The field is type of Array or List, then put the list in a SparseArray.
-                            // We will set them to the corresponding fields later.
-                            List<Object> list = listFieldArr.get(idAColIdx);
-                            if (list == null) {
-                                list = new ArrayList<>();
-                                listFieldArr.put(idAColIdx, list);
-                            }
-
-                            String objKey = tableB + "#" + idB;
-                            Object obj = objCache.get(objKey);
-                            if (obj != null) {
-                                // Hit object cache
-                                list.add(obj);
-                            } else {
-                                // Get DBox object for recursively query
-                                DBox<?> box = getOrCreateBox(boxArr, oci.mElemClass, idBColIdx);
-                                // Recursively query the object
-                                obj = box.find(new DBoxCondition().equalTo(TableInfo.COLUMN_ID, "" + idB)).results().first();
-                                list.add(obj);
-                                objCache.put(objKey, obj);
-                            }
+                            // The field is type of Array or List,
+                            // remember the ids in order and load the objects later.
+                            addRelatedId(i, idB);
 
-                            maxIndexArr.put(idAColIdx, index);
+                            mMaxIndexArr[i] = index;
                         }
                     }
 
@@ -501,61 +970,264 @@ public class DBoxResults<T> implements Iterable<T> {
                         break;
                     }
                     lastId = idA;
-                    idA = mCursor.getLong(mCursor.getColumnIndex(TableInfo.COLUMN_ID));
+                    idA = mCursor.getLong(mIdColumnIdx);
                 } while (lastId == idA);
 
-                // In the loop before, we have set all field with a single object,
-                // and made lists for all array and list fields.
-                // Now let's set these lists to those array and list fields.
-                for (Map.Entry<String, ObjectColumnInfo> entry : mTableInfo.mObjectColumnMap.entrySet()) {
-                    ObjectColumnInfo oci = entry.getValue();
+                ok = true;
+            } catch (Exception e) {
+                e.printStackTrace();
 
-                    if (oci.mType == ObjectColumnInfo.TYPE_OBJECT) {
-                        // We have set single object field, so skip it
-                        continue;
+                // Skip the rest rows of the object
+                if (mCursor.moveToPosition(start)) {
+                    long id = mCursor.getLong(mIdColumnIdx);
+                    while (mCursor.moveToNext() && mCursor.getLong(mIdColumnIdx) == id) {
+                        // Skip rows of the same object
                     }
+                }
+            } finally {
+                for (int i = 0; i < mObjectColumns.length; i++) {
+                    mIdBEndArr[i][batchIdx] = mIdBCountArr[i];
+                }
+            }
 
-                    String field = entry.getKey();
-                    int idAColIdx = mCursor.getColumnIndex(SQLBuilder.getMappingTableIdColumn(mTableInfo.mName, field));
-                    List<Object> list = listFieldArr.get(idAColIdx);
-                    if (list == null) {
-                        // No record of this field,
-                        // so make it an empty list.
-                        list = new ArrayList<>();
-                    }
+            if (ok) {
+                return result;
+            } else {
+                return null;
+            }
+        }
 
-                    if (oci.mType == ObjectColumnInfo.TYPE_OBJECT_LIST) {
-                        oci.mField.set(result, list);
-                    } else if (oci.mType == ObjectColumnInfo.TYPE_OBJECT_ARRAY) {
-                        if (list.size() != 0) {
-                            Object array = Array.newInstance(oci.mElemClass, list.size());
-                            for (int i = 0; i < list.size(); i++) {
-                                Array.set(array, i, list.get(i));
-                            }
-                            oci.mField.set(result, array);
+        /**
+         * Set object fields of an object of the current batch with the loaded related objects.
+         *
+         * @param result   the object
+         * @param batchIdx index of the object in the current batch
+         * @param reuse    the object if it is reused, otherwise null
+         */
+        @SuppressWarnings("unchecked")
+        private void setObjectFields(Object result, int batchIdx, T reuse) throws Exception {
+            for (int i = 0; i < mObjectColumns.length; i++) {
+                ObjectColumnInfo oci = mObjectColumns[i];
+                LongObjectMap<Object> objCache = mObjCacheArr[mClassIdxArr[i]];
+                long[] ids = mIdBArr[i];
+                int start = batchIdx == 0 ? 0 : mIdBEndArr[i][batchIdx - 1];
+                int end = mIdBEndArr[i][batchIdx];
+
+                if (oci.mType == ObjectColumnInfo.TYPE_OBJECT) {
+                    if (end > start) {
+                        oci.mField.set(result, getRelatedObject(objCache, ids[start]));
+                    } else if (reuse != null) {
+                        // Clear the field of the reused object
+                        oci.mField.set(result, null);
+                    }
+                } else if (oci.mType == ObjectColumnInfo.TYPE_OBJECT_LIST) {
+                    // Refill the list of the reused object,
+                    // or make a new list, which stays empty if no record of this field
+                    List<Object> list = reuse != null ? (List<Object>) oci.mField.get(result) : null;
+                    if (list != null) {
+                        list.clear();
+                    } else {
+                        list = new ArrayList<>(end - start);
+                    }
+                    for (int j = start; j < end; j++) {
+                        list.add(getRelatedObject(objCache, ids[j]));
+                    }
+                    oci.mField.set(result, list);
+                } else if (oci.mType == ObjectColumnInfo.TYPE_OBJECT_ARRAY) {
+                    if (end > start) {
+                        Object array = reuse != null ? oci.mField.get(result) : null;
+                        if (array == null || Array.getLength(array) != end - start) {
+                            array = Array.newInstance(oci.mElemClass, end - start);
                         }
+                        for (int j = start; j < end; j++) {
+                            Array.set(array, j - start, getRelatedObject(objCache, ids[j]));
+                        }
+                        oci.mField.set(result, array);
+                    } else if (reuse != null) {
+                        oci.mField.set(result, null);
                     }
                 }
+            }
+        }
 
-                ok = true;
-            } catch (Exception e) {
-                e.printStackTrace();
+        /**
+         * Set a field of a reused object to its default value.
+         */
+        private static void clearField(ColumnInfo ci, Object holder) throws IllegalAccessException {
+            switch (ci.mType) {
+                case ColumnInfo.TYPE_BOOLEAN:
+                    ci.mField.setBoolean(holder, false);
+                    break;
+                case ColumnInfo.TYPE_BYTE:
+                    ci.mField.setByte(holder, (byte) 0);
+                    break;
+                case ColumnInfo.TYPE_SHORT:
+                    ci.mField.setShort(holder, (short) 0);
+                    break;
+                case ColumnInfo.TYPE_INT:
+                    ci.mField.setInt(holder, 0);
+                    break;
+                case ColumnInfo.TYPE_LONG:
+                    ci.mField.setLong(holder, 0);
+                    break;
+                case ColumnInfo.TYPE_FLOAT:
+                    ci.mField.setFloat(holder, 0);
+                    break;
+                case ColumnInfo.TYPE_DOUBLE:
+                    ci.mField.setDouble(holder, 0);
+                    break;
+                default:
+                    ci.mField.set(holder, null);
+                    break;
             }
+        }
 
-            if (ok) {
-                return result;
+        /**
+         * Remember the id of an object of an object field, to be loaded later.
+         */
+        private void addRelatedId(int fieldIdx, long idB) {
+            long[] ids = mIdBArr[fieldIdx];
+            int count = mIdBCountArr[fieldIdx];
+            if (ids == null) {
+                ids = new long[8];
+                mIdBArr[fieldIdx] = ids;
+            } else if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                mIdBArr[fieldIdx] = ids;
+            }
+            ids[count] = idB;
+            mIdBCountArr[fieldIdx] = count + 1;
+        }
+
+        /**
+         * Load objects of all object fields of the objects in the current batch,
+         * by a query per element class (per {@link SQLBuilder#MAX_ARG_COUNT} ids).
+         * <p>
+         * If an executor is set by {@link DBox#setRelationExecutor(Executor)},
+         * objects of different classes are loaded concurrently, one task per class,
+         * and the first class is loaded on the current thread.
+         * Objects are always loaded on the current thread in a transaction,
+         * because other threads either can't see its changes or wait for it to end.
+         */
+        private void loadRelatedObjects() throws Exception {
+            int pendingCount = 0;
+            Arrays.fill(mClassPendingArr, false);
+            for (int i = 0; i < mObjectColumns.length; i++) {
+                if (mIdBCountArr[i] > 0 && !mClassPendingArr[mClassIdxArr[i]]) {
+                    mClassPendingArr[mClassIdxArr[i]] = true;
+                    pendingCount++;
+                }
+            }
+
+            int queryCount = 0;
+            Executor executor = DBox.getRelationExecutor();
+            if (executor == null || pendingCount < 2 || TransactionState.isInTransaction()) {
+                for (int classIdx = 0; classIdx < mClassPendingArr.length; classIdx++) {
+                    if (mClassPendingArr[classIdx]) {
+                        queryCount += loadRelatedObjects(classIdx);
+                    }
+                }
             } else {
-                return null;
+                List<FutureTask<Integer>> tasks = new ArrayList<>(pendingCount - 1);
+                int firstClassIdx = -1;
+                for (int classIdx = 0; classIdx < mClassPendingArr.length; classIdx++) {
+                    if (!mClassPendingArr[classIdx]) {
+                        continue;
+                    }
+                    if (firstClassIdx < 0) {
+                        firstClassIdx = classIdx;
+                        continue;
+                    }
+
+                    final int taskClassIdx = classIdx;
+                    FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return loadRelatedObjects(taskClassIdx);
+                        }
+                    });
+                    tasks.add(task);
+                    try {
+                        executor.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // It will be run below on the current thread
+                    }
+                }
+
+                queryCount += loadRelatedObjects(firstClassIdx);
+                for (FutureTask<Integer> task : tasks) {
+                    // Run the task here if no thread of the executor has started it yet,
+                    // so that waiting for it never depends on a free thread,
+                    // even if this thread is one of the executor.
+                    task.run();
+                    queryCount += task.get();
+                }
+            }
+
+            if (mMeteredCursor != null) {
+                mMeteredCursor.mRelationQueryCount += queryCount;
             }
         }
 
-        private DBox<?> getOrCreateBox(SparseArray<DBox<?>> array, Class<?> clz, int index) {
-            DBox<?> box = array.get(index);
+        /**
+         * Load objects of an element class that are not in the cache of the current batch,
+         * by "id IN (...)" queries, which load their own related objects in the same way.
+         * <p>
+         * Only touches structures of the class, so that different classes
+         * can be loaded on different threads.
+         *
+         * @param classIdx index of the element class
+         * @return count of queries
+         */
+        private int loadRelatedObjects(int classIdx) throws Exception {
+            LongObjectMap<Object> objCache = mObjCacheArr[classIdx];
+
+            // Get DBox object for recursively query
+            DBox<?> box = mBoxArr[classIdx];
             if (box == null) {
-                box = DBox.of(clz);
-                array.put(index, box);
+                box = DBox.of(mElemClassArr[classIdx]);
+                mBoxArr[classIdx] = box;
+                mIdFieldArr[classIdx] = TableInfo.of(mElemClassArr[classIdx]).mColumnMap.get(TableInfo.COLUMN_ID).mField;
+            }
+            Field idField = mIdFieldArr[classIdx];
+
+            // Collect ids not loaded yet, each one only once
+            List<String> idList = new ArrayList<>();
+            for (int i = 0; i < mObjectColumns.length; i++) {
+                if (mClassIdxArr[i] != classIdx) {
+                    continue;
+                }
+                long[] ids = mIdBArr[i];
+                for (int j = 0; j < mIdBCountArr[i]; j++) {
+                    if (objCache.get(ids[j]) == null) {
+                        objCache.put(ids[j], NOT_FOUND);
+                        idList.add(String.valueOf(ids[j]));
+                    }
+                }
             }
-            return box;
+
+            int queryCount = 0;
+            for (int start = 0; start < idList.size(); start += SQLBuilder.MAX_ARG_COUNT) {
+                List<String> chunk = idList.subList(start, Math.min(start + SQLBuilder.MAX_ARG_COUNT, idList.size()));
+                // Recursively query the objects
+                List<?> objects = box.find(new DBoxCondition().in(TableInfo.COLUMN_ID, chunk.toArray(new String[chunk.size()])))
+                        .results().all();
+                for (Object o : objects) {
+                    if (o != null) {
+                        objCache.put(idField.getLong(o), o);
+                    }
+                }
+                queryCount++;
+            }
+            return queryCount;
+        }
+
+        /**
+         * @return the loaded object of the id, or null if not found
+         */
+        private static Object getRelatedObject(LongObjectMap<Object> objCache, long id) {
+            Object o = objCache.get(id);
+            return o == NOT_FOUND ? null : o;
         }
     }
 
@@ -567,4 +1239,22 @@ public class DBoxResults<T> implements Iterable<T> {
     public interface Filter<T> {
         boolean filter(T t);
     }
+
+    /**
+     * Receive objects of the results one by one.
+     *
+     * @param <T> type of object
+     */
+    public interface Consumer<T> {
+        void accept(T t);
+    }
+
+    /**
+     * Supply objects to be filled, e.g. from a pool.
+     *
+     * @param <T> type of object
+     */
+    public interface Supplier<T> {
+        T get();
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * DBox
+ * Created by richard on 8/1/16.
+ */
+
+/**
+ * Records statements slower than a threshold, together with their query plans,
+ * into a bounded ring buffer, so that full table scans can be found
+ * e.g. from a debug screen.
+ * <p>
+ * Enabled by {@link DBox#setSlowQueryLog(DBoxSlowQueryLog)}.
+ * Queries are timed until their first page of rows is ready,
+ * excluding loading objects from the rows.
+ */
+public class DBoxSlowQueryLog {
+    private final AtomicReferenceArray<Entry> mEntries;
+    private final AtomicLong mRecordedCount = new AtomicLong();
+    private volatile long mThresholdNanos;
+
+    /**
+     * @param thresholdMillis statements taking this long or longer are recorded
+     * @param capacity        max count of entries kept, older ones are dropped
+     */
+    public DBoxSlowQueryLog(long thresholdMillis, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        mEntries = new AtomicReferenceArray<>(capacity);
+        setThresholdMillis(thresholdMillis);
+    }
+
+    public long getThresholdMillis() {
+        return mThresholdNanos / 1000000;
+    }
+
+    public void setThresholdMillis(long thresholdMillis) {
+        mThresholdNanos = thresholdMillis * 1000000;
+    }
+
+    boolean isSlow(long nanos) {
+        return nanos >= mThresholdNanos;
+    }
+
+    void record(Entry entry) {
+        long index = mRecordedCount.getAndIncrement();
+        mEntries.set((int) (index % mEntries.length()), entry);
+    }
+
+    /**
+     * @return count of entries recorded since created, including dropped ones
+     */
+    public long getRecordedCount() {
+        return mRecordedCount.get();
+    }
+
+    /**
+     * @return entries kept, the oldest first
+     */
+    public List<Entry> getEntries() {
+        int capacity = mEntries.length();
+        long end = mRecordedCount.get();
+        List<Entry> list = new ArrayList<>(capacity);
+        for (long i = Math.max(0, end - capacity); i < end; i++) {
+            Entry entry = mEntries.get((int) (i % capacity));
+            if (entry != null) {
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Remove all entries kept.
+     */
+    public void clear() {
+        for (int i = 0; i < mEntries.length(); i++) {
+            mEntries.set(i, null);
+        }
+    }
+
+    /**
+     * Dump entries kept, the oldest first.
+     *
+     * @return readable report
+     */
+    public String dump() {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        StringBuilder builder = new StringBuilder();
+        for (Entry entry : getEntries()) {
+            builder.append(format.format(new Date(entry.getTimeMillis())))
+                    .append(String.format(Locale.US, " %.1fms", entry.getNanos() / 1000000.0))
+                    .append(entry.hasMappingTableScan() ? " [MAPPING TABLE SCAN]" : "")
+                    .append('\n')
+                    .append("  ").append(entry.getSql()).append('\n')
+                    .append("  args: ").append(Arrays.toString(entry.getArgTypes())).append('\n');
+            for (String detail : entry.getPlan()) {
+                builder.append("  plan: ").append(detail).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A slow statement.
+     */
+    public static class Entry {
+        private final long mTimeMillis;
+        private final String mSql;
+        private final String[] mArgTypes;
+        private final long mNanos;
+        private final List<String> mPlan;
+        private final boolean mMappingTableScan;
+
+        Entry(String sql, String[] argTypes, long nanos, List<String> plan) {
+            mTimeMillis = System.currentTimeMillis();
+            mSql = sql;
+            mArgTypes = argTypes;
+            mNanos = nanos;
+            mPlan = Collections.unmodifiableList(plan);
+
+            boolean mappingTableScan = false;
+            for (String detail : plan) {
+                if (isMappingTableScan(detail)) {
+                    mappingTableScan = true;
+                    break;
+                }
+            }
+            mMappingTableScan = mappingTableScan;
+        }
+
+        /**
+         * Check if a line of query plan is a full scan of a mapping table,
+         * e.g. "SCAN TABLE _Student_Course_mapping" (or "SCAN _Student_Course_mapping"
+         * since SQLite 3.36.0), which means the lookup from objects to their relations
+         * can't use an index.
+         */
+        private static boolean isMappingTableScan(String detail) {
+            if (detail == null || !detail.startsWith("SCAN ")) {
+                return false;
+            }
+            String[] words = detail.split(" ");
+            String table = words.length > 2 && words[1].equals("TABLE") ? words[2] : words[1];
+            return table.startsWith("_") && table.endsWith("_mapping") && !detail.contains(" INDEX ");
+        }
+
+        /**
+         * @return time when the statement finished, in milliseconds since epoch
+         */
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /**
+         * @return SQL with "?" placeholders
+         */
+        public String getSql() {
+            return mSql;
+        }
+
+        /**
+         * @return SQLite storage classes of the arguments, e.g. "TEXT", "INTEGER", "NULL"
+         */
+        public String[] getArgTypes() {
+            return mArgTypes;
+        }
+
+        /**
+         * @return wall time of the statement
+         */
+        public long getNanos() {
+            return mNanos;
+        }
+
+        /**
+         * @return lines of "EXPLAIN QUERY PLAN" of the statement
+         */
+        public List<String> getPlan() {
+            return mPlan;
+        }
+
+        /**
+         * @return true if the plan scans a mapping table without index
+         */
+        public boolean hasMappingTableScan() {
+            return mMappingTableScan;
+        }
+    }
+}
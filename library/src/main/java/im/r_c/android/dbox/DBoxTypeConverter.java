@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package im.r_c.android.dbox;
+
+/**
+ * DBox
+ * Created by richard on 7/29/16.
+ */
+
+/**
+ * Converts a custom field type to one of the SQLite storage classes,
+ * so that fields of the type can be annotated with {@code @Column}.
+ * <p>
+ * Implement one of the nested interfaces instead of this one.
+ * {@link LongConverter} and {@link DoubleConverter} work on primitive values,
+ * so nothing is boxed when reading or writing the field.
+ * <p>
+ * Converters are registered by {@link DBox#init(android.content.Context, String, DBoxTypeConverter[])}.
+ * Null field values are always stored as NULL and never passed to a converter.
+ *
+ * @param <T> field type
+ */
+public interface DBoxTypeConverter<T> {
+    /**
+     * Get the field type that the converter handles.
+     *
+     * @return field type
+     */
+    Class<T> getType();
+
+    /**
+     * Stores values as INTEGER.
+     */
+    interface LongConverter<T> extends DBoxTypeConverter<T> {
+        long toLong(T value);
+
+        T fromLong(long value);
+    }
+
+    /**
+     * Stores values as REAL.
+     */
+    interface DoubleConverter<T> extends DBoxTypeConverter<T> {
+        double toDouble(T value);
+
+        T fromDouble(double value);
+    }
+
+    /**
+     * Stores values as TEXT.
+     */
+    interface StringConverter<T> extends DBoxTypeConverter<T> {
+        String toText(T value);
+
+        T fromText(String value);
+    }
+
+    /**
+     * Stores values as BLOB.
+     */
+    interface BlobConverter<T> extends DBoxTypeConverter<T> {
+        byte[] toBlob(T value);
+
+        T fromBlob(byte[] value);
+    }
+}
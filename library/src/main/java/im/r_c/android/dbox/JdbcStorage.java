@@ -0,0 +1,580 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package im.r_c.android.dbox;
+
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DBox
+ * Created by richard on 7/30/16.
+ */
+
+/**
+ * Storage on a JDBC connection to a SQLite database, e.g. one opened by sqlite-jdbc,
+ * so that DBox can run on a plain JVM.
+ * <p>
+ * The connection is shared by all threads. A transaction holds it
+ * until the outermost one ends, like {@code SQLiteDatabase} does,
+ * and rows of a query are read into memory before it returns.
+ */
+class JdbcStorage implements Storage {
+    private final Connection mConnection;
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private int mDepth;
+    private boolean mSuccessful;
+    private boolean mFailed;
+
+    JdbcStorage(Connection connection) {
+        mConnection = connection;
+    }
+
+    @Override
+    public void execSQL(String sql) {
+        execSQL(sql, null);
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] args) {
+        mLock.lock();
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                bind(statement, args);
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public RowCursor rawQuery(String sql, Object[] args) {
+        mLock.lock();
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                bind(statement, args);
+                // Some statements return no result set at all rather than an empty one,
+                // e.g. "PRAGMA table_info" of a table that doesn't exist
+                if (!statement.execute()) {
+                    return new JdbcCursor(new String[0], new ArrayList<Object[]>());
+                }
+                ResultSet rs = statement.getResultSet();
+                try {
+                    ResultSetMetaData meta = rs.getMetaData();
+                    String[] columnNames = new String[meta.getColumnCount()];
+                    for (int i = 0; i < columnNames.length; i++) {
+                        columnNames[i] = meta.getColumnLabel(i + 1);
+                    }
+                    List<Object[]> rows = new ArrayList<>();
+                    while (rs.next()) {
+                        Object[] row = new Object[columnNames.length];
+                        for (int i = 0; i < row.length; i++) {
+                            row[i] = rs.getObject(i + 1);
+                        }
+                        rows.add(row);
+                    }
+                    return new JdbcCursor(columnNames, rows);
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Statement compileStatement(String sql) {
+        mLock.lock();
+        try {
+            return new JdbcStatement(mConnection.prepareStatement(sql));
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public long insert(String table, RowValues values) {
+        return insert("INSERT", table, values);
+    }
+
+    private long insert(String verb, String table, RowValues values) {
+        StringBuilder sqlBuilder = new StringBuilder(verb).append(" INTO ").append(table);
+        Object[] args = new Object[values.size()];
+        if (args.length == 0) {
+            sqlBuilder.append(" DEFAULT VALUES");
+        } else {
+            StringBuilder placeholderBuilder = new StringBuilder();
+            int i = 0;
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                sqlBuilder.append(i == 0 ? " (" : ", ").append(entry.getKey());
+                placeholderBuilder.append(i == 0 ? "?" : ", ?");
+                args[i++] = entry.getValue();
+            }
+            sqlBuilder.append(") VALUES (").append(placeholderBuilder).append(")");
+        }
+
+        // Like SQLiteDatabase.insert(), return -1 instead of throwing
+        Statement statement = null;
+        try {
+            statement = compileStatement(sqlBuilder.toString());
+            DBUtils.bindArgs(statement, args);
+            return statement.executeInsert();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+
+    @Override
+    public int update(String table, RowValues values, String whereClause, Object[] whereArgs) {
+        return DBUtils.update(this, table, values, whereClause, whereArgs);
+    }
+
+    @Override
+    public int delete(String table, String whereClause, Object[] whereArgs) {
+        return DBUtils.delete(this, table, whereClause, whereArgs);
+    }
+
+    @Override
+    public boolean enableWriteAheadLogging() {
+        // Returns the new journal mode, which stays "memory" for in-memory databases
+        RowCursor cursor = rawQuery("PRAGMA journal_mode = WAL;", null);
+        try {
+            return cursor.moveToFirst() && "wal".equalsIgnoreCase(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void beginTransaction() {
+        mLock.lock();
+        try {
+            if (mDepth == 0) {
+                mConnection.setAutoCommit(false);
+                mFailed = false;
+            }
+            mDepth++;
+            mSuccessful = false;
+        } catch (SQLException e) {
+            mLock.unlock();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void beginReadTransaction() {
+        // Transactions of sqlite-jdbc are deferred by default,
+        // so they don't lock the database until the first write
+        beginTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        try {
+            if (!mSuccessful) {
+                // The whole transaction will be rolled back if any nested one fails
+                mFailed = true;
+            }
+            mSuccessful = false;
+            if (--mDepth == 0) {
+                if (mFailed) {
+                    mConnection.rollback();
+                } else {
+                    mConnection.commit();
+                }
+                mConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static void bind(PreparedStatement statement, Object[] args) throws SQLException {
+        if (args == null) {
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                statement.setNull(i + 1, Types.NULL);
+            } else if (arg instanceof byte[]) {
+                statement.setBytes(i + 1, (byte[]) arg);
+            } else if (arg instanceof Double || arg instanceof Float) {
+                statement.setDouble(i + 1, ((Number) arg).doubleValue());
+            } else if (arg instanceof Number) {
+                statement.setLong(i + 1, ((Number) arg).longValue());
+            } else if (arg instanceof Boolean) {
+                statement.setLong(i + 1, (Boolean) arg ? 1 : 0);
+            } else {
+                statement.setString(i + 1, arg.toString());
+            }
+        }
+    }
+
+    private class JdbcStatement implements Statement {
+        private final PreparedStatement mStatement;
+
+        JdbcStatement(PreparedStatement statement) {
+            mStatement = statement;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            try {
+                mStatement.setNull(index, Types.NULL);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            try {
+                mStatement.setLong(index, value);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            try {
+                mStatement.setDouble(index, value);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            try {
+                mStatement.setString(index, value);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            try {
+                mStatement.setBytes(index, value);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            mLock.lock();
+            try {
+                ResultSet rs = mStatement.executeQuery();
+                try {
+                    return rs.next() ? rs.getLong(1) : 0;
+                } finally {
+                    rs.close();
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public String simpleQueryForString() {
+            mLock.lock();
+            try {
+                ResultSet rs = mStatement.executeQuery();
+                try {
+                    return rs.next() ? rs.getString(1) : null;
+                } finally {
+                    rs.close();
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public long executeInsert() {
+            mLock.lock();
+            try {
+                if (mStatement.executeUpdate() <= 0) {
+                    return -1;
+                }
+                PreparedStatement lastId = mConnection.prepareStatement("SELECT last_insert_rowid();");
+                try {
+                    ResultSet rs = lastId.executeQuery();
+                    try {
+                        return rs.next() ? rs.getLong(1) : -1;
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    lastId.close();
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            mLock.lock();
+            try {
+                return mStatement.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                mStatement.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Rows of a query read into memory,
+     * converting values between types like SQLite does.
+     */
+    private static class JdbcCursor implements RowCursor {
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        private final String[] mColumnNames;
+        private final List<Object[]> mRows;
+        private int mPosition = -1;
+        private boolean mClosed;
+
+        JdbcCursor(String[] columnNames, List<Object[]> rows) {
+            mColumnNames = columnNames;
+            mRows = rows;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public int getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            if (position >= mRows.size()) {
+                mPosition = mRows.size();
+                return false;
+            }
+            if (position < 0) {
+                mPosition = -1;
+                return false;
+            }
+            mPosition = position;
+            return true;
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(mRows.size() - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(mPosition + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(mPosition - 1);
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mColumnNames.length;
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            // Like Cursor, the last column wins if names are duplicated
+            for (int i = mColumnNames.length - 1; i >= 0; i--) {
+                if (mColumnNames[i].equalsIgnoreCase(columnName)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            int index = getColumnIndex(columnName);
+            if (index < 0) {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return index;
+        }
+
+        private Object get(int columnIndex) {
+            return mRows.get(mPosition)[columnIndex];
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            Object value = get(columnIndex);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Double || value instanceof Float) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof Number) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            return get(columnIndex) == null;
+        }
+
+        @Override
+        public short getShort(int columnIndex) {
+            return (short) getLong(columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return (int) getLong(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            Object value = get(columnIndex);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value instanceof String) {
+                try {
+                    return (long) Double.parseDouble((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public float getFloat(int columnIndex) {
+            return (float) getDouble(columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            Object value = get(columnIndex);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof String) {
+                try {
+                    return Double.parseDouble((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            Object value = get(columnIndex);
+            if (value == null) {
+                return null;
+            } else if (value instanceof byte[]) {
+                return new String((byte[]) value, UTF_8);
+            }
+            return value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            Object value = get(columnIndex);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            return getString(columnIndex).getBytes(UTF_8);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.util.Arrays;
+
+/**
+ * DBox
+ * Created by richard on 8/1/16.
+ */
+
+/**
+ * A hash map from long keys to non-null values, with open addressing,
+ * so that neither keys nor entries are boxed.
+ * <p>
+ * Meant to be cleared and reused, clearing keeps the capacity.
+ *
+ * @param <V> type of value
+ */
+class LongObjectMap<V> {
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    LongObjectMap() {
+        mKeys = new long[16];
+        mValues = new Object[16];
+    }
+
+    /**
+     * Make an array of empty maps, since arrays of a generic type can't be created directly.
+     */
+    @SuppressWarnings("unchecked")
+    static <V> LongObjectMap<V>[] newArray(int length) {
+        LongObjectMap<V>[] maps = (LongObjectMap<V>[]) new LongObjectMap<?>[length];
+        for (int i = 0; i < length; i++) {
+            maps[i] = new LongObjectMap<>();
+        }
+        return maps;
+    }
+
+    /**
+     * @return value of the key, or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int mask = mKeys.length - 1;
+        for (int i = indexOf(key, mask); mValues[i] != null; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return (V) mValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a value, null values are ignored.
+     */
+    void put(long key, V value) {
+        if (value == null) {
+            return;
+        }
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+        int mask = mKeys.length - 1;
+        int i = indexOf(key, mask);
+        while (mValues[i] != null) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mValues, null);
+            mSize = 0;
+        }
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        mKeys = new long[keys.length * 2];
+        mValues = new Object[values.length * 2];
+        int mask = mKeys.length - 1;
+        for (int j = 0; j < keys.length; j++) {
+            if (values[j] == null) {
+                continue;
+            }
+            int i = indexOf(keys[j], mask);
+            while (mValues[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mKeys[i] = keys[j];
+            mValues[i] = values[j];
+        }
+    }
+
+    private static int indexOf(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DBox
+ * Created by richard on 7/31/16.
+ */
+
+/**
+ * Wraps a storage, reports every statement and transaction to {@link DBoxMetrics},
+ * and records slow statements into {@link DBoxSlowQueryLog}.
+ * <p>
+ * If neither is enabled, calls go straight to the wrapped storage
+ * without being timed.
+ */
+class MetricsStorage implements Storage {
+    private final Storage mStorage;
+    private final DBoxMetrics mMetrics;
+    private volatile DBoxSlowQueryLog mSlowQueryLog;
+
+    private final ThreadLocal<TransactionTimer> mTimer = new ThreadLocal<TransactionTimer>() {
+        @Override
+        protected TransactionTimer initialValue() {
+            return new TransactionTimer();
+        }
+    };
+
+    /**
+     * @param storage      storage to wrap
+     * @param metrics      metrics, or null
+     * @param slowQueryLog slow query log, or null
+     */
+    MetricsStorage(Storage storage, DBoxMetrics metrics, DBoxSlowQueryLog slowQueryLog) {
+        mStorage = storage;
+        mMetrics = metrics;
+        mSlowQueryLog = slowQueryLog;
+    }
+
+    void setSlowQueryLog(DBoxSlowQueryLog slowQueryLog) {
+        mSlowQueryLog = slowQueryLog;
+    }
+
+    @Override
+    public void execSQL(String sql) {
+        execSQL(sql, null);
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] args) {
+        DBoxSlowQueryLog log = mSlowQueryLog;
+        if (mMetrics == null && log == null) {
+            if (args == null) {
+                mStorage.execSQL(sql);
+            } else {
+                mStorage.execSQL(sql, args);
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (args == null) {
+            mStorage.execSQL(sql);
+        } else {
+            mStorage.execSQL(sql, args);
+        }
+        long nanos = System.nanoTime() - start;
+        if (mMetrics != null) {
+            mMetrics.onWrite(sql, args == null ? 0 : args.length, nanos, -1);
+        }
+        if (log != null && log.isSlow(nanos)) {
+            recordSlow(log, sql, args, nanos);
+        }
+    }
+
+    @Override
+    public RowCursor rawQuery(String sql, Object[] args) {
+        DBoxSlowQueryLog log = mSlowQueryLog;
+        if (mMetrics == null && log == null) {
+            return mStorage.rawQuery(sql, args);
+        }
+
+        long start = System.nanoTime();
+        RowCursor cursor = mStorage.rawQuery(sql, args);
+        if (log != null) {
+            // Queries may be run lazily until the count is needed
+            cursor.getCount();
+            long nanos = System.nanoTime() - start;
+            if (log.isSlow(nanos)) {
+                recordSlow(log, sql, args, nanos);
+            }
+        }
+        if (mMetrics != null) {
+            cursor = new MeteredCursor(cursor, mMetrics, sql, args == null ? 0 : args.length, start);
+        }
+        return cursor;
+    }
+
+    @Override
+    public Statement compileStatement(String sql) {
+        Statement statement = mStorage.compileStatement(sql);
+        if (mMetrics == null && mSlowQueryLog == null) {
+            return statement;
+        }
+        return new MeteredStatement(statement, sql);
+    }
+
+    @Override
+    public long insert(String table, RowValues values) {
+        DBoxSlowQueryLog log = mSlowQueryLog;
+        if (mMetrics == null && log == null) {
+            return mStorage.insert(table, values);
+        }
+
+        long start = System.nanoTime();
+        long id = mStorage.insert(table, values);
+        onWrite(log, insertSQL("INSERT", table, values), values, null, System.nanoTime() - start, id > 0 ? 1 : 0);
+        return id;
+    }
+
+    @Override
+    public int update(String table, RowValues values, String whereClause, Object[] whereArgs) {
+        DBoxSlowQueryLog log = mSlowQueryLog;
+        if (mMetrics == null && log == null) {
+            return mStorage.update(table, values, whereClause, whereArgs);
+        }
+
+        long start = System.nanoTime();
+        int count = mStorage.update(table, values, whereClause, whereArgs);
+        long nanos = System.nanoTime() - start;
+
+        StringBuilder builder = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        boolean first = true;
+        for (String column : values.keySet()) {
+            builder.append(first ? "" : ", ").append(column).append(" = ?");
+            first = false;
+        }
+        appendWhere(builder, whereClause);
+        onWrite(log, builder.toString(), values, whereArgs, nanos, count);
+        return count;
+    }
+
+    @Override
+    public int delete(String table, String whereClause, Object[] whereArgs) {
+        DBoxSlowQueryLog log = mSlowQueryLog;
+        if (mMetrics == null && log == null) {
+            return mStorage.delete(table, whereClause, whereArgs);
+        }
+
+        long start = System.nanoTime();
+        int count = mStorage.delete(table, whereClause, whereArgs);
+        long nanos = System.nanoTime() - start;
+
+        StringBuilder builder = new StringBuilder("DELETE FROM ").append(table);
+        appendWhere(builder, whereClause);
+        onWrite(log, builder.toString(), null, whereArgs, nanos, count);
+        return count;
+    }
+
+    @Override
+    public boolean enableWriteAheadLogging() {
+        return mStorage.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void beginTransaction() {
+        beginTransaction(false);
+    }
+
+    @Override
+    public void beginReadTransaction() {
+        beginTransaction(true);
+    }
+
+    private void beginTransaction(boolean readOnly) {
+        if (mMetrics == null) {
+            if (readOnly) {
+                mStorage.beginReadTransaction();
+            } else {
+                mStorage.beginTransaction();
+            }
+            return;
+        }
+
+        TransactionTimer timer = mTimer.get();
+        long start = System.nanoTime();
+        if (readOnly) {
+            mStorage.beginReadTransaction();
+        } else {
+            mStorage.beginTransaction();
+        }
+        if (timer.mDepth == 0) {
+            timer.mStart = start;
+            timer.mLockWait = System.nanoTime() - start;
+            timer.mFailed = false;
+        }
+        timer.mDepth++;
+        timer.mSuccessful = false;
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mStorage.setTransactionSuccessful();
+        if (mMetrics != null) {
+            mTimer.get().mSuccessful = true;
+        }
+    }
+
+    @Override
+    public void endTransaction() {
+        if (mMetrics == null) {
+            mStorage.endTransaction();
+            return;
+        }
+
+        TransactionTimer timer = mTimer.get();
+        try {
+            mStorage.endTransaction();
+        } finally {
+            if (!timer.mSuccessful) {
+                // The whole transaction will be rolled back if any nested one fails
+                timer.mFailed = true;
+            }
+            timer.mSuccessful = false;
+            if (--timer.mDepth == 0) {
+                mMetrics.onTransaction(timer.mLockWait, System.nanoTime() - timer.mStart, !timer.mFailed);
+            }
+        }
+    }
+
+    /**
+     * Report a write done by one of the convenience methods, e.g. {@link #insert(String, RowValues)}.
+     *
+     * @param values    values bound before the where clause, or null
+     * @param whereArgs arguments of the where clause, or null
+     */
+    private void onWrite(DBoxSlowQueryLog log, String sql, RowValues values, Object[] whereArgs, long nanos, int changedRowCount) {
+        int valueCount = values == null ? 0 : values.size();
+        int whereArgCount = whereArgs == null ? 0 : whereArgs.length;
+        if (mMetrics != null) {
+            mMetrics.onWrite(sql, valueCount + whereArgCount, nanos, changedRowCount);
+        }
+        if (log != null && log.isSlow(nanos)) {
+            Object[] args = new Object[valueCount + whereArgCount];
+            int i = 0;
+            if (values != null) {
+                for (String column : values.keySet()) {
+                    args[i++] = values.get(column);
+                }
+            }
+            if (whereArgs != null) {
+                System.arraycopy(whereArgs, 0, args, i, whereArgCount);
+            }
+            recordSlow(log, sql, args, nanos);
+        }
+    }
+
+    /**
+     * Record a slow statement with its query plan.
+     * <p>
+     * The plan is explained by the wrapped storage, so it is neither timed nor reported.
+     *
+     * @param args arguments the statement was run with, or null if none
+     */
+    private void recordSlow(DBoxSlowQueryLog log, String sql, Object[] args, long nanos) {
+        List<String> plan = new ArrayList<>();
+        try {
+            RowCursor c = mStorage.rawQuery("EXPLAIN QUERY PLAN " + sql, explainArgsOf(args));
+            try {
+                // The last column is "detail", whatever the version of SQLite is
+                int detailIdx = c.getColumnCount() - 1;
+                while (c.moveToNext()) {
+                    plan.add(c.getString(detailIdx));
+                }
+            } finally {
+                c.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        log.record(new DBoxSlowQueryLog.Entry(sql, argTypesOf(args), nanos, plan));
+    }
+
+    /**
+     * Get arguments to bind every placeholder of a statement with when explaining it,
+     * which must all be bound on some drivers, e.g. sqlite-jdbc.
+     * <p>
+     * The plan doesn't depend on the values, and a query on Android can only bind
+     * strings, so nulls and blobs are bound as empty strings.
+     */
+    private static String[] explainArgsOf(Object[] args) {
+        if (args == null) {
+            return null;
+        }
+        String[] strings = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null || arg instanceof byte[]) {
+                strings[i] = "";
+            } else if (arg instanceof Boolean) {
+                strings[i] = (Boolean) arg ? "1" : "0";
+            } else {
+                strings[i] = arg.toString();
+            }
+        }
+        return strings;
+    }
+
+    private static String[] argTypesOf(Object[] args) {
+        if (args == null) {
+            return new String[0];
+        }
+        String[] types = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = typeOf(args[i]);
+        }
+        return types;
+    }
+
+    /**
+     * Get the storage class that a value is bound as.
+     */
+    private static String typeOf(Object value) {
+        if (value == null) {
+            return "NULL";
+        } else if (value instanceof byte[]) {
+            return "BLOB";
+        } else if (value instanceof Double || value instanceof Float) {
+            return "REAL";
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return "INTEGER";
+        } else {
+            return "TEXT";
+        }
+    }
+
+    private static String insertSQL(String verb, String table, RowValues values) {
+        StringBuilder builder = new StringBuilder(verb).append(" INTO ").append(table).append(" (");
+        boolean first = true;
+        for (String column : values.keySet()) {
+            builder.append(first ? "" : ", ").append(column);
+            first = false;
+        }
+        builder.append(") VALUES (");
+        for (int i = 0; i < values.size(); i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.append(")").toString();
+    }
+
+    private static void appendWhere(StringBuilder builder, String whereClause) {
+        if (whereClause != null && whereClause.length() > 0) {
+            builder.append(" WHERE ").append(whereClause);
+        }
+    }
+
+    /**
+     * Times the outermost transaction of a thread.
+     */
+    private static class TransactionTimer {
+        int mDepth;
+        long mStart;
+        long mLockWait;
+        boolean mSuccessful;
+        boolean mFailed;
+    }
+
+    /**
+     * Counts rows stepped by a query, and reports it when closed.
+     * <p>
+     * {@link DBoxResults} adds the objects it materializes
+     * and the nested queries it issues to the counts.
+     */
+    static class MeteredCursor implements RowCursor {
+        private final RowCursor mCursor;
+        private final DBoxMetrics mMetrics;
+        private final String mSql;
+        private final int mBindCount;
+        private final long mStart;
+
+        int mRowCount;
+        int mObjectCount;
+        int mRelationQueryCount;
+
+        MeteredCursor(RowCursor cursor, DBoxMetrics metrics, String sql, int bindCount, long start) {
+            mCursor = cursor;
+            mMetrics = metrics;
+            mSql = sql;
+            mBindCount = bindCount;
+            mStart = start;
+        }
+
+        private boolean step(boolean moved) {
+            if (moved) {
+                mRowCount++;
+            }
+            return moved;
+        }
+
+        @Override
+        public int getCount() {
+            return mCursor.getCount();
+        }
+
+        @Override
+        public int getPosition() {
+            return mCursor.getPosition();
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            return step(mCursor.moveToPosition(position));
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return step(mCursor.moveToFirst());
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return step(mCursor.moveToLast());
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return step(mCursor.moveToNext());
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return step(mCursor.moveToPrevious());
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mCursor.getColumnCount();
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            return mCursor.getColumnIndex(columnName);
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            return mCursor.getColumnIndexOrThrow(columnName);
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            return mCursor.getType(columnIndex);
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            return mCursor.isNull(columnIndex);
+        }
+
+        @Override
+        public short getShort(int columnIndex) {
+            return mCursor.getShort(columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return mCursor.getInt(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return mCursor.getLong(columnIndex);
+        }
+
+        @Override
+        public float getFloat(int columnIndex) {
+            return mCursor.getFloat(columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            return mCursor.getDouble(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            return mCursor.getString(columnIndex);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            return mCursor.getBlob(columnIndex);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mCursor.isClosed();
+        }
+
+        @Override
+        public void close() {
+            if (mCursor.isClosed()) {
+                return;
+            }
+            mCursor.close();
+            mMetrics.onQuery(mSql, mBindCount, System.nanoTime() - mStart,
+                    mRowCount, mObjectCount, mRelationQueryCount);
+        }
+    }
+
+    /**
+     * Reports every execution of a compiled statement.
+     */
+    private class MeteredStatement implements Statement {
+        private final Statement mStatement;
+        private final String mSql;
+        private final List<Object> mArgs = new ArrayList<>();
+
+        MeteredStatement(Statement statement, String sql) {
+            mStatement = statement;
+            mSql = sql;
+        }
+
+        private void bound(int index, Object value) {
+            while (mArgs.size() < index) {
+                mArgs.add(null);
+            }
+            mArgs.set(index - 1, value);
+        }
+
+        private void onExecuted(long nanos, int rowCount, boolean isQuery) {
+            if (mMetrics != null) {
+                if (isQuery) {
+                    mMetrics.onQuery(mSql, mArgs.size(), nanos, rowCount, 0, 0);
+                } else {
+                    mMetrics.onWrite(mSql, mArgs.size(), nanos, rowCount);
+                }
+            }
+            DBoxSlowQueryLog log = mSlowQueryLog;
+            if (log != null && log.isSlow(nanos)) {
+                recordSlow(log, mSql, mArgs.toArray(), nanos);
+            }
+        }
+
+        @Override
+        public void bindNull(int index) {
+            mStatement.bindNull(index);
+            bound(index, null);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            mStatement.bindLong(index, value);
+            bound(index, value);
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            mStatement.bindDouble(index, value);
+            bound(index, value);
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            mStatement.bindString(index, value);
+            bound(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            mStatement.bindBlob(index, value);
+            bound(index, value);
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            long start = System.nanoTime();
+            long value = mStatement.simpleQueryForLong();
+            onExecuted(System.nanoTime() - start, 1, true);
+            return value;
+        }
+
+        @Override
+        public String simpleQueryForString() {
+            long start = System.nanoTime();
+            String value = mStatement.simpleQueryForString();
+            onExecuted(System.nanoTime() - start, value == null ? 0 : 1, true);
+            return value;
+        }
+
+        @Override
+        public long executeInsert() {
+            long start = System.nanoTime();
+            long id = mStatement.executeInsert();
+            onExecuted(System.nanoTime() - start, id > 0 ? 1 : 0, false);
+            return id;
+        }
+
+        @Override
+        public int executeUpdateDelete() {
+            long start = System.nanoTime();
+            int count = mStatement.executeUpdateDelete();
+            onExecuted(System.nanoTime() - start, count, false);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            mStatement.close();
+        }
+    }
+}
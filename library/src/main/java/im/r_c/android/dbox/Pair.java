@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package im.r_c.android.dbox;
+
+/**
+ * DBox
+ * Created by richard on 7/30/16.
+ */
+
+/**
+ * Two values returned together, e.g. a SQL and its arguments.
+ */
+class Pair<F, S> {
+    final F first;
+    final S second;
+
+    Pair(F first, S second) {
+        this.first = first;
+        this.second = second;
+    }
+}
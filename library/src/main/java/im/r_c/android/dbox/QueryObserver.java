@@ -0,0 +1,394 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * DBox
+ * Created by richard on 7/23/16.
+ */
+
+/**
+ * Re-executes a query when any table it depends on has been changed.
+ * <p>
+ * Queries are re-executed and listeners are called on a single background thread,
+ * and invalidations arriving before the pending re-execution starts are merged into it.
+ * <p>
+ * For change listeners, the current ids of the results are compared with the previous ones,
+ * and the changed rows recorded by {@link TransactionState} tell which of the remaining objects
+ * have been updated, so that only inserted and updated objects need to be loaded.
+ *
+ * @param <T> type of result object
+ */
+class QueryObserver<T> implements DBoxSubscription {
+    /**
+     * Max count of ids in one "IN (...)" clause,
+     * which should be less than the max count of SQL variables of SQLite (999).
+     */
+    private static final int MAX_IN_ARG_COUNT = 500;
+
+    private static final List<QueryObserver<?>> sObservers = new CopyOnWriteArrayList<>();
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DBox-QueryObserver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final DBoxQuery<T> mQuery;
+    private final Storage mDb;
+    private final TableInfo mTableInfo;
+    private final DBoxQuery.Listener<T> mListener;
+    private final DBoxQuery.ChangeListener<T> mChangeListener;
+    private final Set<String> mTables;
+    private final AtomicBoolean mPending = new AtomicBoolean();
+    private volatile boolean mCancelled;
+
+    /**
+     * Changes not handled yet, merged from all invalidations.
+     * Key: table name,
+     * Value: ids of changed rows, or null if unknown.
+     */
+    private Map<String, Set<Long>> mChanges = new HashMap<>();
+
+    /**
+     * Ids of the results last delivered, null before the first delivery.
+     * Only used for change listeners.
+     */
+    private long[] mIds;
+
+    QueryObserver(DBoxQuery<T> query, Storage db, TableInfo tableInfo,
+                  DBoxQuery.Listener<T> listener, DBoxQuery.ChangeListener<T> changeListener) {
+        mQuery = query;
+        mDb = db;
+        mTableInfo = tableInfo;
+        mListener = listener;
+        mChangeListener = changeListener;
+        mTables = new HashSet<>();
+        collectTables(tableInfo, mTables);
+    }
+
+    /**
+     * Start observing and deliver the current results.
+     */
+    void start() {
+        sObservers.add(this);
+        schedule();
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        sObservers.remove(this);
+    }
+
+    /**
+     * Notify observers depending on any of the changed tables.
+     *
+     * @param changes key: changed table, value: ids of changed rows, or null if unknown
+     */
+    static void notifyChanged(Map<String, Set<Long>> changes) {
+        for (QueryObserver<?> observer : sObservers) {
+            boolean affected = false;
+            for (Map.Entry<String, Set<Long>> entry : changes.entrySet()) {
+                if (observer.mTables.contains(entry.getKey())) {
+                    observer.mergeChange(entry.getKey(), entry.getValue());
+                    affected = true;
+                }
+            }
+            if (affected) {
+                observer.schedule();
+            }
+        }
+    }
+
+    private synchronized void mergeChange(String table, Set<Long> ids) {
+        if (ids == null || (mChanges.containsKey(table) && mChanges.get(table) == null)) {
+            mChanges.put(table, null);
+        } else if (mChanges.containsKey(table)) {
+            mChanges.get(table).addAll(ids);
+        } else {
+            mChanges.put(table, new HashSet<>(ids));
+        }
+    }
+
+    private synchronized Map<String, Set<Long>> takeChanges() {
+        Map<String, Set<Long>> changes = mChanges;
+        mChanges = new HashMap<>();
+        return changes;
+    }
+
+    private void schedule() {
+        if (!mPending.compareAndSet(false, true)) {
+            // A re-execution has been scheduled and not started yet
+            return;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPending.set(false);
+                if (mCancelled) {
+                    return;
+                }
+
+                Map<String, Set<Long>> changes = takeChanges();
+                if (mListener != null) {
+                    List<T> results = mQuery.results().all();
+                    if (!mCancelled) {
+                        mListener.onChanged(results);
+                    }
+                } else {
+                    boolean first = mIds == null;
+                    DBoxChangeSet<T> changeSet = buildChangeSet(changes);
+                    // Always deliver the first change set, but skip empty ones after it
+                    if (!mCancelled && (first || !changeSet.isEmpty())) {
+                        mChangeListener.onChanged(changeSet);
+                    }
+                }
+            }
+        });
+    }
+
+    private DBoxChangeSet<T> buildChangeSet(Map<String, Set<Long>> changes) {
+        long[] oldIds = mIds != null ? mIds : new long[0];
+        long[] newIds = mQuery.ids();
+        Set<Long> touchedIds = mIds != null ? resolveTouchedIds(changes) : null;
+        mIds = newIds;
+
+        Map<Long, Integer> oldPosMap = new HashMap<>();
+        for (int i = 0; i < oldIds.length; i++) {
+            oldPosMap.put(oldIds[i], i);
+        }
+        Set<Long> newIdSet = new HashSet<>();
+        for (long id : newIds) {
+            newIdSet.add(id);
+        }
+
+        // An object in both results counts as touched if its row or mappings have changed.
+        // Untouched objects keep their relative order, so a touched one is considered moved
+        // if the count of untouched objects before it has changed.
+        Map<Long, Integer> oldAnchorMap = new HashMap<>();
+        int untouched = 0;
+        for (long id : oldIds) {
+            if (!newIdSet.contains(id)) {
+                continue;
+            }
+            if (touchedIds == null || touchedIds.contains(id)) {
+                oldAnchorMap.put(id, untouched);
+            } else {
+                untouched++;
+            }
+        }
+        Set<Long> movedIds = new HashSet<>();
+        untouched = 0;
+        for (long id : newIds) {
+            if (!oldPosMap.containsKey(id)) {
+                continue;
+            }
+            if (touchedIds == null || touchedIds.contains(id)) {
+                if (oldAnchorMap.get(id) != untouched) {
+                    movedIds.add(id);
+                }
+            } else {
+                untouched++;
+            }
+        }
+
+        // Removed: not in current results, or moved
+        long[] removedIds = new long[oldIds.length];
+        int[] removedPositions = new int[oldIds.length];
+        int removedCount = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (!newIdSet.contains(oldIds[i]) || movedIds.contains(oldIds[i])) {
+                removedIds[removedCount] = oldIds[i];
+                removedPositions[removedCount++] = i;
+            }
+        }
+
+        // Inserted: not in previous results, or moved
+        // Updated: touched and not moved
+        long[] insertedIds = new long[newIds.length];
+        int[] insertedPositions = new int[newIds.length];
+        int insertedCount = 0;
+        long[] updatedIds = new long[newIds.length];
+        int[] updatedPositions = new int[newIds.length];
+        int updatedCount = 0;
+        for (int i = 0; i < newIds.length; i++) {
+            long id = newIds[i];
+            if (!oldPosMap.containsKey(id) || movedIds.contains(id)) {
+                insertedIds[insertedCount] = id;
+                insertedPositions[insertedCount++] = i;
+            } else if (touchedIds == null || touchedIds.contains(id)) {
+                updatedIds[updatedCount] = id;
+                updatedPositions[updatedCount++] = i;
+            }
+        }
+
+        insertedIds = Arrays.copyOf(insertedIds, insertedCount);
+        updatedIds = Arrays.copyOf(updatedIds, updatedCount);
+        Map<Long, T> objMap = loadObjects(insertedIds, updatedIds);
+        List<T> insertedObjects = new ArrayList<>(insertedCount);
+        for (long id : insertedIds) {
+            insertedObjects.add(objMap.get(id));
+        }
+        List<T> updatedObjects = new ArrayList<>(updatedCount);
+        for (long id : updatedIds) {
+            updatedObjects.add(objMap.get(id));
+        }
+
+        return new DBoxChangeSet<>(newIds.length,
+                Arrays.copyOf(removedIds, removedCount), Arrays.copyOf(removedPositions, removedCount),
+                insertedIds, Arrays.copyOf(insertedPositions, insertedCount), insertedObjects,
+                updatedIds, Arrays.copyOf(updatedPositions, updatedCount), updatedObjects);
+    }
+
+    /**
+     * Find out which objects of the query table have been changed.
+     *
+     * @param changes changed tables and rows
+     * @return ids of changed objects, or null if unknown
+     */
+    private Set<Long> resolveTouchedIds(Map<String, Set<Long>> changes) {
+        Set<Long> touchedIds = new HashSet<>();
+        for (Map.Entry<String, Set<Long>> entry : changes.entrySet()) {
+            String table = entry.getKey();
+            Set<Long> ids = entry.getValue();
+            if (ids == null) {
+                return null;
+            }
+
+            if (table.equals(mTableInfo.mName)) {
+                touchedIds.addAll(ids);
+                continue;
+            }
+
+            boolean resolved = false;
+            for (Map.Entry<String, ObjectColumnInfo> ociEntry : mTableInfo.mObjectColumnMap.entrySet()) {
+                String tableB = TableInfo.nameOf(ociEntry.getValue().mElemClass);
+                String mappingTable = SQLBuilder.getMappingTableName(mTableInfo.mName, tableB);
+                if (table.equals(mappingTable)) {
+                    // Ids of mapping tables are already ids of this table
+                    touchedIds.addAll(ids);
+                    resolved = true;
+                    break;
+                } else if (table.equals(tableB)) {
+                    // Objects directly contained have been changed,
+                    // find their owners through the mapping table.
+                    touchedIds.addAll(findOwnerIds(mappingTable,
+                            SQLBuilder.getMappingTableIdColumn(mTableInfo.mName, ociEntry.getKey()),
+                            SQLBuilder.getMappingTableIdColumn(tableB, null), ids));
+                    resolved = true;
+                }
+            }
+            if (!resolved) {
+                // Changes of objects contained indirectly
+                return null;
+            }
+        }
+        return touchedIds;
+    }
+
+    private Set<Long> findOwnerIds(String mappingTable, String idAColumn, String idBColumn, Set<Long> idBs) {
+        Set<Long> ownerIds = new HashSet<>();
+        List<Long> idBList = new ArrayList<>(idBs);
+        for (int start = 0; start < idBList.size(); start += MAX_IN_ARG_COUNT) {
+            List<Long> part = idBList.subList(start, Math.min(start + MAX_IN_ARG_COUNT, idBList.size()));
+            String[] args = new String[part.size()];
+            StringBuilder sqlBuilder = new StringBuilder();
+            sqlBuilder.append("SELECT DISTINCT ").append(idAColumn).append(" FROM ").append(mappingTable)
+                    .append(" WHERE ").append(idAColumn).append(" IS NOT NULL AND ").append(idBColumn).append(" IN (");
+            for (int i = 0; i < args.length; i++) {
+                sqlBuilder.append(i == 0 ? "?" : ", ?");
+                args[i] = String.valueOf(part.get(i));
+            }
+            sqlBuilder.append(");");
+
+            RowCursor cursor = mDb.rawQuery(sqlBuilder.toString(), args);
+            try {
+                while (cursor.moveToNext()) {
+                    ownerIds.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return ownerIds;
+    }
+
+    /**
+     * Load objects by ids.
+     *
+     * @return key: id, value: object
+     */
+    private Map<Long, T> loadObjects(long[]... idArrays) {
+        List<String> idList = new ArrayList<>();
+        for (long[] ids : idArrays) {
+            for (long id : ids) {
+                idList.add(String.valueOf(id));
+            }
+        }
+
+        Map<Long, T> objMap = new HashMap<>();
+        ColumnInfo idColumn = mTableInfo.mColumnMap.get(TableInfo.COLUMN_ID);
+        for (int start = 0; start < idList.size(); start += MAX_IN_ARG_COUNT) {
+            List<String> part = idList.subList(start, Math.min(start + MAX_IN_ARG_COUNT, idList.size()));
+            DBoxCondition condition = new DBoxCondition().in(TableInfo.COLUMN_ID, part.toArray(new String[part.size()]));
+            for (T obj : new DBoxQuery<T>(mDb, mTableInfo, condition).results().all()) {
+                if (obj == null) {
+                    continue;
+                }
+                try {
+                    objMap.put(idColumn.mField.getLong(obj), obj);
+                } catch (IllegalAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return objMap;
+    }
+
+    /**
+     * Collect the table of a class, its mapping tables
+     * and tables of all objects it contains, recursively.
+     */
+    private static void collectTables(TableInfo tableInfo, Set<String> tables) {
+        if (!tables.add(tableInfo.mName)) {
+            return;
+        }
+        for (ObjectColumnInfo oci : tableInfo.mObjectColumnMap.values()) {
+            String tableB = TableInfo.nameOf(oci.mElemClass);
+            tables.add(SQLBuilder.getMappingTableName(tableInfo.mName, tableB));
+            collectTables(TableInfo.of(oci.mElemClass), tables);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package im.r_c.android.dbox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * DBox
+ * Created by richard on 7/30/16.
+ */
+
+/**
+ * Column values of a row to be written, like {@code android.content.ContentValues}.
+ * <p>
+ * Values must be null, Number, String, Boolean or byte[],
+ * and keep the order they were put in.
+ */
+class RowValues {
+    private final Map<String, Object> mValues;
+
+    RowValues() {
+        mValues = new LinkedHashMap<>();
+    }
+
+    RowValues(RowValues from) {
+        mValues = new LinkedHashMap<>(from.mValues);
+    }
+
+    void put(String column, Object value) {
+        mValues.put(column, value);
+    }
+
+    void putNull(String column) {
+        mValues.put(column, null);
+    }
+
+    Object get(String column) {
+        return mValues.get(column);
+    }
+
+    boolean containsKey(String column) {
+        return mValues.containsKey(column);
+    }
+
+    void remove(String column) {
+        mValues.remove(column);
+    }
+
+    int size() {
+        return mValues.size();
+    }
+
+    Set<String> keySet() {
+        return mValues.keySet();
+    }
+
+    Set<Map.Entry<String, Object>> valueSet() {
+        return mValues.entrySet();
+    }
+}
@@ -16,13 +16,10 @@
 
 package im.r_c.android.dbox;
 
-import android.content.ContentValues;
-import android.support.v4.util.ArrayMap;
-import android.util.Pair;
-
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +29,11 @@ import java.util.Map;
  */
 
 class SQLBuilder {
+    /**
+     * Max count of "?"s in a statement, which is SQLITE_MAX_VARIABLE_NUMBER before SQLite 3.32.0.
+     */
+    static final int MAX_ARG_COUNT = 999;
+
     static String createTable(TableInfo tableInfo) {
         StringBuilder sqlBuilder = new StringBuilder();
         sqlBuilder.append("CREATE TABLE IF NOT EXISTS ")
@@ -41,28 +43,7 @@ class SQLBuilder {
         Iterator<ColumnInfo> ciIter = tableInfo.mColumnMap.values().iterator();
         for (; ; ) {
             ColumnInfo ci = ciIter.next();
-            sqlBuilder.append(ci.mName).append(" ");
-
-            switch (ci.mType) {
-                case ColumnInfo.TYPE_BOOLEAN:
-                case ColumnInfo.TYPE_BYTE:
-                case ColumnInfo.TYPE_SHORT:
-                case ColumnInfo.TYPE_INT:
-                case ColumnInfo.TYPE_LONG:
-                case ColumnInfo.TYPE_DATE:
-                    sqlBuilder.append("INTEGER");
-                    break;
-                case ColumnInfo.TYPE_FLOAT:
-                case ColumnInfo.TYPE_DOUBLE:
-                    sqlBuilder.append("REAL");
-                    break;
-                case ColumnInfo.TYPE_STRING:
-                    sqlBuilder.append("TEXT");
-                    break;
-                case ColumnInfo.TYPE_BYTE_ARRAY:
-                    sqlBuilder.append("BLOB");
-                    break;
-            }
+            sqlBuilder.append(ci.mName).append(" ").append(getSqlType(ci));
 
             sqlBuilder.append(ci.mNotNull ? " NOT NULL" : "")
                     .append(ci.mUnique ? " UNIQUE" : "")
@@ -80,6 +61,75 @@ class SQLBuilder {
         return sqlBuilder.toString();
     }
 
+    /**
+     * @return declared type of a column, e.g. "INTEGER"
+     */
+    static String getSqlType(ColumnInfo ci) {
+        switch (ci.mType) {
+            case ColumnInfo.TYPE_BOOLEAN:
+            case ColumnInfo.TYPE_BYTE:
+            case ColumnInfo.TYPE_SHORT:
+            case ColumnInfo.TYPE_INT:
+            case ColumnInfo.TYPE_LONG:
+            case ColumnInfo.TYPE_DATE:
+                return "INTEGER";
+            case ColumnInfo.TYPE_FLOAT:
+            case ColumnInfo.TYPE_DOUBLE:
+                return "REAL";
+            case ColumnInfo.TYPE_STRING:
+                return "TEXT";
+            case ColumnInfo.TYPE_BYTE_ARRAY:
+            case ColumnInfo.TYPE_INT_ARRAY:
+            case ColumnInfo.TYPE_LONG_ARRAY:
+            case ColumnInfo.TYPE_FLOAT_ARRAY:
+            case ColumnInfo.TYPE_DOUBLE_ARRAY:
+            case ColumnInfo.TYPE_STRING_LIST:
+                return "BLOB";
+            case ColumnInfo.TYPE_CONVERTED:
+                return DBoxConverters.sqlTypeOf(ci.mConverter);
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get columns of the table and mapping tables of a class,
+     * the same as the ones created by {@link #createTable(TableInfo)}
+     * and {@link #createAllMappingTables(TableInfo)}.
+     *
+     * @param tableInfo table info
+     * @return Key: table name, the table of the class first,
+     * Value: map from column name to declared type
+     */
+    static Map<String, Map<String, String>> getAllTableColumns(TableInfo tableInfo) {
+        Map<String, Map<String, String>> tableMap = new LinkedHashMap<>();
+
+        Map<String, String> columns = new LinkedHashMap<>();
+        for (ColumnInfo ci : tableInfo.mColumnMap.values()) {
+            columns.put(ci.mName, getSqlType(ci));
+        }
+        tableMap.put(tableInfo.mName, columns);
+
+        for (Map.Entry<String, ObjectColumnInfo> entry : tableInfo.mObjectColumnMap.entrySet()) {
+            String field = entry.getKey();
+            ObjectColumnInfo oci = entry.getValue();
+            String tableB = TableInfo.nameOf(oci.mElemClass);
+            String mappingTable = getMappingTableName(tableInfo.mName, tableB);
+            columns = tableMap.get(mappingTable);
+            if (columns == null) {
+                columns = new LinkedHashMap<>();
+                columns.put(getMappingTableIdColumn(tableB, null), "INTEGER");
+                tableMap.put(mappingTable, columns);
+            }
+            columns.put(getMappingTableIdColumn(tableInfo.mName, field), "INTEGER");
+            if (oci.mType == ObjectColumnInfo.TYPE_OBJECT_ARRAY
+                    || oci.mType == ObjectColumnInfo.TYPE_OBJECT_LIST) {
+                columns.put(getMappingTableIndexColumn(tableInfo.mName, field), "INTEGER");
+            }
+        }
+        return tableMap;
+    }
+
     static String[] createAllMappingTables(TableInfo tableInfo) {
         // Example:
         // TableA.field1 -> TableB
@@ -88,11 +138,11 @@ class SQLBuilder {
 
         // Key: table name
         // Value: mapping table create sql builder
-        Map<String, StringBuilder> builderMap = new ArrayMap<>();
+        Map<String, StringBuilder> builderMap = new LinkedHashMap<>();
 
         // Key: object column info object (aka an instance field)
         // Value: table name
-        Map<ObjectColumnInfo, String> tableNameMap = new ArrayMap<>();
+        Map<ObjectColumnInfo, String> tableNameMap = new LinkedHashMap<>();
 
         for (Map.Entry<String, ObjectColumnInfo> entry : tableInfo.mObjectColumnMap.entrySet()) {
             String field = entry.getKey();
@@ -132,7 +182,8 @@ class SQLBuilder {
             }
         }
 
-        String[] sqls = new String[builderMap.size()];
+        String[] indexSqls = createAllMappingTableIndexes(tableInfo);
+        String[] sqls = new String[builderMap.size() + indexSqls.length];
         int n = 0;
         // Append last column "_TableB_id" for all mapping table
         for (Map.Entry<String, StringBuilder> entry : builderMap.entrySet()) {
@@ -140,6 +191,27 @@ class SQLBuilder {
             builder.append(", ").append(getMappingTableIdColumn(entry.getKey(), null)).append(" INTEGER NOT NULL);");
             sqls[n++] = builder.toString();
         }
+        System.arraycopy(indexSqls, 0, sqls, n, indexSqls.length);
+        return sqls;
+    }
+
+    /**
+     * Index "_TableA_field1_id" columns of the mapping tables,
+     * so that mappings of one object can be looked up without scanning the whole table.
+     * <p>
+     * Included in {@link #createAllMappingTables(TableInfo)}, and can be run on its own
+     * for mapping tables created before the indexes were.
+     */
+    static String[] createAllMappingTableIndexes(TableInfo tableInfo) {
+        String[] sqls = new String[tableInfo.mObjectColumnMap.size()];
+        int n = 0;
+        for (Map.Entry<String, ObjectColumnInfo> entry : tableInfo.mObjectColumnMap.entrySet()) {
+            String field = entry.getKey();
+            String idColumn = getMappingTableIdColumn(tableInfo.mName, field);
+            sqls[n++] = "CREATE INDEX IF NOT EXISTS " + getMappingTableIdIndex(tableInfo.mName, field) + " ON "
+                    + getMappingTableName(tableInfo.mName, TableInfo.nameOf(entry.getValue().mElemClass))
+                    + " (" + idColumn + ");";
+        }
         return sqls;
     }
 
@@ -155,45 +227,69 @@ class SQLBuilder {
         return "_" + table + (field != null ? "_" + field : "") + "_index";
     }
 
-    static ContentValues buildContentValues(TableInfo tableInfo, Object obj) {
-        ContentValues values = new ContentValues();
+    /**
+     * @return name of the index on "_TableA_field_id" column
+     */
+    static String getMappingTableIdIndex(String table, String field) {
+        return getMappingTableIdColumn(table, field) + "_idx";
+    }
+
+    static RowValues buildContentValues(TableInfo tableInfo, Object obj) {
+        RowValues values = new RowValues();
         for (ColumnInfo ci : tableInfo.mColumnMap.values()) {
             if (TableInfo.COLUMN_ID.equals(ci.mName)) {
                 continue;
             }
 
             try {
+                Object holder = ci.holderOf(obj);
+                if (holder == null) {
+                    // Columns of a null embedded object
+                    values.putNull(ci.mName);
+                    continue;
+                }
+
                 switch (ci.mType) {
                     case ColumnInfo.TYPE_BOOLEAN:
-                        values.put(ci.mName, ci.mField.getBoolean(obj) ? 1 : 0);
+                        values.put(ci.mName, ci.mField.getBoolean(holder) ? 1 : 0);
                         break;
                     case ColumnInfo.TYPE_BYTE:
-                        values.put(ci.mName, ci.mField.getByte(obj));
+                        values.put(ci.mName, ci.mField.getByte(holder));
                         break;
                     case ColumnInfo.TYPE_SHORT:
-                        values.put(ci.mName, ci.mField.getShort(obj));
+                        values.put(ci.mName, ci.mField.getShort(holder));
                         break;
                     case ColumnInfo.TYPE_INT:
-                        values.put(ci.mName, ci.mField.getInt(obj));
+                        values.put(ci.mName, ci.mField.getInt(holder));
                         break;
                     case ColumnInfo.TYPE_LONG:
-                        values.put(ci.mName, ci.mField.getLong(obj));
+                        values.put(ci.mName, ci.mField.getLong(holder));
                         break;
                     case ColumnInfo.TYPE_FLOAT:
-                        values.put(ci.mName, ci.mField.getFloat(obj));
+                        values.put(ci.mName, ci.mField.getFloat(holder));
                         break;
                     case ColumnInfo.TYPE_DOUBLE:
-                        values.put(ci.mName, ci.mField.getDouble(obj));
+                        values.put(ci.mName, ci.mField.getDouble(holder));
                         break;
                     case ColumnInfo.TYPE_STRING:
-                        values.put(ci.mName, (String) ci.mField.get(obj));
+                        values.put(ci.mName, (String) ci.mField.get(holder));
                         break;
                     case ColumnInfo.TYPE_DATE:
-                        Date date = (Date) ci.mField.get(obj);
+                        Date date = (Date) ci.mField.get(holder);
                         values.put(ci.mName, date.getTime());
                         break;
                     case ColumnInfo.TYPE_BYTE_ARRAY:
-                        values.put(ci.mName, (byte[]) ci.mField.get(obj));
+                        values.put(ci.mName, (byte[]) ci.mField.get(holder));
+                        break;
+                    case ColumnInfo.TYPE_INT_ARRAY:
+                    case ColumnInfo.TYPE_LONG_ARRAY:
+                    case ColumnInfo.TYPE_FLOAT_ARRAY:
+                    case ColumnInfo.TYPE_DOUBLE_ARRAY:
+                    case ColumnInfo.TYPE_STRING_LIST:
+                        values.put(ci.mName, BlobCodec.encode(ci.mType, ci.mField.get(holder)));
+                        break;
+                    case ColumnInfo.TYPE_CONVERTED:
+                        DBoxConverters.put(values, ci.mName, ci.mConverter, ci.mField.get(holder));
                         break;
                 }
             } catch (IllegalAccessException e) {
@@ -210,8 +306,71 @@ class SQLBuilder {
         return values;
     }
 
-    static ContentValues buildMappingContentValues(String field, int index, String tableA, long idA, String tableB, long idB) {
-        ContentValues values = new ContentValues();
+    /**
+     * Build content values from a column name to value map,
+     * converting each value according to the type of its column.
+     */
+    static RowValues buildContentValues(TableInfo tableInfo, Map<String, Object> columnValues) {
+        RowValues values = new RowValues();
+        for (Map.Entry<String, Object> entry : columnValues.entrySet()) {
+            String column = entry.getKey();
+            ColumnInfo ci = null;
+            for (ColumnInfo c : tableInfo.mColumnMap.values()) {
+                if (c.mName.equals(column)) {
+                    ci = c;
+                    break;
+                }
+            }
+            if (ci == null || TableInfo.COLUMN_ID.equals(column)) {
+                throw new IllegalArgumentException("Column \"" + column + "\" can't be updated in table \"" + tableInfo.mName + "\".");
+            }
+
+            Object value = entry.getValue();
+            if (value == null) {
+                values.putNull(column);
+                continue;
+            }
+
+            switch (ci.mType) {
+                case ColumnInfo.TYPE_BOOLEAN:
+                    values.put(column, (Boolean) value ? 1 : 0);
+                    break;
+                case ColumnInfo.TYPE_BYTE:
+                case ColumnInfo.TYPE_SHORT:
+                case ColumnInfo.TYPE_INT:
+                case ColumnInfo.TYPE_LONG:
+                    values.put(column, ((Number) value).longValue());
+                    break;
+                case ColumnInfo.TYPE_FLOAT:
+                case ColumnInfo.TYPE_DOUBLE:
+                    values.put(column, ((Number) value).doubleValue());
+                    break;
+                case ColumnInfo.TYPE_STRING:
+                    values.put(column, (String) value);
+                    break;
+                case ColumnInfo.TYPE_DATE:
+                    values.put(column, ((Date) value).getTime());
+                    break;
+                case ColumnInfo.TYPE_BYTE_ARRAY:
+                    values.put(column, (byte[]) value);
+                    break;
+                case ColumnInfo.TYPE_INT_ARRAY:
+                case ColumnInfo.TYPE_LONG_ARRAY:
+                case ColumnInfo.TYPE_FLOAT_ARRAY:
+                case ColumnInfo.TYPE_DOUBLE_ARRAY:
+                case ColumnInfo.TYPE_STRING_LIST:
+                    values.put(column, BlobCodec.encode(ci.mType, value));
+                    break;
+                case ColumnInfo.TYPE_CONVERTED:
+                    DBoxConverters.put(values, column, ci.mConverter, value);
+                    break;
+            }
+        }
+        return values;
+    }
+
+    static RowValues buildMappingContentValues(String field, int index, String tableA, long idA, String tableB, long idB) {
+        RowValues values = new RowValues();
         if (index >= 0) {
             // index >= 0 means the field is an array or a list,
             // so record the index.
@@ -222,11 +381,204 @@ class SQLBuilder {
         return values;
     }
 
+    static String selectIdByColumn(String table, String column) {
+        return "SELECT " + TableInfo.COLUMN_ID + " FROM " + table + " WHERE " + column + " = ?;";
+    }
+
+    static Pair<String, Object[]> upsert(TableInfo tableInfo, RowValues values, String conflictColumn) {
+        // Example:
+        //
+        // INSERT INTO Course (code, name) VALUES (?, ?)
+        //   ON CONFLICT (code) DO UPDATE SET code = excluded.code, name = excluded.name;
+
+        StringBuilder sqlBuilder = new StringBuilder();
+        StringBuilder setBuilder = new StringBuilder();
+        Object[] args = new Object[values.size()];
+        sqlBuilder.append("INSERT INTO ").append(tableInfo.mName).append(" (");
+        int n = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            String column = entry.getKey();
+            sqlBuilder.append(n == 0 ? "" : ", ").append(column);
+            if (!conflictColumn.equals(column)) {
+                setBuilder.append(setBuilder.length() == 0 ? "" : ", ")
+                        .append(column).append(" = excluded.").append(column);
+            }
+            args[n++] = entry.getValue();
+        }
+        sqlBuilder.append(") VALUES (");
+        for (int i = 0; i < n; i++) {
+            sqlBuilder.append(i == 0 ? "?" : ", ?");
+        }
+        sqlBuilder.append(") ON CONFLICT (").append(conflictColumn).append(") DO ")
+                .append(setBuilder.length() == 0 ? "NOTHING" : "UPDATE SET " + setBuilder)
+                .append(";");
+        return new Pair<>(sqlBuilder.toString(), args);
+    }
+
+    static Pair<String, Object[]> updateByColumn(TableInfo tableInfo, RowValues values, String keyColumn) {
+        // Example:
+        //
+        // UPDATE Course SET code = ?, name = ? WHERE code = ?;
+
+        StringBuilder sqlBuilder = new StringBuilder();
+        Object[] args = new Object[values.size() + 1];
+        sqlBuilder.append("UPDATE ").append(tableInfo.mName).append(" SET ");
+        int n = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            sqlBuilder.append(n == 0 ? "" : ", ").append(entry.getKey()).append(" = ?");
+            args[n++] = entry.getValue();
+        }
+        sqlBuilder.append(" WHERE ").append(keyColumn).append(" = ?;");
+        args[n] = values.get(keyColumn);
+        return new Pair<>(sqlBuilder.toString(), args);
+    }
+
+    static String selectIds(String table, String where) {
+        return "SELECT " + table + "." + TableInfo.COLUMN_ID + " FROM " + table + " WHERE " + where;
+    }
+
+    /**
+     * Temporary table of ids, which fixes the set of records a bulk statement acts on,
+     * see {@link #fillIdTable(String, String)}.
+     */
+    static final String ID_TABLE = "temp._dbox_ids";
+
+    static String createIdTable() {
+        return "CREATE TEMP TABLE IF NOT EXISTS _dbox_ids (" + TableInfo.COLUMN_ID + " INTEGER PRIMARY KEY);";
+    }
+
+    static String fillIdTable(String table, String where) {
+        return "INSERT INTO " + ID_TABLE + " " + selectIds(table, where) + ";";
+    }
+
+    static String selectIdTable() {
+        return "SELECT " + TableInfo.COLUMN_ID + " FROM " + ID_TABLE;
+    }
+
+    /**
+     * Build a query that counts objects in an object field
+     * of every object satisfying a condition, e.g.
+     * <p>
+     * SELECT _Student_Course_mapping._Student_courseList_id, COUNT(*) FROM _Student_Course_mapping
+     * WHERE _Student_Course_mapping._Student_courseList_id IN (SELECT Student.id FROM Student WHERE {Custom where clause})
+     * GROUP BY _Student_Course_mapping._Student_courseList_id
+     * ORDER BY _Student_Course_mapping._Student_courseList_id;
+     */
+    static Pair<String, Object[]> countRelated(TableInfo tableInfo, String field, DBoxCondition condition) {
+        ObjectColumnInfo oci = tableInfo.mObjectColumnMap.get(field);
+        if (oci == null) {
+            throw new IllegalArgumentException("There is no object field \"" + field + "\" in table \"" + tableInfo.mName + "\".");
+        }
+
+        String mappingTable = getMappingTableName(tableInfo.mName, TableInfo.nameOf(oci.mElemClass));
+        String idColumn = mappingTable + "." + getMappingTableIdColumn(tableInfo.mName, field);
+        String where = condition.build(tableInfo);
+        String sql = "SELECT " + idColumn + ", COUNT(*) FROM " + mappingTable
+                + " WHERE " + idColumn + " IN (" + selectIds(tableInfo.mName, where.trim().length() > 0 ? where : "1") + ")"
+                + " GROUP BY " + idColumn
+                + " ORDER BY " + idColumn + ";";
+        return new Pair<>(sql, condition.getArgs());
+    }
+
+    static String getFullTextTableName(String table) {
+        return "_" + table + "_fts";
+    }
+
+    static String getFullTextRankTableName(String table) {
+        return "_" + table + "_rank";
+    }
+
+    /**
+     * Get the rank column of the full-text search ranks joined in a query.
+     */
+    static String getFullTextRankColumn(String table) {
+        return getFullTextRankTableName(table) + "._rank";
+    }
+
+    static String createFullTextTable(TableInfo tableInfo) {
+        StringBuilder sqlBuilder = new StringBuilder();
+        sqlBuilder.append("CREATE VIRTUAL TABLE IF NOT EXISTS ")
+                .append(getFullTextTableName(tableInfo.mName))
+                .append(" USING fts4(");
+        for (int i = 0; i < tableInfo.mFullTextColumns.size(); i++) {
+            sqlBuilder.append(i == 0 ? "" : ", ").append(tableInfo.mFullTextColumns.get(i).mName);
+        }
+        sqlBuilder.append(");");
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * Copy full-text columns of the records that are missing in the full-text table.
+     */
+    static String fillFullTextTable(TableInfo tableInfo) {
+        String ftsTable = getFullTextTableName(tableInfo.mName);
+        StringBuilder columnsBuilder = new StringBuilder();
+        for (ColumnInfo ci : tableInfo.mFullTextColumns) {
+            columnsBuilder.append(", ").append(ci.mName);
+        }
+        return "INSERT INTO " + ftsTable + " (docid" + columnsBuilder + ")"
+                + " SELECT " + TableInfo.COLUMN_ID + columnsBuilder + " FROM " + tableInfo.mName
+                + " WHERE " + TableInfo.COLUMN_ID + " NOT IN (SELECT docid FROM " + ftsTable + ");";
+    }
+
+    static RowValues buildFullTextContentValues(TableInfo tableInfo, long id, RowValues values) {
+        RowValues ftsValues = new RowValues();
+        ftsValues.put("docid", id);
+        for (ColumnInfo ci : tableInfo.mFullTextColumns) {
+            ftsValues.put(ci.mName, (String) values.get(ci.mName));
+        }
+        return ftsValues;
+    }
+
+    /**
+     * Build the where clause that matches a full-text query against a column,
+     * or against all full-text columns if the column is null.
+     */
+    static String fullTextMatch(String table, String column) {
+        String ftsTable = getFullTextTableName(table);
+        return table + "." + TableInfo.COLUMN_ID + " IN (SELECT docid FROM " + ftsTable
+                + " WHERE " + (column != null ? ftsTable + "." + column : ftsTable) + " MATCH ?)";
+    }
+
+    /**
+     * Build a sub query that calculates the rank of each matched record.
+     * <p>
+     * FTS4 has no built-in ranking function, so the rank is the count of matched phrases,
+     * which is the count of integers returned by offsets() divided by 4.
+     */
+    private static String fullTextRank(String table, String column) {
+        String ftsTable = getFullTextTableName(table);
+        String offsets = "offsets(" + ftsTable + ")";
+        return "(SELECT docid, (length(" + offsets + ") - length(replace(" + offsets + ", ' ', '')) + 1) / 4 AS _rank"
+                + " FROM " + ftsTable
+                + " WHERE " + (column != null ? ftsTable + "." + column : ftsTable) + " MATCH ?) AS "
+                + getFullTextRankTableName(table);
+    }
+
+    static String dropIndex(String index) {
+        return "DROP INDEX IF EXISTS " + index + ";";
+    }
+
     static String dropTable(String table) {
         return "DROP TABLE IF EXISTS " + table + ";";
     }
 
-    static Pair<String, String[]> query(TableInfo tableInfo, DBoxCondition condition, StringBuilder orderBuilder) {
+    static Pair<String, Object[]> query(TableInfo tableInfo, DBoxCondition condition, StringBuilder orderBuilder,
+                                        String rankColumn, String rankQuery) {
+        return query(tableInfo, "*", condition, orderBuilder, rankColumn, rankQuery);
+    }
+
+    /**
+     * Build a query that selects only ids, in the same order as {@link #query(TableInfo, DBoxCondition, StringBuilder, String, String)}.
+     * An id may appear in consecutive rows for more than once.
+     */
+    static Pair<String, Object[]> queryIds(TableInfo tableInfo, DBoxCondition condition, StringBuilder orderBuilder,
+                                           String rankColumn, String rankQuery) {
+        return query(tableInfo, tableInfo.mName + "." + TableInfo.COLUMN_ID, condition, orderBuilder, rankColumn, rankQuery);
+    }
+
+    private static Pair<String, Object[]> query(TableInfo tableInfo, String select, DBoxCondition condition, StringBuilder orderBuilder,
+                                                String rankColumn, String rankQuery) {
         // Example:
         //
         // SELECT
@@ -252,11 +604,18 @@ class SQLBuilder {
         //   _Student_favoriteCourses_index, _Student_clazzList_index, _Student_courseList_index;
 
         StringBuilder sqlBuilder = new StringBuilder();
-        sqlBuilder.append("SELECT * FROM ").append(tableInfo.mName);
+        sqlBuilder.append("SELECT ").append(select).append(" FROM ").append(tableInfo.mName);
+
+        if (rankQuery != null) {
+            // Join the full-text search ranks, see getFullTextRankColumn()
+            sqlBuilder.append(" LEFT JOIN ").append(fullTextRank(tableInfo.mName, rankColumn))
+                    .append(" ON ").append(getFullTextRankTableName(tableInfo.mName)).append(".docid = ")
+                    .append(tableInfo.mName).append(".").append(TableInfo.COLUMN_ID);
+        }
 
         // Key: tableB (aka table of the elem class of a field
         // Value: where clause builder
-        Map<String, StringBuilder> mappingWhereBuilderMap = new ArrayMap<>();
+        Map<String, StringBuilder> mappingWhereBuilderMap = new LinkedHashMap<>();
 
         List<String> indexColumnList = new ArrayList<>();
 
@@ -296,7 +655,7 @@ class SQLBuilder {
             first = false;
         }
 
-        String where = condition.build(tableInfo.mName);
+        String where = condition.build(tableInfo);
         if (where.length() > 0) {
             fullWhereBuilder.append(first ? "" : " AND ")
                     .append("(")
@@ -309,7 +668,7 @@ class SQLBuilder {
         }
 
         sqlBuilder.append(" ORDER BY ")
-                .append(orderBuilder.length() == 0 ? "" : orderBuilder.append(", "))
+                .append(orderBuilder.length() == 0 ? "" : orderBuilder + ", ")
                 // Always order by id after custom order and before index columns order
                 .append(tableInfo.mName).append(".").append(TableInfo.COLUMN_ID);
 
@@ -319,6 +678,15 @@ class SQLBuilder {
         }
 
         sqlBuilder.append(";");
-        return new Pair<>(sqlBuilder.toString(), condition.getArgs());
+
+        Object[] args = condition.getArgs();
+        if (rankQuery != null) {
+            // The argument of the joined rank table comes first
+            Object[] argsWithRank = new Object[args.length + 1];
+            argsWithRank[0] = rankQuery;
+            System.arraycopy(args, 0, argsWithRank, 1, args.length);
+            args = argsWithRank;
+        }
+        return new Pair<>(sqlBuilder.toString(), args);
     }
 }
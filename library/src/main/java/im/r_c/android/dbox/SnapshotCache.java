@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DBox
+ * Created by richard on 7/22/16.
+ */
+
+/**
+ * Remembers the column values last written from each object,
+ * so that saving the same object again only needs to write the columns that have changed.
+ * <p>
+ * A snapshot belongs to the object it was written from, and is replaced when
+ * the row is written from another object, so that an object never diffs against
+ * values it didn't write. Objects that are only read have no snapshot,
+ * and are diffed against the stored row when saved, see {@link DBox#save(Object)}.
+ */
+class SnapshotCache {
+    private static final int MAX_ROW_COUNT_PER_TABLE = 512;
+
+    /**
+     * Key: table name,
+     * Value: snapshots of rows, keyed by id.
+     */
+    private static final Map<String, Map<Long, Snapshot>> sCacheMap = new HashMap<>();
+
+    /**
+     * @return values last written from the object to the row, or null if unknown
+     */
+    static synchronized RowValues get(String table, long id, Object owner) {
+        Map<Long, Snapshot> cache = sCacheMap.get(table);
+        Snapshot snapshot = cache == null ? null : cache.get(id);
+        return snapshot != null && snapshot.mOwner.get() == owner ? snapshot.mValues : null;
+    }
+
+    /**
+     * Remember the values written from an object to a row.
+     * <p>
+     * Byte arrays are copied, because they may be modified in place
+     * by the caller afterwards.
+     */
+    static synchronized void put(String table, long id, Object owner, RowValues values) {
+        Map<Long, Snapshot> cache = sCacheMap.get(table);
+        if (cache == null) {
+            cache = new LinkedHashMap<Long, Snapshot>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Snapshot> eldest) {
+                    // Least recently used first
+                    return size() > MAX_ROW_COUNT_PER_TABLE;
+                }
+            };
+            sCacheMap.put(table, cache);
+        }
+
+        values = new RowValues(values);
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            if (entry.getValue() instanceof byte[]) {
+                entry.setValue(((byte[]) entry.getValue()).clone());
+            }
+        }
+        cache.put(id, new Snapshot(owner, values));
+    }
+
+    static synchronized void remove(String table, long id) {
+        Map<Long, Snapshot> cache = sCacheMap.get(table);
+        if (cache != null) {
+            cache.remove(id);
+        }
+    }
+
+    static synchronized void removeTable(String table) {
+        sCacheMap.remove(table);
+    }
+
+    static synchronized void clear() {
+        sCacheMap.clear();
+    }
+
+    /**
+     * Pick out the values that differ from the snapshot.
+     *
+     * @param snapshot snapshot of the row
+     * @param values   current values of the row
+     * @return changed values, empty if nothing changed
+     */
+    static RowValues diff(RowValues snapshot, RowValues values) {
+        RowValues changed = new RowValues(values);
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            String column = entry.getKey();
+            if (snapshot.containsKey(column) && valueEquals(snapshot.get(column), entry.getValue())) {
+                changed.remove(column);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Compare two values as SQLite would store them, so that values read from a cursor
+     * (Long, Double, String, byte[] or null) equal the values of fields written to them.
+     */
+    private static boolean valueEquals(Object a, Object b) {
+        if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        if (a instanceof Boolean) {
+            a = (Boolean) a ? 1L : 0L;
+        }
+        if (b instanceof Boolean) {
+            b = (Boolean) b ? 1L : 0L;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            if (isIntegral(a) && isIntegral(b)) {
+                return ((Number) a).longValue() == ((Number) b).longValue();
+            }
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean isIntegral(Object o) {
+        return o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte;
+    }
+
+    private static class Snapshot {
+        /**
+         * Weakly referenced, so that snapshots don't keep objects alive.
+         */
+        final WeakReference<Object> mOwner;
+        final RowValues mValues;
+
+        Snapshot(Object owner, RowValues values) {
+            mOwner = new WeakReference<>(owner);
+            mValues = values;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package im.r_c.android.dbox;
+
+/**
+ * DBox
+ * Created by richard on 7/30/16.
+ */
+
+/**
+ * The SQLite database that DBox works on, hiding whether it's
+ * an Android {@code SQLiteDatabase} or a JDBC connection.
+ * <p>
+ * Transactions can be nested, and the outermost one is only committed
+ * if all nested ones are marked successful, like {@code SQLiteDatabase}.
+ */
+interface Storage {
+    void execSQL(String sql);
+
+    void execSQL(String sql, Object[] args);
+
+    /**
+     * Run a query.
+     *
+     * @param sql  SQL
+     * @param args arguments bound to the "?"s in order by their types,
+     *             see {@link DBUtils#bindArgs(Statement, Object[])}, or null
+     * @return cursor, which must be closed after use
+     */
+    RowCursor rawQuery(String sql, Object[] args);
+
+    /**
+     * Compile a statement that can be executed more than once.
+     *
+     * @param sql SQL
+     * @return statement, which must be closed after use
+     */
+    Statement compileStatement(String sql);
+
+    /**
+     * @return row id of the inserted row, or -1 if failed
+     */
+    long insert(String table, RowValues values);
+
+    /**
+     * @return count of updated rows
+     */
+    int update(String table, RowValues values, String whereClause, Object[] whereArgs);
+
+    /**
+     * @return count of deleted rows
+     */
+    int delete(String table, String whereClause, Object[] whereArgs);
+
+    /**
+     * Enable write-ahead logging, see {@link DBox#enableWriteAheadLogging()}.
+     *
+     * @return true if enabled
+     */
+    boolean enableWriteAheadLogging();
+
+    void beginTransaction();
+
+    /**
+     * Begin a transaction that only reads, which doesn't block readers on other connections,
+     * and can be nested in or contain a transaction begun by {@link #beginTransaction()}.
+     */
+    void beginReadTransaction();
+
+    void setTransactionSuccessful();
+
+    void endTransaction();
+
+    /**
+     * A compiled statement.
+     */
+    interface Statement {
+        /**
+         * Bind arguments to the "?"s in order, see {@link DBUtils#bindArgs(Statement, Object[])}.
+         */
+        void bindNull(int index);
+
+        void bindLong(int index, long value);
+
+        void bindDouble(int index, double value);
+
+        void bindString(int index, String value);
+
+        void bindBlob(int index, byte[] value);
+
+        /**
+         * @return value of the first column of the first row, or 0 if no rows returned
+         */
+        long simpleQueryForLong();
+
+        /**
+         * @return value of the first column of the first row, or null if no rows returned
+         */
+        String simpleQueryForString();
+
+        /**
+         * @return row id of the inserted row, or -1 if failed
+         */
+        long executeInsert();
+
+        /**
+         * @return count of changed rows
+         */
+        int executeUpdateDelete();
+
+        void close();
+    }
+}
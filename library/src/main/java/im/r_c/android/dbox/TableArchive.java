@@ -0,0 +1,377 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+/**
+ * Streams records of tables to and from a compact columnar binary format,
+ * a chunk of rows at a time, so that memory use doesn't grow with the tables.
+ * <p>
+ * Varints are unsigned LEB128, and strings are a varint of the UTF-8 length followed by the bytes.
+ * <pre>
+ * "DBOX", version (varint)
+ * for each table:
+ *     1 (byte), table name, column count (varint), column names
+ *     for each chunk: row count (varint), then for each column, values of all the rows
+ *     0 (varint)
+ * 0 (byte)
+ * </pre>
+ * Every value is a byte of its storage class (see {@link RowCursor}), followed by:
+ * <ul>
+ * <li>INTEGER: zigzag varint of the difference from the previous integer of the column in the chunk,
+ * so ascending ids and small numbers take 1 or 2 bytes</li>
+ * <li>FLOAT: raw IEEE 754 bits, big-endian</li>
+ * <li>STRING: the string</li>
+ * <li>BLOB: varint of the length followed by the bytes</li>
+ * <li>NULL: nothing</li>
+ * </ul>
+ */
+class TableArchive {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = {'D', 'B', 'O', 'X'};
+    private static final int VERSION = 1;
+
+    /**
+     * Max count of rows in a chunk.
+     */
+    private static final int CHUNK_ROW_COUNT = 512;
+
+    /**
+     * Max length of a string or BLOB, which is SQLite's default SQLITE_MAX_LENGTH.
+     */
+    private static final int MAX_BYTES_LENGTH = 1000000000;
+
+    /**
+     * Bytes of a long string or BLOB are read into a buffer of this size at first,
+     * which grows only as the bytes arrive, so a corrupted length can't make a huge array.
+     */
+    private static final int BYTES_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Write all records of tables, skipping the ones that don't exist.
+     * <p>
+     * The stream is flushed but not closed.
+     *
+     * @param db     storage
+     * @param tables table names
+     * @param os     stream to write to
+     */
+    static void write(Storage db, Collection<String> tables, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.write(MAGIC);
+        writeVarint(out, VERSION);
+
+        for (String table : tables) {
+            if (!DBUtils.isTableExists(db, table)) {
+                continue;
+            }
+
+            String[] columns = getColumns(db, table);
+            out.writeByte(1);
+            writeString(out, table);
+            writeVarint(out, columns.length);
+            for (String column : columns) {
+                writeString(out, column);
+            }
+
+            // Read a chunk at a time by rowid, rather than keeping a cursor over the whole table
+            StringBuilder builder = new StringBuilder("SELECT rowid");
+            for (String column : columns) {
+                builder.append(", ").append(column);
+            }
+            builder.append(" FROM ").append(table)
+                    .append(" WHERE rowid > ? ORDER BY rowid LIMIT ").append(CHUNK_ROW_COUNT).append(";");
+            String sql = builder.toString();
+
+            long lastRowId = Long.MIN_VALUE;
+            int count;
+            do {
+                RowCursor c = db.rawQuery(sql, new String[]{String.valueOf(lastRowId)});
+                try {
+                    count = c.getCount();
+                    if (count > 0) {
+                        writeVarint(out, count);
+                        // The first column is rowid
+                        for (int i = 1; i <= columns.length; i++) {
+                            long last = 0;
+                            for (int j = 0; j < count; j++) {
+                                c.moveToPosition(j);
+                                last = writeValue(out, c, i, last);
+                            }
+                        }
+                        c.moveToLast();
+                        lastRowId = c.getLong(0);
+                    }
+                } finally {
+                    c.close();
+                }
+            } while (count == CHUNK_ROW_COUNT);
+            writeVarint(out, 0);
+        }
+
+        out.writeByte(0);
+        out.flush();
+    }
+
+    /**
+     * Insert all records in a stream written by {@link #write(Storage, Collection, OutputStream)}
+     * into their tables, which must exist and be in the given ones.
+     * <p>
+     * Each table is inserted by a single compiled statement.
+     *
+     * @param db     storage
+     * @param tables table names allowed
+     * @param is     stream to read from
+     * @return count of inserted rows
+     */
+    static int read(Storage db, Collection<String> tables, InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not exported by DBox.");
+        }
+        long version = readVarint(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+
+        int rowCount = 0;
+        while (in.readByte() != 0) {
+            String table = readString(in);
+            if (!tables.contains(table)) {
+                throw new IOException("Unexpected table: " + table);
+            }
+            // Every column is bound to a "?" of the insert statement,
+            // and must be one of the table, since it's put into the statement as is
+            List<String> tableColumns = Arrays.asList(getColumns(db, table));
+            String[] columns = new String[readCount(in, SQLBuilder.MAX_ARG_COUNT)];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = readString(in);
+                if (!tableColumns.contains(columns[i])) {
+                    throw new IOException("Unexpected column of " + table + ": " + columns[i]);
+                }
+            }
+
+            StringBuilder builder = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            for (int i = 0; i < columns.length; i++) {
+                builder.append(i > 0 ? ", " : "").append(columns[i]);
+            }
+            builder.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                builder.append(i > 0 ? ", ?" : "?");
+            }
+            builder.append(");");
+
+            // Values of a chunk by column and row,
+            // integers and bits of floats are kept in longs without boxing
+            byte[][] types = new byte[columns.length][CHUNK_ROW_COUNT];
+            long[][] longs = new long[columns.length][CHUNK_ROW_COUNT];
+            Object[][] objects = new Object[columns.length][CHUNK_ROW_COUNT];
+
+            Storage.Statement statement = db.compileStatement(builder.toString());
+            try {
+                int count;
+                while ((count = readCount(in, CHUNK_ROW_COUNT)) > 0) {
+                    for (int i = 0; i < columns.length; i++) {
+                        readColumn(in, count, types[i], longs[i], objects[i]);
+                    }
+                    for (int j = 0; j < count; j++) {
+                        for (int i = 0; i < columns.length; i++) {
+                            bindValue(statement, i + 1, types[i][j], longs[i][j], objects[i][j]);
+                        }
+                        if (statement.executeInsert() == -1) {
+                            throw new IOException("Failed to insert into " + table);
+                        }
+                    }
+                    rowCount += count;
+                }
+            } finally {
+                statement.close();
+            }
+        }
+        return rowCount;
+    }
+
+    private static String[] getColumns(Storage db, String table) {
+        RowCursor c = db.rawQuery("PRAGMA table_info(" + table + ");", null);
+        try {
+            int nameIdx = c.getColumnIndexOrThrow("name");
+            List<String> columns = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                columns.add(c.getString(nameIdx));
+            }
+            return columns.toArray(new String[columns.size()]);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the integer written if the value is an integer, otherwise the last one
+     */
+    private static long writeValue(DataOutputStream out, RowCursor c, int columnIdx, long last) throws IOException {
+        int type = c.getType(columnIdx);
+        out.writeByte(type);
+        switch (type) {
+            case RowCursor.FIELD_TYPE_INTEGER:
+                long value = c.getLong(columnIdx);
+                long delta = value - last;
+                writeVarint(out, (delta << 1) ^ (delta >> 63));
+                return value;
+            case RowCursor.FIELD_TYPE_FLOAT:
+                out.writeDouble(c.getDouble(columnIdx));
+                break;
+            case RowCursor.FIELD_TYPE_STRING:
+                writeString(out, c.getString(columnIdx));
+                break;
+            case RowCursor.FIELD_TYPE_BLOB:
+                writeBytes(out, c.getBlob(columnIdx));
+                break;
+        }
+        return last;
+    }
+
+    private static void readColumn(DataInputStream in, int count, byte[] types, long[] longs, Object[] objects) throws IOException {
+        long last = 0;
+        for (int j = 0; j < count; j++) {
+            byte type = in.readByte();
+            types[j] = type;
+            objects[j] = null;
+            switch (type) {
+                case RowCursor.FIELD_TYPE_NULL:
+                    break;
+                case RowCursor.FIELD_TYPE_INTEGER:
+                    long zigzag = readVarint(in);
+                    last += (zigzag >>> 1) ^ -(zigzag & 1);
+                    longs[j] = last;
+                    break;
+                case RowCursor.FIELD_TYPE_FLOAT:
+                    longs[j] = in.readLong();
+                    break;
+                case RowCursor.FIELD_TYPE_STRING:
+                    objects[j] = readString(in);
+                    break;
+                case RowCursor.FIELD_TYPE_BLOB:
+                    objects[j] = readBytes(in);
+                    break;
+                default:
+                    throw new IOException("Unknown value type: " + type);
+            }
+        }
+    }
+
+    private static void bindValue(Storage.Statement statement, int index, byte type, long l, Object o) {
+        switch (type) {
+            case RowCursor.FIELD_TYPE_INTEGER:
+                statement.bindLong(index, l);
+                break;
+            case RowCursor.FIELD_TYPE_FLOAT:
+                statement.bindDouble(index, Double.longBitsToDouble(l));
+                break;
+            case RowCursor.FIELD_TYPE_STRING:
+                statement.bindString(index, (String) o);
+                break;
+            case RowCursor.FIELD_TYPE_BLOB:
+                statement.bindBlob(index, (byte[]) o);
+                break;
+            default:
+                statement.bindNull(index);
+                break;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * Read a varint that must be within [0, max], so that a corrupted stream
+     * can't make a huge array.
+     */
+    private static int readCount(DataInputStream in, int max) throws IOException {
+        long count = readVarint(in);
+        if (count < 0 || count > max) {
+            throw new IOException("Malformed count: " + count);
+        }
+        return (int) count;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = readCount(in, MAX_BYTES_LENGTH);
+        byte[] bytes = new byte[Math.min(length, BYTES_CHUNK_SIZE)];
+        int n = 0;
+        while (n < length) {
+            if (n == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, bytes.length * 2L));
+            }
+            int read = in.read(bytes, n, bytes.length - n);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            n += read;
+        }
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), UTF_8);
+    }
+}
@@ -16,13 +16,19 @@
 
 package im.r_c.android.dbox;
 
-import android.support.v4.util.ArrayMap;
-
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Embedded;
 import im.r_c.android.dbox.annotation.ObjectColumn;
 import im.r_c.android.dbox.annotation.Table;
 
@@ -37,6 +43,12 @@ import im.r_c.android.dbox.annotation.Table;
 class TableInfo {
     static final String COLUMN_ID = "id";
 
+    /**
+     * Key: data class,
+     * Value: table info of the class, which is never changed once made.
+     */
+    private static final Map<Class<?>, TableInfo> sTableInfoMap = new HashMap<>();
+
     /**
      * Table name.
      */
@@ -48,7 +60,7 @@ class TableInfo {
     Class<?> mClass;
 
     /**
-     * Key: name of instance field,
+     * Key: name of instance field, or path of an embedded field like "address.city",
      * Value: column info.
      */
     Map<String, ColumnInfo> mColumnMap;
@@ -60,19 +72,57 @@ class TableInfo {
     Map<String, ObjectColumnInfo> mObjectColumnMap;
 
     /**
-     * Make a TableInfo object from a data class.
+     * The first unique column besides "id", if any,
+     * which can be used to find an existing record of an object without id.
+     */
+    ColumnInfo mNaturalKey;
+
+    /**
+     * Columns annotated as full-text, empty if none.
+     */
+    List<ColumnInfo> mFullTextColumns;
+
+    /**
+     * Get the TableInfo object of a data class, made at first use.
      *
      * @param clz data class
      * @return table info
      */
     static TableInfo of(Class<?> clz) {
+        synchronized (sTableInfoMap) {
+            TableInfo ti = sTableInfoMap.get(clz);
+            if (ti == null) {
+                ti = make(clz);
+                sTableInfoMap.put(clz, ti);
+            }
+            return ti;
+        }
+    }
+
+    /**
+     * Forget all TableInfo objects, e.g. after type converters changed.
+     */
+    static void clearCache() {
+        synchronized (sTableInfoMap) {
+            sTableInfoMap.clear();
+        }
+    }
+
+    /**
+     * Make a TableInfo object from a data class.
+     *
+     * @param clz data class
+     * @return table info
+     */
+    private static TableInfo make(Class<?> clz) {
         TableInfo ti = new TableInfo();
         ti.mName = nameOf(clz);
         ti.mClass = clz;
 
         Field[] fields = clz.getDeclaredFields();
-        ti.mColumnMap = new ArrayMap<>();
-        ti.mObjectColumnMap = new ArrayMap<>();
+        ti.mColumnMap = new LinkedHashMap<>();
+        ti.mObjectColumnMap = new LinkedHashMap<>();
+        ti.mFullTextColumns = new ArrayList<>();
         boolean hasIdField = false;
         for (Field field : fields) {
             String fieldName = field.getName();
@@ -97,12 +147,19 @@ class TableInfo {
 
             Column column = field.getAnnotation(Column.class);
             if (column != null) {
-                ti.mColumnMap.put(fieldName, ColumnInfo.of(field, column));
-            } else {
-                ObjectColumn objectColumn = field.getAnnotation(ObjectColumn.class);
-                if (objectColumn != null) {
-                    ti.mObjectColumnMap.put(fieldName, ObjectColumnInfo.of(field, objectColumn));
-                }
+                ti.addColumn(fieldName, ColumnInfo.of(field, column));
+                continue;
+            }
+
+            Embedded embedded = field.getAnnotation(Embedded.class);
+            if (embedded != null) {
+                ti.addEmbeddedColumns(field, embedded, new Field[0], "", "");
+                continue;
+            }
+
+            ObjectColumn objectColumn = field.getAnnotation(ObjectColumn.class);
+            if (objectColumn != null) {
+                ti.mObjectColumnMap.put(fieldName, ObjectColumnInfo.of(field, objectColumn));
             }
         }
 
@@ -118,6 +175,54 @@ class TableInfo {
         return ti;
     }
 
+    private void addColumn(String key, ColumnInfo ci) {
+        mColumnMap.put(key, ci);
+        if (ci.mUnique && mNaturalKey == null) {
+            mNaturalKey = ci;
+        }
+        if (ci.mFullText) {
+            mFullTextColumns.add(ci);
+        }
+    }
+
+    /**
+     * Add the columns of an embedded object, recursively if it embeds other objects.
+     *
+     * @param field        embedded field
+     * @param embedded     annotation of the field
+     * @param path         embedded fields leading to the object that holds the field
+     * @param keyPrefix    prefix of the column map keys, e.g. "home."
+     * @param columnPrefix prefix of the column names, e.g. "home_"
+     */
+    private void addEmbeddedColumns(Field field, Embedded embedded, Field[] path, String keyPrefix, String columnPrefix) {
+        if (!field.isAccessible()) {
+            field.setAccessible(true);
+        }
+
+        Field[] embeddedPath = Arrays.copyOf(path, path.length + 1);
+        embeddedPath[path.length] = field;
+        keyPrefix += field.getName() + ".";
+        columnPrefix += "".equals(embedded.prefix()) ? field.getName() + "_" : embedded.prefix();
+
+        for (Field f : field.getType().getDeclaredFields()) {
+            Column column = f.getAnnotation(Column.class);
+            if (column != null) {
+                ColumnInfo ci = ColumnInfo.of(f, column);
+                ci.mName = columnPrefix + ci.mName;
+                ci.mEmbeddedPath = embeddedPath;
+                addColumn(keyPrefix + f.getName(), ci);
+                continue;
+            }
+
+            Embedded e = f.getAnnotation(Embedded.class);
+            if (e != null) {
+                addEmbeddedColumns(f, e, embeddedPath, keyPrefix, columnPrefix);
+            } else if (f.getAnnotation(ObjectColumn.class) != null) {
+                throw new IllegalArgumentException("Object field \"" + f + "\" is unsupported in an embedded class.");
+            }
+        }
+    }
+
     static String nameOf(Class<?> clz) {
         Table table = clz.getAnnotation(Table.class);
         if (table == null) {
@@ -144,13 +249,31 @@ class ColumnInfo {
     static final int TYPE_DATE = 108;
     static final int TYPE_BYTE_ARRAY = 109;
 
+    // Stored as BLOBs encoded by BlobCodec
+    static final int TYPE_INT_ARRAY = 113;
+    static final int TYPE_LONG_ARRAY = 114;
+    static final int TYPE_FLOAT_ARRAY = 115;
+    static final int TYPE_DOUBLE_ARRAY = 116;
+    static final int TYPE_STRING_LIST = 117;
+
+    // Converted by mConverter
+    static final int TYPE_CONVERTED = 118;
+
     int mType;
     String mName;
     boolean mNotNull;
     boolean mUnique;
     boolean mPrimaryKey;
     boolean mAutoIncrement;
+    boolean mFullText;
     Field mField;
+    DBoxTypeConverter<?> mConverter;
+
+    /**
+     * Embedded fields leading from the table object to the object that holds the field,
+     * null if the field is declared in the table class.
+     */
+    Field[] mEmbeddedPath;
 
     /**
      * Make a ColumnInfo object from a instance field.
@@ -183,8 +306,22 @@ class ColumnInfo {
             ci.mType = TYPE_DATE;
         } else if (type == byte[].class) {
             ci.mType = TYPE_BYTE_ARRAY;
+        } else if (type == int[].class) {
+            ci.mType = TYPE_INT_ARRAY;
+        } else if (type == long[].class) {
+            ci.mType = TYPE_LONG_ARRAY;
+        } else if (type == float[].class) {
+            ci.mType = TYPE_FLOAT_ARRAY;
+        } else if (type == double[].class) {
+            ci.mType = TYPE_DOUBLE_ARRAY;
+        } else if (type == List.class && isStringList(field.getGenericType())) {
+            ci.mType = TYPE_STRING_LIST;
         } else {
-            throw new IllegalArgumentException("Unsupported column type found: " + type + ".");
+            ci.mConverter = DBoxConverters.find(type);
+            if (ci.mConverter == null) {
+                throw new IllegalArgumentException("Unsupported column type found: " + type + ", did you forget to register a converter?");
+            }
+            ci.mType = TYPE_CONVERTED;
         }
 
         String columnName = column.name();
@@ -193,14 +330,73 @@ class ColumnInfo {
         ci.mUnique = column.unique();
         ci.mPrimaryKey = column.primaryKey();
         ci.mAutoIncrement = column.autoIncrement();
+        ci.mFullText = column.fullText();
         ci.mField = field;
 
+        if (ci.mFullText && ci.mType != TYPE_STRING) {
+            throw new IllegalArgumentException("Full-text column \"" + field + "\" must be a String.");
+        }
+
         if (!ci.mField.isAccessible()) {
             ci.mField.setAccessible(true);
         }
 
         return ci;
     }
+
+    private static boolean isStringList(Type type) {
+        return type instanceof ParameterizedType
+                && ((ParameterizedType) type).getActualTypeArguments()[0] == String.class;
+    }
+
+    /**
+     * Check if the column is stored as a BLOB, which can only be compared for equality.
+     */
+    boolean isBlob() {
+        return mType == TYPE_BYTE_ARRAY || (mType >= TYPE_INT_ARRAY && mType <= TYPE_STRING_LIST)
+                || mConverter instanceof DBoxTypeConverter.BlobConverter;
+    }
+
+    /**
+     * Get the object that holds the field of this column.
+     *
+     * @param obj table object
+     * @return the table object itself if not embedded,
+     * or the embedded object, which is null if any object on the path is null
+     */
+    Object holderOf(Object obj) throws IllegalAccessException {
+        if (mEmbeddedPath != null) {
+            for (int i = 0; i < mEmbeddedPath.length && obj != null; i++) {
+                obj = mEmbeddedPath[i].get(obj);
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Get the object that holds the field of this column,
+     * creating the embedded objects on the path if they are null.
+     *
+     * @param obj table object
+     * @return holder object
+     */
+    Object holderOrCreate(Object obj) throws Exception {
+        if (mEmbeddedPath != null) {
+            for (Field field : mEmbeddedPath) {
+                Object embedded = field.get(obj);
+                if (embedded == null) {
+                    Constructor<?> constructor = field.getType().getDeclaredConstructor();
+                    if (!constructor.isAccessible()) {
+                        constructor.setAccessible(true);
+                    }
+                    embedded = constructor.newInstance();
+                    field.set(obj, embedded);
+                }
+                obj = embedded;
+            }
+        }
+        return obj;
+    }
 }
 
 /**
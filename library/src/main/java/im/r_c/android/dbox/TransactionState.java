@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * DBox
+ * Created by richard on 7/23/16.
+ */
+
+/**
+ * Tracks (possibly nested) transactions of the current thread,
+ * so that things that must only happen after the data is really committed,
+ * e.g. updating row snapshots and notifying query observers,
+ * are deferred until the outermost transaction ends.
+ */
+class TransactionState {
+    private static final ThreadLocal<TransactionState> sState = new ThreadLocal<TransactionState>() {
+        @Override
+        protected TransactionState initialValue() {
+            return new TransactionState();
+        }
+    };
+
+    private int mDepth;
+    private boolean mSuccessful;
+    private boolean mFailed;
+
+    /**
+     * Snapshots to put into {@link SnapshotCache} after committed.
+     */
+    private List<PendingSnapshot> mPendingSnapshots = new ArrayList<>();
+
+    /**
+     * Tables changed in the current transaction.
+     * <p>
+     * Key: table name,
+     * Value: ids of changed rows, or null if unknown.
+     * For mapping tables, the ids are of the owner objects, e.g. "Student" ids
+     * for "_Student_Course_mapping".
+     */
+    private Map<String, Set<Long>> mChangedTables = new HashMap<>();
+
+    static void begin(Storage db) {
+        TransactionState state = sState.get();
+        db.beginTransaction();
+        state.mDepth++;
+        state.mSuccessful = false;
+    }
+
+    /**
+     * Begin a transaction that only reads, see {@link Storage#beginReadTransaction()}.
+     */
+    static void beginRead(Storage db) {
+        TransactionState state = sState.get();
+        db.beginReadTransaction();
+        state.mDepth++;
+        state.mSuccessful = false;
+    }
+
+    static void setSuccessful(Storage db) {
+        db.setTransactionSuccessful();
+        sState.get().mSuccessful = true;
+    }
+
+    static void end(Storage db) {
+        TransactionState state = sState.get();
+        try {
+            db.endTransaction();
+        } finally {
+            if (!state.mSuccessful) {
+                // The whole transaction will be rolled back if any nested one fails
+                state.mFailed = true;
+            }
+            state.mSuccessful = false;
+            if (--state.mDepth == 0) {
+                state.finish();
+            }
+        }
+    }
+
+    /**
+     * @return true if the current thread is in a transaction
+     */
+    static boolean isInTransaction() {
+        return sState.get().mDepth > 0;
+    }
+
+    /**
+     * Put a snapshot of the values written from an object to a row,
+     * deferred until the outermost transaction commits.
+     */
+    static void putSnapshot(String table, long id, Object owner, RowValues values) {
+        TransactionState state = sState.get();
+        if (state.mDepth == 0) {
+            SnapshotCache.put(table, id, owner, values);
+        } else {
+            state.mPendingSnapshots.add(new PendingSnapshot(table, id, owner, values));
+        }
+    }
+
+    /**
+     * Remove a row snapshot immediately, including the pending one.
+     */
+    static void removeSnapshot(String table, long id) {
+        SnapshotCache.remove(table, id);
+        Iterator<PendingSnapshot> iter = sState.get().mPendingSnapshots.iterator();
+        while (iter.hasNext()) {
+            PendingSnapshot ps = iter.next();
+            if (ps.mId == id && ps.mTable.equals(table)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all row snapshots of a table immediately, including the pending ones.
+     */
+    static void removeSnapshots(String table) {
+        SnapshotCache.removeTable(table);
+        Iterator<PendingSnapshot> iter = sState.get().mPendingSnapshots.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().mTable.equals(table)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Mark a table as changed without knowing which rows changed,
+     * observers of it will be notified once after the outermost transaction commits.
+     */
+    static void markChanged(String table) {
+        TransactionState state = sState.get();
+        state.mChangedTables.put(table, null);
+        if (state.mDepth == 0) {
+            state.finish();
+        }
+    }
+
+    /**
+     * Mark a row of a table as changed,
+     * observers of it will be notified once after the outermost transaction commits.
+     */
+    static void markChanged(String table, long id) {
+        TransactionState state = sState.get();
+        if (!state.mChangedTables.containsKey(table)) {
+            state.mChangedTables.put(table, new HashSet<Long>());
+        }
+        Set<Long> ids = state.mChangedTables.get(table);
+        if (ids != null) {
+            ids.add(id);
+        }
+        if (state.mDepth == 0) {
+            state.finish();
+        }
+    }
+
+    private void finish() {
+        Map<String, Set<Long>> changedTables = null;
+        if (!mFailed) {
+            for (PendingSnapshot ps : mPendingSnapshots) {
+                SnapshotCache.put(ps.mTable, ps.mId, ps.mOwner, ps.mValues);
+            }
+            if (!mChangedTables.isEmpty()) {
+                changedTables = new HashMap<>(mChangedTables);
+            }
+        }
+        mPendingSnapshots.clear();
+        mChangedTables.clear();
+        mFailed = false;
+
+        if (changedTables != null) {
+            QueryObserver.notifyChanged(changedTables);
+        }
+    }
+
+    private static class PendingSnapshot {
+        String mTable;
+        long mId;
+        Object mOwner;
+        RowValues mValues;
+
+        PendingSnapshot(String table, long id, Object owner, RowValues values) {
+            mTable = table;
+            mId = id;
+            mOwner = owner;
+            mValues = values;
+        }
+    }
+}
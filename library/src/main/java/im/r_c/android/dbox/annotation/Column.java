@@ -41,4 +41,10 @@ public @interface Column {
     boolean primaryKey() default false;
 
     boolean autoIncrement() default false;
+
+    /**
+     * Index the column (must be a String) in a full-text table,
+     * so that it can be searched by {@code DBoxCondition.matches()}.
+     */
+    boolean fullText() default false;
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * DBox
+ * Created by richard on 7/27/16.
+ */
+
+/**
+ * Mark an instance field as an embedded object, whose {@code @Column} fields
+ * are stored inline as columns of the owning table, instead of in another table.
+ * <p>
+ * The embedded class needs a no-arg constructor, but no {@code @Table} annotation and no "id" field.
+ * An embedded object is read back as null if all its columns are NULL.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Embedded {
+    /**
+     * Prefix of the column names of the embedded fields,
+     * defaults to the field name followed by "_", e.g. "address_city".
+     */
+    String prefix() default "";
+}
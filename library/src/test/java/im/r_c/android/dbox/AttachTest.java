@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class AttachTest extends DBoxTestCase {
+    @Table
+    static class Country {
+        long id;
+        @Column
+        String code;
+        @Column
+        String name;
+    }
+
+    private File mReferenceFile;
+
+    @Before
+    public void setUpReferenceDatabase() throws Exception {
+        // A path that needs escaping in a URI
+        mReferenceFile = new File(mFolder.newFolder("ref 100%"), "ref#1.db");
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + mReferenceFile.getPath());
+        try {
+            Statement statement = connection.createStatement();
+            statement.executeUpdate("CREATE TABLE Country (id INTEGER PRIMARY KEY AUTOINCREMENT, code TEXT, name TEXT);");
+            statement.executeUpdate("INSERT INTO Country (code, name) VALUES ('CN', 'China'), ('FR', 'France');");
+            statement.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void findFromAttached() throws Exception {
+        assertTrue(DBox.attach(mReferenceFile.getPath(), "ref"));
+        List<Country> countries = DBox.of(Country.class).findAll().orderBy("code").results().all();
+        assertEquals(2, countries.size());
+        assertEquals("China", countries.get(0).name);
+        assertEquals("France", countries.get(1).name);
+
+        // Attached read-only
+        Country country = new Country();
+        country.code = "JP";
+        country.name = "Japan";
+        assertFalse(DBox.of(Country.class).save(country));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM ref.Country;"));
+
+        assertTrue(DBox.detach("ref"));
+    }
+
+    @Test
+    public void attachMissingFile() throws Exception {
+        File missing = new File(mFolder.getRoot(), "missing.db");
+        assertFalse(DBox.attach(missing.getPath(), "ref"));
+        assertFalse(missing.exists());
+    }
+}
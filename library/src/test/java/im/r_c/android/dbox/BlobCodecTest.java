@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package im.r_c.android.dbox;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class BlobCodecTest extends DBoxTestCase {
+    @Table
+    static class Sample {
+        long id;
+        @Column
+        int[] ints;
+        @Column
+        long[] longs;
+        @Column
+        float[] floats;
+        @Column
+        double[] doubles;
+        @Column
+        List<String> tagList;
+    }
+
+    @Test
+    public void intArray() {
+        int[] values = {0, 1, -1, 63, -64, 64, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        assertArrayEquals(values, (int[]) roundTrip(ColumnInfo.TYPE_INT_ARRAY, values));
+        // Small negative numbers take a byte each, after the count
+        assertEquals(3, BlobCodec.encode(ColumnInfo.TYPE_INT_ARRAY, new int[]{-1, -64}).length);
+    }
+
+    @Test
+    public void longArray() {
+        long[] values = {0, -1, 1L << 40, -(1L << 40), Long.MAX_VALUE, Long.MIN_VALUE};
+        assertArrayEquals(values, (long[]) roundTrip(ColumnInfo.TYPE_LONG_ARRAY, values));
+        assertEquals(3, BlobCodec.encode(ColumnInfo.TYPE_LONG_ARRAY, new long[]{-1, 63}).length);
+    }
+
+    @Test
+    public void floatingArrays() {
+        float[] floats = {0f, -0f, 1.5f, -Float.MAX_VALUE, Float.MIN_VALUE, Float.NaN, Float.NEGATIVE_INFINITY};
+        assertArrayEquals(floats, (float[]) roundTrip(ColumnInfo.TYPE_FLOAT_ARRAY, floats), 0);
+        double[] doubles = {0d, -0d, -2.25, Double.MAX_VALUE, Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY};
+        assertArrayEquals(doubles, (double[]) roundTrip(ColumnInfo.TYPE_DOUBLE_ARRAY, doubles), 0);
+    }
+
+    @Test
+    public void stringList() {
+        List<String> values = Arrays.asList("a", "", null, "\u00e9\u4e2d\uD83D\uDE00");
+        assertEquals(values, roundTrip(ColumnInfo.TYPE_STRING_LIST, values));
+    }
+
+    @Test
+    public void emptyAndNull() {
+        assertEquals(0, ((int[]) roundTrip(ColumnInfo.TYPE_INT_ARRAY, new int[0])).length);
+        assertEquals(0, ((double[]) roundTrip(ColumnInfo.TYPE_DOUBLE_ARRAY, new double[0])).length);
+        assertEquals(Collections.emptyList(), roundTrip(ColumnInfo.TYPE_STRING_LIST, new ArrayList<String>()));
+        assertNull(BlobCodec.encode(ColumnInfo.TYPE_LONG_ARRAY, null));
+    }
+
+    @Test
+    public void saveAndFind() throws Exception {
+        DBox<Sample> box = DBox.of(Sample.class);
+        Sample sample = new Sample();
+        sample.ints = new int[]{-3, 0, 3};
+        sample.longs = new long[0];
+        sample.doubles = new double[]{-0.5};
+        sample.tagList = new ArrayList<>(Arrays.asList("x", null));
+        assertTrue(box.save(sample));
+        // Stored in a single column each, with no mapping tables
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM sqlite_master WHERE name LIKE '%mapping%';"));
+
+        Sample found = box.findAll().results().first();
+        assertArrayEquals(sample.ints, found.ints);
+        assertEquals(0, found.longs.length);
+        assertNull(found.floats);
+        assertArrayEquals(sample.doubles, found.doubles, 0);
+        assertEquals(sample.tagList, found.tagList);
+
+        sample.tagList.clear();
+        assertTrue(box.save(sample));
+        assertEquals(0, box.findAll().results().first().tagList.size());
+    }
+
+    private static Object roundTrip(int type, Object value) {
+        return BlobCodec.decode(type, BlobCodec.encode(type, value));
+    }
+}
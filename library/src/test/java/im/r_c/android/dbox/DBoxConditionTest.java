@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.ObjectColumn;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class DBoxConditionTest extends DBoxTestCase {
+    @Table
+    static class Course {
+        long id;
+        @Column
+        String name;
+
+        Course() {
+        }
+
+        Course(String name) {
+            this.name = name;
+        }
+    }
+
+    @Table
+    static class Student {
+        long id;
+        @Column
+        String name;
+        @ObjectColumn(Course.class)
+        List<Course> courseList = new ArrayList<>();
+    }
+
+    @Before
+    public void setUpStudents() {
+        Course c1 = new Course("C1"), c2 = new Course("C2"), c3 = new Course("C3");
+        // A student named like a course, which matches if a predicate leaks out of the related field
+        saveStudent("A", c1, c2);
+        saveStudent("B", c1);
+        saveStudent("C3", c1);
+        saveStudent("D", c3);
+    }
+
+    @Test
+    public void relatedPredicate() {
+        assertFound(new DBoxCondition().related("courseList").equalTo("name", "C1"), "A", "B", "C3");
+    }
+
+    @Test
+    public void relatedNot() {
+        assertFound(new DBoxCondition().related("courseList").not().equalTo("name", "C1"), "A", "D");
+        assertFound(new DBoxCondition().not().related("courseList").equalTo("name", "C1"), "D");
+    }
+
+    @Test
+    public void relatedGroup() {
+        assertFound(new DBoxCondition().related("courseList")
+                .beginGroup().equalTo("name", "C2").or().equalTo("name", "C3").endGroup(), "A", "D");
+        assertFound(new DBoxCondition().related("courseList")
+                .not().beginGroup().equalTo("name", "C1").or().equalTo("name", "C2").endGroup(), "D");
+
+        // Groups after the related one are not affected
+        assertFound(new DBoxCondition()
+                .related("courseList").beginGroup().equalTo("name", "C1").endGroup()
+                .beginGroup().equalTo("name", "B").or().equalTo("name", "C3").endGroup(), "B", "C3");
+    }
+
+    @Test
+    public void deleteByRelated() throws Exception {
+        DBox<Student> box = DBox.of(Student.class);
+        assertEquals(1, box.delete(new DBoxCondition().related("courseList").equalTo("name", "C2")));
+        assertEquals(3, queryLong("SELECT COUNT(*) FROM Student;"));
+        assertEquals(3, queryLong("SELECT COUNT(*) FROM _Student_Course_mapping;"));
+        assertFound(new DBoxCondition(), "B", "C3", "D");
+    }
+
+    @Test
+    public void deleteByHasAny() throws Exception {
+        DBox<Student> box = DBox.of(Student.class);
+        assertEquals(4, box.delete(new DBoxCondition().hasAny("courseList")));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM Student;"));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM _Student_Course_mapping;"));
+        assertEquals(3, queryLong("SELECT COUNT(*) FROM Course;"));
+    }
+
+    @Test
+    public void countRelated() throws Exception {
+        long idA = queryLong("SELECT id FROM Student WHERE name = 'A';");
+        long idD = queryLong("SELECT id FROM Student WHERE name = 'D';");
+        DBoxCounts counts = DBox.of(Student.class).findAll().countRelated("courseList");
+        assertEquals(4, counts.size());
+        assertEquals(2, counts.get(idA));
+        assertEquals(1, counts.get(idD));
+        assertEquals(0, counts.get(idD + 100));
+
+        counts = DBox.of(Student.class).find(new DBoxCondition().equalTo("name", "D")).countRelated("courseList");
+        assertEquals(1, counts.size());
+        assertEquals(idD, counts.idAt(0));
+        assertEquals(1, counts.countAt(0));
+        assertEquals(0, counts.get(idA));
+    }
+
+    @Test
+    public void sizeGreaterThan() {
+        assertFound(new DBoxCondition().sizeGreaterThan("courseList", 1), "A");
+        assertFound(new DBoxCondition().sizeGreaterThan("courseList", 0), "A", "B", "C3", "D");
+        assertFound(new DBoxCondition().not().sizeGreaterThan("courseList", 1), "B", "C3", "D");
+        assertFound(new DBoxCondition().hasAny("courseList").and().equalTo("name", "D"), "D");
+    }
+
+    @Test
+    public void hasAnyAfterMappingsRemoved() throws Exception {
+        // Objects without any related object are not found, so count them by removing
+        exec("DELETE FROM _Student_Course_mapping WHERE _Student_courseList_id = (SELECT id FROM Student WHERE name = 'B');");
+        DBox<Student> box = DBox.of(Student.class);
+        assertEquals(1, box.delete(new DBoxCondition().not().hasAny("courseList")));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM Student WHERE name = 'B';"));
+        assertFound(new DBoxCondition().hasAny("courseList"), "A", "C3", "D");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void relatedFollowedByOperator() {
+        new DBoxCondition().related("courseList").or().equalTo("name", "C1");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void relatedGroupNotEnded() {
+        new DBoxCondition().related("courseList").beginGroup().equalTo("name", "C1")
+                .build(TableInfo.of(Student.class));
+    }
+
+    private static void saveStudent(String name, Course... courses) {
+        Student student = new Student();
+        student.name = name;
+        student.courseList.addAll(Arrays.asList(courses));
+        assertTrue(DBox.of(Student.class).save(student, DBox.Cascade.SAVE));
+    }
+
+    private static void assertFound(DBoxCondition condition, String... names) {
+        List<String> foundNames = new ArrayList<>();
+        for (Student student : DBox.of(Student.class).find(condition).orderBy("name").results().all()) {
+            foundNames.add(student.name);
+        }
+        assertEquals(Arrays.asList(names), foundNames);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package im.r_c.android.dbox;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class DBoxConvertersTest extends DBoxTestCase {
+    enum Level {
+        LOW, MEDIUM, HIGH
+    }
+
+    @Table
+    static class Task {
+        long id;
+        @Column
+        Level level;
+        @Column
+        UUID uuid;
+        @Column
+        BigDecimal price;
+    }
+
+    /**
+     * Stores a BigDecimal as TEXT, so that no precision is lost.
+     */
+    private static final DBoxTypeConverter<BigDecimal> DECIMAL = new DBoxTypeConverter.StringConverter<BigDecimal>() {
+        @Override
+        public Class<BigDecimal> getType() {
+            return BigDecimal.class;
+        }
+
+        @Override
+        public String toText(BigDecimal value) {
+            return value.toPlainString();
+        }
+
+        @Override
+        public BigDecimal fromText(String value) {
+            return new BigDecimal(value);
+        }
+    };
+
+    /**
+     * Stores a level as a weight instead of its ordinal.
+     */
+    private static final DBoxTypeConverter<Level> WEIGHT = new DBoxTypeConverter.LongConverter<Level>() {
+        @Override
+        public Class<Level> getType() {
+            return Level.class;
+        }
+
+        @Override
+        public long toLong(Level value) {
+            return (value.ordinal() + 1) * 10;
+        }
+
+        @Override
+        public Level fromLong(long value) {
+            return Level.values()[(int) value / 10 - 1];
+        }
+    };
+
+    @Test
+    public void builtInConverters() throws Exception {
+        DBox.init(mConnection, DECIMAL);
+        UUID uuid = new UUID(0x0123456789abcdefL, -2);
+        Task task = newTask(Level.HIGH, uuid, new BigDecimal("0.10"));
+        assertTrue(DBox.of(Task.class).save(task));
+
+        // Enums are stored as ordinals, UUIDs as 16 big-endian bytes
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Task WHERE level = 2 AND price = '0.10'"
+                + " AND hex(uuid) = '0123456789ABCDEFFFFFFFFFFFFFFFFE';"));
+
+        Task found = DBox.of(Task.class).findAll().results().first();
+        assertEquals(Level.HIGH, found.level);
+        assertEquals(uuid, found.uuid);
+        assertEquals(new BigDecimal("0.10"), found.price);
+    }
+
+    @Test
+    public void customConverter() throws Exception {
+        DBox.init(mConnection, DECIMAL, WEIGHT);
+        assertTrue(DBox.of(Task.class).save(newTask(Level.MEDIUM, null, null)));
+        assertEquals(20, queryLong("SELECT level FROM Task;"));
+        assertEquals(Level.MEDIUM, DBox.of(Task.class).findAll().results().first().level);
+    }
+
+    @Test
+    public void nullValues() throws Exception {
+        DBox.init(mConnection, DECIMAL);
+        assertTrue(DBox.of(Task.class).save(newTask(null, null, null)));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Task WHERE level IS NULL AND uuid IS NULL AND price IS NULL;"));
+
+        Task found = DBox.of(Task.class).findAll().results().first();
+        assertNull(found.level);
+        assertNull(found.uuid);
+        assertNull(found.price);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void converterNotRegistered() {
+        DBox.of(Task.class).save(newTask(Level.LOW, null, BigDecimal.ONE));
+    }
+
+    private static Task newTask(Level level, UUID uuid, BigDecimal price) {
+        Task task = new Task();
+        task.level = level;
+        task.uuid = uuid;
+        task.price = price;
+        return task;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package im.r_c.android.dbox;
+
+import org.junit.Test;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class DBoxMetricsRecorderTest extends DBoxTestCase {
+    @Table
+    static class Course {
+        long id;
+        @Column
+        String name;
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        DBoxMetricsRecorder.Histogram histogram = new DBoxMetricsRecorder.Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 7; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        assertEquals(8, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(7, histogram.getPercentile(100));
+        assertEquals(3.5, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void percentiles() {
+        DBoxMetricsRecorder.Histogram histogram = new DBoxMetricsRecorder.Histogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000L * 100001 / 2, histogram.getSum());
+        assertEquals(100000, histogram.getMax());
+        for (int percent : new int[]{1, 50, 90, 99}) {
+            long expected = 1000L * percent;
+            long actual = histogram.getPercentile(percent);
+            // Upper bound of the bucket, so never less, and at most 12.5% more
+            assertTrue(actual + " for p" + percent, actual >= expected && actual <= expected * 1.125);
+        }
+        assertEquals(100000, histogram.getPercentile(100));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void recordConcurrently() throws Exception {
+        final DBoxMetricsRecorder.Histogram histogram = new DBoxMetricsRecorder.Histogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(j % 100);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(4 * 100 * 4950, histogram.getSum());
+        assertEquals(99, histogram.getMax());
+    }
+
+    @Test
+    public void recordOperations() throws Exception {
+        DBoxMetricsRecorder recorder = new DBoxMetricsRecorder();
+        DBox.init(mConnection, recorder);
+        DBox<Course> box = DBox.of(Course.class);
+        for (int i = 0; i < 3; i++) {
+            Course course = new Course();
+            course.name = "c" + i;
+            assertTrue(box.save(course));
+        }
+        assertEquals(3, box.findAll().results().all().size());
+
+        assertEquals(3, recorder.getObjectCount());
+        // Including rows of the schema queried before saving
+        assertTrue(recorder.getRowCount() >= 3);
+        assertTrue(recorder.getQueryTime().getCount() >= 1);
+        assertTrue(recorder.getChangedRowCount() >= 3);
+        assertTrue(recorder.getTransactionTime().getCount() >= 3);
+        assertEquals(0, recorder.getRollbackCount());
+
+        exec("CREATE TRIGGER no_course BEFORE INSERT ON Course BEGIN SELECT RAISE(ABORT, 'no course'); END;");
+        assertFalse(box.save(new Course()));
+        assertEquals(1, recorder.getRollbackCount());
+
+        String dump = recorder.dump();
+        assertTrue(dump, dump.contains("p99="));
+        assertTrue(dump, dump.contains("FROM Course"));
+    }
+}
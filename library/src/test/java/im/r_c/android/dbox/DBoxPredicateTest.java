@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package im.r_c.android.dbox;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class DBoxPredicateTest extends DBoxTestCase {
+    private static final UUID ID_A = new UUID(1, -1);
+    private static final UUID ID_B = new UUID(-1, 1);
+
+    @Table
+    static class Sample {
+        long id;
+        @Column
+        String name;
+        @Column
+        float ratio;
+        @Column
+        long count;
+        @Column
+        byte[] data;
+        @Column
+        UUID uuid;
+        @Column
+        List<String> tagList;
+    }
+
+    @Before
+    public void setUpSamples() {
+        DBox.init(mConnection, DBoxConverters.uuid());
+        saveSample("a", 0.1f, 1, new byte[]{1, 2}, ID_A, "x");
+        saveSample("b", 0.5f, 7, new byte[]{(byte) 0xff}, ID_B, "y");
+        saveSample("c", 2.5f, -3, new byte[0], null, "x", "y");
+    }
+
+    @Test
+    public void floatValue() {
+        // The stored 0.1f is a little more than 0.1
+        assertParity(new DBoxPredicate().equalTo("ratio", 0.1f), "a");
+        assertParity(new DBoxPredicate().equalTo("ratio", 0.1));
+        assertParity(new DBoxPredicate().greaterThan("ratio", 0.1), "a", "b", "c");
+        assertParity(new DBoxPredicate().lessThan("ratio", 1), "a", "b");
+    }
+
+    @Test
+    public void longValue() {
+        assertParity(new DBoxPredicate().equalTo("count", 1.0), "a");
+        assertParity(new DBoxPredicate().greaterThan("count", 1.5), "b");
+        assertParity(new DBoxPredicate().greaterThanOrEqualTo("count", -0.0), "a", "b");
+        assertParity(new DBoxPredicate().in("count", 1, -3L), "a", "c");
+    }
+
+    @Test
+    public void stringValue() {
+        assertParity(new DBoxPredicate().greaterThan("name", "a"), "b", "c");
+        assertParity(new DBoxPredicate().in("name", "a", "c"), "a", "c");
+    }
+
+    @Test
+    public void stringOrder() {
+        // Like the UTF-8 bytes SQLite compares, a supplementary char is after U+FFFD,
+        // though its surrogates are before it in UTF-16
+        String[] strings = {"", "a", "ab", "\u00e9", "\uFFFD", "\uD83D\uDE00", "\uD83D\uDE00a"};
+        for (String a : strings) {
+            for (String b : strings) {
+                assertEquals(Integer.signum(compareBytes(a, b)), Integer.signum(DBoxPredicate.compareUtf8(a, b)));
+            }
+        }
+    }
+
+    @Test
+    public void blobValue() {
+        assertParity(new DBoxPredicate().equalTo("data", new byte[]{(byte) 0xff}), "b");
+        assertParity(new DBoxPredicate().notEqualTo("data", new byte[0]), "a", "b");
+        assertParity(new DBoxPredicate().equalTo("tagList", Arrays.asList("x", "y")), "c");
+    }
+
+    @Test
+    public void convertedValue() {
+        assertParity(new DBoxPredicate().equalTo("uuid", ID_B), "b");
+        assertParity(new DBoxPredicate().in("uuid", ID_A, ID_B), "a", "b");
+        assertParity(new DBoxPredicate().isNull("uuid"), "c");
+    }
+
+    private void saveSample(String name, float ratio, long count, byte[] data, UUID uuid, String... tags) {
+        Sample sample = new Sample();
+        sample.name = name;
+        sample.ratio = ratio;
+        sample.count = count;
+        sample.data = data;
+        sample.uuid = uuid;
+        sample.tagList = new ArrayList<>(Arrays.asList(tags));
+        DBox.of(Sample.class).save(sample);
+    }
+
+    /**
+     * Check that the predicate finds the same samples in SQL and on the cursor.
+     */
+    private void assertParity(DBoxPredicate predicate, String... expectedNames) {
+        DBox<Sample> box = DBox.of(Sample.class);
+        DBoxResults<Sample> inSql = box.findAll().filter(predicate).results();
+        DBoxResults<Sample> onCursor = box.findAll().results();
+        try {
+            assertEquals(Arrays.asList(expectedNames), namesOf(inSql.getAll()));
+            assertEquals(Arrays.asList(expectedNames), namesOf(onCursor.getSome(predicate)));
+        } finally {
+            inSql.close();
+            onCursor.close();
+        }
+    }
+
+    private static List<String> namesOf(List<Sample> samples) {
+        List<String> names = new ArrayList<>();
+        for (Sample sample : samples) {
+            names.add(sample.name);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static int compareBytes(String a, String b) {
+        byte[] bytesA = a.getBytes(Charset.forName("UTF-8"));
+        byte[] bytesB = b.getBytes(Charset.forName("UTF-8"));
+        return DBoxPredicate.compareBlobs(bytesA, bytesB);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.ObjectColumn;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class DBoxResultsTest extends DBoxTestCase {
+    private static final int COUNT = 50;
+
+    /**
+     * Prefetches pages on the calling thread, so that none is left running after a test.
+     */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Table
+    static class Tag {
+        long id;
+        @Column
+        String name;
+    }
+
+    @Table
+    static class Item {
+        long id;
+        @Column
+        int number;
+        @ObjectColumn(Tag.class)
+        List<Tag> tagList = new ArrayList<>();
+    }
+
+    @Before
+    public void setUpItems() {
+        DBox<Tag> tagBox = DBox.of(Tag.class);
+        Tag[] tags = new Tag[3];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = new Tag();
+            tags[i].name = "t" + i;
+            assertTrue(tagBox.save(tags[i]));
+        }
+
+        // Items have different numbers of tags, so that they span different numbers of rows
+        DBox<Item> box = DBox.of(Item.class);
+        for (int i = 0; i < COUNT; i++) {
+            Item item = new Item();
+            item.number = i;
+            item.tagList.addAll(Arrays.asList(tags).subList(0, i % tags.length + 1));
+            assertTrue(box.save(item));
+        }
+    }
+
+    @Test
+    public void randomAccess() {
+        DBoxResults<Item> results = DBox.of(Item.class).findAll().results();
+        try {
+            assertEquals(COUNT, results.size());
+            assertItem(results.getOne(37), 37);
+            assertItem(results.getOne(3), 3);
+            assertItem(results.getLast(), COUNT - 1);
+            assertItem(results.getFirst(), 0);
+            assertNull(results.getOne(COUNT));
+
+            List<Item> some = results.getSome(20, 5);
+            assertEquals(5, some.size());
+            for (int i = 0; i < some.size(); i++) {
+                assertItem(some.get(i), 20 + i);
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    @Test
+    public void iterate() {
+        int i = 0;
+        for (Item item : DBox.of(Item.class).findAll().results().all()) {
+            assertItem(item, i++);
+        }
+        assertEquals(COUNT, i);
+    }
+
+    @Test
+    public void getOneReuse() {
+        DBoxResults<Item> results = DBox.of(Item.class).findAll().results();
+        try {
+            Item reuse = results.getOne(5);
+            List<Tag> tagList = reuse.tagList;
+            assertEquals(3, tagList.size());
+
+            // Filled in place, with the list of the object field cleared and refilled
+            Item filled = results.getOne(9, reuse);
+            assertSame(reuse, filled);
+            assertSame(tagList, filled.tagList);
+            assertItem(filled, 9);
+
+            assertItem(results.getOne(11, null), 11);
+            assertNull(results.getOne(COUNT, reuse));
+        } finally {
+            results.close();
+        }
+    }
+
+    @Test
+    public void forEachReuse() {
+        final Item[] pool = {new Item(), new Item()};
+        final List<Integer> numbers = new ArrayList<>();
+        DBox.of(Item.class).findAll().results().forEach(new DBoxResults.Consumer<Item>() {
+            @Override
+            public void accept(Item item) {
+                assertSame(pool[numbers.size() % 2], item);
+                assertItem(item, numbers.size());
+                numbers.add(item.number);
+            }
+        }, new DBoxResults.Supplier<Item>() {
+            @Override
+            public Item get() {
+                return pool[numbers.size() % 2];
+            }
+        });
+        assertEquals(COUNT, numbers.size());
+
+        // The pool may run out
+        final int[] count = {0};
+        DBox.of(Item.class).findAll().results().forEach(new DBoxResults.Consumer<Item>() {
+            @Override
+            public void accept(Item item) {
+                assertItem(item, count[0]++);
+            }
+        }, new DBoxResults.Supplier<Item>() {
+            @Override
+            public Item get() {
+                return null;
+            }
+        });
+        assertEquals(COUNT, count[0]);
+    }
+
+    @Test
+    public void paged() {
+        DBox<Item> box = DBox.of(Item.class);
+        DBoxPagedResults<Item> paged = box.findAll().orderByDesc("number").paged(7, 3, DIRECT);
+        assertEquals(COUNT, paged.size());
+        assertItem(paged.get(0), COUNT - 1);
+        assertItem(paged.get(COUNT - 1), 0);
+        for (int i = 0; i < COUNT; i++) {
+            assertItem(paged.get(i), COUNT - 1 - i);
+        }
+
+        // Removed objects are null in pages loaded afterwards
+        DBoxPagedResults<Item> ascending = box.findAll().paged(10, 3, DIRECT);
+        Item removed = box.find(new DBoxCondition().equalTo("number", "25")).results().first();
+        assertTrue(box.remove(removed));
+        assertNull(ascending.get(25));
+        assertItem(ascending.get(24), 24);
+        assertItem(ascending.get(26), 26);
+    }
+
+    @Test
+    public void pageFailedToLoad() throws Exception {
+        DBoxPagedResults<Item> paged = DBox.of(Item.class).findAll().paged(10, 3, DIRECT);
+        exec("ALTER TABLE Item RENAME TO Item_moved;");
+        assertNull(paged.get(0));
+        assertNull(paged.get(5));
+
+        // The failed pages are loaded again rather than kept as removed objects
+        exec("ALTER TABLE Item_moved RENAME TO Item;");
+        assertItem(paged.get(5), 5);
+        assertItem(paged.get(10), 10);
+    }
+
+    private static void assertItem(Item item, int number) {
+        assertEquals(number, item.number);
+        assertEquals(number % 3 + 1, item.tagList.size());
+        for (int i = 0; i < item.tagList.size(); i++) {
+            assertEquals("t" + i, item.tagList.get(i).name);
+        }
+    }
+}
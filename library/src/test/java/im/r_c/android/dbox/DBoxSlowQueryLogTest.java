@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class DBoxSlowQueryLogTest extends DBoxTestCase {
+    @Table
+    static class Course {
+        long id;
+        @Column
+        String name;
+        @Column
+        byte[] data;
+    }
+
+    @After
+    public void tearDownLog() {
+        DBox.setSlowQueryLog(null);
+    }
+
+    @Test
+    public void explainWithArguments() {
+        DBoxSlowQueryLog log = new DBoxSlowQueryLog(0, 1000);
+        DBox.setSlowQueryLog(log);
+
+        DBox<Course> box = DBox.of(Course.class);
+        Course course = new Course();
+        course.name = "c1";
+        assertTrue(box.save(course));
+        // Compiled statement
+        assertTrue(box.save(course));
+        // Update and delete with where clauses, and a null argument
+        course.name = null;
+        course.data = new byte[]{1};
+        assertTrue(box.save(course));
+        assertTrue(box.update(new DBoxCondition().equalTo("name", "c2"), Collections.<String, Object>singletonMap("name", null)) >= 0);
+        assertTrue(box.remove(course));
+
+        int explained = 0;
+        for (DBoxSlowQueryLog.Entry entry : log.getEntries()) {
+            String sql = entry.getSql();
+            if (sql.contains("?") && (sql.startsWith("SELECT") || sql.startsWith("UPDATE") || sql.startsWith("DELETE"))) {
+                assertFalse(sql, entry.getPlan().isEmpty());
+                explained++;
+            }
+        }
+        assertTrue(explained >= 4);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.ObjectColumn;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class DBoxTest extends DBoxTestCase {
+    @Table
+    static class Course {
+        long id;
+        @Column
+        String name;
+        @Column
+        int credit;
+
+        Course() {
+        }
+
+        Course(String name) {
+            this.name = name;
+        }
+    }
+
+    @Table
+    static class Student {
+        long id;
+        @Column
+        String name;
+        @Column
+        int age;
+        @ObjectColumn(Course.class)
+        List<Course> courseList = new ArrayList<>();
+    }
+
+    @Test
+    public void saveIntoFreshDatabase() throws Exception {
+        Student student = newStudent("Tom", 20);
+        student.courseList.add(new Course("c1"));
+        assertTrue(DBox.of(Student.class).save(student, DBox.Cascade.SAVE));
+        assertTrue(student.id > 0);
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Student;"));
+    }
+
+    @Test
+    public void saveCascade() throws Exception {
+        DBox<Student> box = DBox.of(Student.class);
+        Course shared = new Course("c1");
+        Student student = newStudent("Tom", 20);
+        student.courseList.addAll(Arrays.asList(shared, new Course("c2"), shared));
+        assertTrue(box.save(student, DBox.Cascade.SAVE));
+        // A course referred twice is saved once
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM Course;"));
+        assertCourses(box, "c1", "c2", "c1");
+
+        // Changed courses are saved again
+        shared.name = "c3";
+        assertTrue(box.save(student, DBox.Cascade.SAVE));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM Course;"));
+        assertCourses(box, "c3", "c2", "c3");
+    }
+
+    @Test
+    public void saveCascadeRollback() throws Exception {
+        DBox<Student> box = DBox.of(Student.class);
+        Student student = newStudent("Tom", 20);
+        student.courseList.add(new Course("c1"));
+        assertTrue(box.save(student, DBox.Cascade.SAVE));
+
+        exec("CREATE TRIGGER no_student BEFORE INSERT ON Student BEGIN SELECT RAISE(ABORT, 'no student'); END;");
+        Student other = newStudent("Jerry", 21);
+        other.courseList.addAll(Arrays.asList(new Course("c2"), new Course("c3")));
+        assertFalse(box.save(other, DBox.Cascade.SAVE));
+        // Courses saved before the student failed are rolled back with it
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Student;"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course;"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM _Student_Course_mapping;"));
+
+        exec("DROP TRIGGER no_student;");
+        assertTrue(box.save(other, DBox.Cascade.SAVE));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM Student;"));
+        assertEquals(3, queryLong("SELECT COUNT(*) FROM Course;"));
+    }
+
+    @Test
+    public void update() throws Exception {
+        DBox<Course> box = DBox.of(Course.class);
+        Course course = new Course("c1");
+        assertTrue(box.save(course));
+        long id = course.id;
+
+        course.credit = 3;
+        assertTrue(box.save(course));
+        assertEquals(id, course.id);
+
+        Course found = box.findAll().results().first();
+        assertEquals("c1", found.name);
+        assertEquals(3, found.credit);
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course;"));
+    }
+
+    @Test
+    public void saveUnchanged() throws Exception {
+        DBox<Course> box = DBox.of(Course.class);
+        Course course = new Course("c1");
+        assertTrue(box.save(course));
+        assertTrue(box.save(course));
+        assertTrue(box.save(box.findAll().results().first()));
+
+        Course found = box.findAll().results().first();
+        assertEquals(course.id, found.id);
+        assertEquals("c1", found.name);
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course;"));
+    }
+
+    @Test
+    public void saveUnchangedAfterDeletedOutside() throws Exception {
+        DBox<Course> box = DBox.of(Course.class);
+        Course course = new Course("c1");
+        assertTrue(box.save(course));
+
+        exec("DELETE FROM Course;");
+        assertTrue(box.save(course));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course;"));
+        assertEquals("c1", box.findAll().results().first().name);
+    }
+
+    @Test
+    public void saveAfterStaleRead() throws Exception {
+        DBox<Course> box = DBox.of(Course.class);
+        Course course = new Course("v1");
+        assertTrue(box.save(course));
+
+        DBoxResults<Course> results = box.findAll().results();
+        try {
+            assertEquals("v1", results.getOne(0).name);
+            course.name = "v2";
+            assertTrue(box.save(course));
+            // Read before the save
+            assertEquals("v1", results.getOne(0).name);
+        } finally {
+            results.close();
+        }
+
+        course.name = "v1";
+        assertTrue(box.save(course));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course WHERE name = 'v1';"));
+    }
+
+    @Test
+    public void saveFoundWritesChangedColumns() throws Exception {
+        DBox<Course> box = DBox.of(Course.class);
+        Course course = new Course("c1");
+        course.credit = 2;
+        assertTrue(box.save(course));
+
+        exec("CREATE TABLE credit_log (credit INTEGER);");
+        exec("CREATE TRIGGER credit_updated AFTER UPDATE OF credit ON Course BEGIN INSERT INTO credit_log VALUES (new.credit); END;");
+
+        Course found = box.findAll().results().first();
+        found.name = "c2";
+        assertTrue(box.save(found));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM credit_log;"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course WHERE name = 'c2' AND credit = 2;"));
+
+        found = box.findAll().results().first();
+        found.credit = 3;
+        assertTrue(box.save(found));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM credit_log;"));
+        assertEquals(3, queryLong("SELECT credit FROM Course;"));
+    }
+
+    @Test
+    public void relationDiffing() throws Exception {
+        DBox<Course> courseBox = DBox.of(Course.class);
+        Course c1 = new Course("c1"), c2 = new Course("c2"), c3 = new Course("c3"), c4 = new Course("c4");
+        for (Course c : Arrays.asList(c1, c2, c3, c4)) {
+            assertTrue(courseBox.save(c));
+        }
+
+        DBox<Student> box = DBox.of(Student.class);
+        Student student = newStudent("Tom", 20);
+        student.courseList.addAll(Arrays.asList(c1, c2, c3));
+        assertTrue(box.save(student));
+        assertCourses(box, "c1", "c2", "c3");
+
+        // Move, replace, and remove
+        student.courseList = new ArrayList<>(Arrays.asList(c3, c1, c4));
+        assertTrue(box.save(student));
+        assertCourses(box, "c3", "c1", "c4");
+        assertEquals(3, queryLong("SELECT COUNT(*) FROM _Student_Course_mapping;"));
+
+        student.courseList = new ArrayList<>(Arrays.asList(c4, c4));
+        assertTrue(box.save(student));
+        assertCourses(box, "c4", "c4");
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM _Student_Course_mapping;"));
+
+        // Objects without any related object are not found, so only check the mappings
+        student.courseList.clear();
+        assertTrue(box.save(student));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM _Student_Course_mapping;"));
+    }
+
+    @Test
+    public void indexMappingTablesOfOlderDatabase() throws Exception {
+        DBox<Student> box = DBox.of(Student.class);
+        Student student = newStudent("Alice", 20);
+        student.courseList.add(new Course("c1"));
+        assertTrue(box.save(student, DBox.Cascade.SAVE));
+
+        // Mapping tables created before they were indexed
+        exec("DROP INDEX _Student_courseList_id_idx;");
+        DBox.init(mConnection);
+        assertTrue(DBox.of(Student.class).save(student));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM sqlite_master WHERE name = '_Student_courseList_id_idx';"));
+    }
+
+    @Test
+    public void deleteByCondition() throws Exception {
+        DBox<Student> box = DBox.of(Student.class);
+        for (int i = 0; i < 4; i++) {
+            Student student = newStudent("s" + i, 18 + i);
+            student.courseList.add(new Course("c" + i));
+            assertTrue(box.save(student, DBox.Cascade.SAVE));
+        }
+
+        assertEquals(2, box.delete(new DBoxCondition().greaterThan("age", "19")));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM Student;"));
+        // Mappings of the removed students are removed, and the courses are kept
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM _Student_Course_mapping;"));
+        assertEquals(4, queryLong("SELECT COUNT(*) FROM Course;"));
+        assertCourses(box, "c0");
+
+        assertEquals(0, box.delete(new DBoxCondition().equalTo("name", "s9")));
+        assertEquals(2, box.delete(new DBoxCondition()));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM Student;"));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM _Student_Course_mapping;"));
+    }
+
+    @Test
+    public void updateByCondition() throws Exception {
+        DBox<Course> box = DBox.of(Course.class);
+        for (int i = 0; i < 4; i++) {
+            Course course = new Course("c" + i);
+            course.credit = i;
+            assertTrue(box.save(course));
+        }
+
+        Map<String, Object> values = new HashMap<>();
+        values.put("credit", 5);
+        values.put("name", "updated");
+        assertEquals(2, box.update(new DBoxCondition().lessThan("credit", "2"), values));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM Course WHERE name = 'updated' AND credit = 5;"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course WHERE name = 'c3' AND credit = 3;"));
+
+        assertEquals(0, box.update(new DBoxCondition(), new HashMap<String, Object>()));
+        values.remove("name");
+        assertEquals(4, box.update(new DBoxCondition(), values));
+        assertEquals(4, queryLong("SELECT COUNT(*) FROM Course WHERE credit = 5;"));
+    }
+
+    private static Student newStudent(String name, int age) {
+        Student student = new Student();
+        student.name = name;
+        student.age = age;
+        return student;
+    }
+
+    private static void assertCourses(DBox<Student> box, String... names) {
+        Student found = box.findAll().results().first();
+        assertNotNull(found);
+        List<String> foundNames = new ArrayList<>();
+        for (Course c : found.courseList) {
+            foundNames.add(c.name);
+        }
+        assertEquals(Arrays.asList(names), foundNames);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+/**
+ * Base of tests that run DBox on a fresh sqlite-jdbc database in a temporary file.
+ */
+public abstract class DBoxTestCase {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    protected File mDatabaseFile;
+    protected Connection mConnection;
+
+    @Before
+    public void setUpDatabase() throws Exception {
+        mDatabaseFile = mFolder.newFile("test.db");
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + mDatabaseFile.getPath());
+        DBox.init(mConnection);
+    }
+
+    @After
+    public void tearDownDatabase() throws Exception {
+        DBox.setRelationExecutor(null);
+        mConnection.close();
+    }
+
+    /**
+     * Run a statement on the connection behind DBox's back.
+     */
+    protected void exec(String sql) throws SQLException {
+        Statement statement = mConnection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Run a query that returns a single long value on the connection behind DBox's back.
+     */
+    protected long queryLong(String sql) throws SQLException {
+        Statement statement = mConnection.createStatement();
+        try {
+            ResultSet rs = statement.executeQuery(sql);
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            statement.close();
+        }
+    }
+}
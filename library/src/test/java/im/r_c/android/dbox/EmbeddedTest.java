@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package im.r_c.android.dbox;
+
+import org.junit.Test;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Embedded;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class EmbeddedTest extends DBoxTestCase {
+    static class Point {
+        @Column
+        double lat;
+        @Column
+        double lng;
+    }
+
+    static class Address {
+        @Column
+        String city;
+        @Column
+        int zip;
+        @Embedded(prefix = "at_")
+        Point point;
+    }
+
+    @Table
+    static class Shop {
+        long id;
+        @Column
+        String name;
+        @Embedded
+        Address address;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Shop shop = newShop("s1", "Paris", 75001);
+        shop.address.point = new Point();
+        shop.address.point.lat = 48.86;
+        shop.address.point.lng = 2.34;
+        assertTrue(DBox.of(Shop.class).save(shop));
+
+        // Stored inline with prefixed column names, nested prefixes appended
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Shop WHERE address_city = 'Paris' AND address_zip = 75001 AND address_at_lat = 48.86;"));
+
+        Shop found = DBox.of(Shop.class).findAll().results().first();
+        assertEquals("Paris", found.address.city);
+        assertEquals(75001, found.address.zip);
+        assertEquals(48.86, found.address.point.lat, 0);
+        assertEquals(2.34, found.address.point.lng, 0);
+    }
+
+    @Test
+    public void nullEmbedded() throws Exception {
+        DBox<Shop> box = DBox.of(Shop.class);
+        Shop shop = newShop("s1", null, 0);
+        shop.address = null;
+        assertTrue(box.save(shop));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Shop WHERE address_city IS NULL AND address_at_lat IS NULL;"));
+        assertNull(box.findAll().results().first().address);
+
+        // An embedded object is null only if all its columns are
+        shop.address = new Address();
+        assertTrue(box.save(shop));
+        Shop found = box.findAll().results().first();
+        assertNotNull(found.address);
+        assertNull(found.address.city);
+        assertEquals(0, found.address.zip);
+        assertNull(found.address.point);
+    }
+
+    @Test
+    public void updateAndFind() {
+        DBox<Shop> box = DBox.of(Shop.class);
+        Shop shop = newShop("s1", "Paris", 75001);
+        assertTrue(box.save(shop));
+        assertTrue(box.save(newShop("s2", "Lyon", 69001)));
+
+        shop.address.city = "Nice";
+        assertTrue(box.save(shop));
+        assertEquals("s1", box.find(new DBoxCondition().equalTo("address_city", "Nice")).results().first().name);
+        assertEquals("s2", box.findAll().filter(new DBoxPredicate().lessThan("address.zip", 70000))
+                .results().first().name);
+    }
+
+    private static Shop newShop(String name, String city, int zip) {
+        Shop shop = new Shop();
+        shop.name = name;
+        shop.address = new Address();
+        shop.address.city = city;
+        shop.address.zip = zip;
+        return shop;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class FullTextTest extends DBoxTestCase {
+    @Table
+    static class Note {
+        long id;
+        @Column(notNull = true)
+        String title;
+        @Column(fullText = true)
+        String content;
+
+        Note() {
+        }
+
+        Note(String title, String content) {
+            this.title = title;
+            this.content = content;
+        }
+    }
+
+    @Test
+    public void match() {
+        DBox<Note> box = DBox.of(Note.class);
+        assertTrue(box.save(new Note("a", "linear algebra")));
+        assertTrue(box.save(new Note("b", "operating systems")));
+
+        List<Note> notes = box.find(new DBoxCondition().matches("content", "operating")).results().all();
+        assertEquals(1, notes.size());
+        assertEquals("b", notes.get(0).title);
+    }
+
+    @Test
+    public void saveAfterFirstSaveRolledBack() {
+        DBox<Note> box = DBox.of(Note.class);
+        // Violates NOT NULL, so the full-text table created by it is rolled back as well
+        assertFalse(box.save(new Note(null, "linear algebra")));
+
+        Note note = new Note("a", "operating systems");
+        assertTrue(box.save(note));
+        note.content = "computer networks";
+        assertTrue(box.save(note));
+
+        List<Note> notes = box.find(new DBoxCondition().matches("content", "networks")).results().all();
+        assertEquals(1, notes.size());
+        assertEquals(note.id, notes.get(0).id);
+    }
+
+    @Test
+    public void deleteByMatch() throws Exception {
+        DBox<Note> box = DBox.of(Note.class);
+        assertTrue(box.save(new Note("a", "linear algebra")));
+        assertTrue(box.save(new Note("b", "operating systems")));
+
+        assertEquals(1, box.delete(new DBoxCondition().matches("content", "operating")));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Note;"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM _Note_fts;"));
+        assertEquals(0, box.find(new DBoxCondition().matches("content", "operating")).results().all().size());
+        assertEquals(1, box.find(new DBoxCondition().matches("content", "algebra")).results().all().size());
+    }
+
+    @Test
+    public void updateByMatch() throws Exception {
+        DBox<Note> box = DBox.of(Note.class);
+        assertTrue(box.save(new Note("a", "linear algebra")));
+        assertTrue(box.save(new Note("b", "operating systems")));
+
+        assertEquals(1, box.update(new DBoxCondition().matches("content", "operating"),
+                Collections.<String, Object>singletonMap("content", "computer networks")));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM _Note_fts;"));
+        assertEquals(0, box.find(new DBoxCondition().matches("content", "operating")).results().all().size());
+        List<Note> notes = box.find(new DBoxCondition().matches("content", "networks")).results().all();
+        assertEquals(1, notes.size());
+        assertEquals("b", notes.get(0).title);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package im.r_c.android.dbox;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.ObjectColumn;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class QueryObserverTest extends DBoxTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final long QUIET_MILLIS = 300;
+
+    @Table
+    static class Note {
+        long id;
+        @Column
+        String text;
+        @Column
+        int priority;
+    }
+
+    @Table
+    static class Folder {
+        long id;
+        @Column
+        String name;
+        @ObjectColumn(Note.class)
+        List<Note> noteList = new ArrayList<>();
+    }
+
+    @Table
+    static class Other {
+        long id;
+        @Column
+        String name;
+    }
+
+    private final List<DBoxSubscription> mSubscriptions = new ArrayList<>();
+
+    @Before
+    public void createTables() {
+        // Queries fail on tables not created yet
+        assertTrue(DBox.of(Note.class).save(newNote("n0", 0)));
+        assertEquals(1, DBox.of(Note.class).delete(new DBoxCondition()));
+    }
+
+    @After
+    public void cancelSubscriptions() {
+        for (DBoxSubscription subscription : mSubscriptions) {
+            subscription.cancel();
+        }
+    }
+
+    @Test
+    public void invalidateByChangedTable() throws Exception {
+        final BlockingQueue<List<Note>> queue = new LinkedBlockingQueue<>();
+        final BlockingQueue<Thread> threads = new LinkedBlockingQueue<>();
+        mSubscriptions.add(DBox.of(Note.class).findAll().observe(new DBoxQuery.Listener<Note>() {
+            @Override
+            public void onChanged(List<Note> results) {
+                threads.add(Thread.currentThread());
+                queue.add(results);
+            }
+        }));
+        assertEquals(0, take(queue).size());
+        assertNotSame(Thread.currentThread(), threads.take());
+
+        assertTrue(DBox.of(Note.class).save(newNote("n1", 1)));
+        assertEquals(1, take(queue).size());
+
+        // Other tables don't invalidate the query
+        Other other = new Other();
+        other.name = "o1";
+        assertTrue(DBox.of(Other.class).save(other));
+        assertNull(queue.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, DBox.of(Note.class).delete(new DBoxCondition()));
+        assertEquals(0, take(queue).size());
+    }
+
+    @Test
+    public void coalesceInTransaction() throws Exception {
+        BlockingQueue<List<Note>> queue = observeNotes();
+        assertEquals(0, take(queue).size());
+
+        // Notes saved with the folder in a single transaction are delivered together
+        Folder folder = new Folder();
+        folder.name = "f1";
+        for (int i = 0; i < 3; i++) {
+            folder.noteList.add(newNote("n" + i, i));
+        }
+        assertTrue(DBox.of(Folder.class).save(folder, DBox.Cascade.SAVE));
+        assertEquals(3, take(queue).size());
+        assertNull(queue.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+
+        // Nothing is delivered for a transaction rolled back
+        exec("CREATE TRIGGER no_folder BEFORE INSERT ON Folder BEGIN SELECT RAISE(ABORT, 'no folder'); END;");
+        Folder other = new Folder();
+        other.noteList.add(newNote("n3", 3));
+        assertFalse(DBox.of(Folder.class).save(other, DBox.Cascade.SAVE));
+        assertNull(queue.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void coalesceWhileWaiting() throws Exception {
+        final BlockingQueue<List<Note>> queue = new LinkedBlockingQueue<>();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mSubscriptions.add(DBox.of(Note.class).findAll().observe(new DBoxQuery.Listener<Note>() {
+            @Override
+            public void onChanged(List<Note> results) {
+                queue.add(results);
+                if (blocked.getCount() > 0) {
+                    blocked.countDown();
+                    try {
+                        release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }));
+        assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, take(queue).size());
+
+        // Changes committed while the observer is busy are delivered only once
+        for (int i = 0; i < 3; i++) {
+            assertTrue(DBox.of(Note.class).save(newNote("n" + i, i)));
+        }
+        release.countDown();
+        assertEquals(3, take(queue).size());
+        assertNull(queue.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        BlockingQueue<List<Note>> queue = observeNotes();
+        assertEquals(0, take(queue).size());
+        mSubscriptions.get(0).cancel();
+        assertTrue(DBox.of(Note.class).save(newNote("n1", 1)));
+        assertNull(queue.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void changeSetPositions() throws Exception {
+        DBox<Note> box = DBox.of(Note.class);
+        Note n1 = newNote("n1", 10), n2 = newNote("n2", 20), n3 = newNote("n3", 30);
+        for (Note note : Arrays.asList(n1, n2, n3)) {
+            assertTrue(box.save(note));
+        }
+
+        final BlockingQueue<DBoxChangeSet<Note>> queue = new LinkedBlockingQueue<>();
+        mSubscriptions.add(box.findAll().orderBy("priority").observeChanges(new DBoxQuery.ChangeListener<Note>() {
+            @Override
+            public void onChanged(DBoxChangeSet<Note> changeSet) {
+                queue.add(changeSet);
+            }
+        }));
+        List<Long> ids = new ArrayList<>();
+
+        // All current results are inserted at first
+        DBoxChangeSet<Note> changeSet = take(queue);
+        assertArrayEquals(new int[]{0, 1, 2}, changeSet.getInsertedPositions());
+        assertEquals("n3", changeSet.getInsertedObjects().get(2).text);
+        apply(ids, changeSet, n1, n2, n3);
+
+        n2.text = "n2'";
+        assertTrue(box.save(n2));
+        changeSet = take(queue);
+        assertArrayEquals(new long[]{n2.id}, changeSet.getUpdatedIds());
+        assertArrayEquals(new int[]{1}, changeSet.getUpdatedPositions());
+        assertEquals("n2'", changeSet.getUpdatedObjects().get(0).text);
+        apply(ids, changeSet, n1, n2, n3);
+
+        Note n4 = newNote("n4", 15);
+        assertTrue(box.save(n4));
+        changeSet = take(queue);
+        assertArrayEquals(new int[]{1}, changeSet.getInsertedPositions());
+        apply(ids, changeSet, n1, n4, n2, n3);
+
+        long removedId = n1.id;
+        assertTrue(box.remove(n1));
+        changeSet = take(queue);
+        assertArrayEquals(new long[]{removedId}, changeSet.getRemovedIds());
+        assertArrayEquals(new int[]{0}, changeSet.getRemovedPositions());
+        apply(ids, changeSet, n4, n2, n3);
+
+        // A moved object is removed and then inserted
+        n3.priority = 0;
+        assertTrue(box.save(n3));
+        changeSet = take(queue);
+        assertArrayEquals(new int[]{2}, changeSet.getRemovedPositions());
+        assertArrayEquals(new int[]{0}, changeSet.getInsertedPositions());
+        apply(ids, changeSet, n3, n4, n2);
+
+        // Changes of objects outside the results are not delivered
+        Other other = new Other();
+        other.name = "o1";
+        assertTrue(DBox.of(Other.class).save(other));
+        assertNull(queue.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Apply a change set to ids of the previous results as documented,
+     * and check that they become ids of the expected notes.
+     */
+    private static void apply(List<Long> ids, DBoxChangeSet<Note> changeSet, Note... expected) {
+        int[] removedPositions = changeSet.getRemovedPositions();
+        for (int i = removedPositions.length - 1; i >= 0; i--) {
+            ids.remove(removedPositions[i]);
+        }
+        int[] insertedPositions = changeSet.getInsertedPositions();
+        for (int i = 0; i < insertedPositions.length; i++) {
+            ids.add(insertedPositions[i], changeSet.getInsertedIds()[i]);
+        }
+        int[] updatedPositions = changeSet.getUpdatedPositions();
+        for (int i = 0; i < updatedPositions.length; i++) {
+            ids.set(updatedPositions[i], changeSet.getUpdatedIds()[i]);
+        }
+
+        List<Long> expectedIds = new ArrayList<>();
+        for (Note note : expected) {
+            expectedIds.add(note.id);
+        }
+        assertEquals(expectedIds, ids);
+        assertEquals(expected.length, changeSet.getSize());
+    }
+
+    private BlockingQueue<List<Note>> observeNotes() {
+        final BlockingQueue<List<Note>> queue = new LinkedBlockingQueue<>();
+        mSubscriptions.add(DBox.of(Note.class).findAll().observe(new DBoxQuery.Listener<Note>() {
+            @Override
+            public void onChanged(List<Note> results) {
+                queue.add(results);
+            }
+        }));
+        return queue;
+    }
+
+    private static <E> E take(BlockingQueue<E> queue) throws InterruptedException {
+        E e = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (e == null) {
+            throw new AssertionError("Nothing delivered in " + TIMEOUT_SECONDS + " seconds.");
+        }
+        return e;
+    }
+
+    private static Note newNote(String text, int priority) {
+        Note note = new Note();
+        note.text = text;
+        note.priority = priority;
+        return note;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.ObjectColumn;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class RelationLoadingTest extends DBoxTestCase {
+    private static final int STUDENT_COUNT = 300;
+    private static final int COURSE_COUNT = 10;
+
+    @Table
+    static class Course {
+        long id;
+        @Column
+        String name;
+    }
+
+    @Table
+    static class Clazz {
+        long id;
+        @Column
+        String name;
+    }
+
+    @Table
+    static class Student {
+        long id;
+        @Column
+        int number;
+        @ObjectColumn(Course.class)
+        List<Course> courseList = new ArrayList<>();
+        @ObjectColumn(Course.class)
+        Course[] favoriteCourses;
+        @ObjectColumn(Clazz.class)
+        Clazz clazz;
+    }
+
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+
+    @Before
+    public void setUpStudents() {
+        DBox.init(mConnection, new DBoxMetrics() {
+            @Override
+            public void onQuery(String sql, int bindCount, long nanos, int rowCount, int objectCount, int relationQueryCount) {
+                mQueryCount.incrementAndGet();
+            }
+
+            @Override
+            public void onWrite(String sql, int bindCount, long nanos, int changedRowCount) {
+            }
+
+            @Override
+            public void onTransaction(long lockWaitNanos, long nanos, boolean committed) {
+            }
+        });
+
+        Course[] courses = new Course[COURSE_COUNT];
+        for (int i = 0; i < courses.length; i++) {
+            courses[i] = new Course();
+            courses[i].name = "course " + i;
+        }
+        Clazz[] classes = new Clazz[3];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new Clazz();
+            classes[i].name = "class " + i;
+        }
+
+        DBox<Student> box = DBox.of(Student.class);
+        for (int i = 0; i < STUDENT_COUNT; i++) {
+            Student student = new Student();
+            student.number = i;
+            for (int j = 0; j <= i % 4; j++) {
+                student.courseList.add(courses[(i + j) % COURSE_COUNT]);
+            }
+            student.favoriteCourses = new Course[]{courses[i % COURSE_COUNT]};
+            student.clazz = classes[i % classes.length];
+            assertTrue(box.save(student, DBox.Cascade.SAVE));
+        }
+    }
+
+    @Test
+    public void loadInBatches() {
+        mQueryCount.set(0);
+        List<Student> students = DBox.of(Student.class).findAll().results().all();
+        assertStudents(students);
+        // The students, then courses and classes of every batch of them
+        int batchCount = (STUDENT_COUNT + 255) / 256;
+        assertEquals(1 + 2 * batchCount, mQueryCount.get());
+
+        // Related objects of the same id are shared in a batch
+        assertSame(students.get(0).favoriteCourses[0], students.get(0).courseList.get(0));
+    }
+
+    @Test
+    public void loadAcceptedInBatches() {
+        mQueryCount.set(0);
+        List<Student> students = DBox.of(Student.class).findAll().results()
+                .some(new DBoxPredicate().lessThan("number", 200));
+        assertStudents(students, 200);
+        // The students, then courses and classes of the accepted ones together
+        assertEquals(3, mQueryCount.get());
+    }
+
+    @Test
+    public void loadConcurrently() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            DBox.setRelationExecutor(executor);
+            assertStudents(DBox.of(Student.class).findAll().results().all());
+            assertStudents(DBox.of(Student.class).findAll().results().some(0, STUDENT_COUNT));
+            Student student = DBox.of(Student.class).findAll().results().one(5);
+            assertEquals(5, student.number);
+            assertEquals(2, student.courseList.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void relatedObjectRemoved() throws Exception {
+        exec("DELETE FROM Clazz WHERE name = 'class 1';");
+        List<Student> students = DBox.of(Student.class).findAll().results().all();
+        assertEquals(STUDENT_COUNT, students.size());
+        for (Student student : students) {
+            if (student.number % 3 == 1) {
+                assertNull(student.clazz);
+            } else {
+                assertEquals("class " + student.number % 3, student.clazz.name);
+            }
+        }
+    }
+
+    private static void assertStudents(List<Student> students) {
+        assertStudents(students, STUDENT_COUNT);
+    }
+
+    private static void assertStudents(List<Student> students, int count) {
+        assertEquals(count, students.size());
+        for (int i = 0; i < count; i++) {
+            Student student = students.get(i);
+            assertEquals(i, student.number);
+            assertEquals(i % 4 + 1, student.courseList.size());
+            for (int j = 0; j < student.courseList.size(); j++) {
+                assertEquals("course " + (i + j) % COURSE_COUNT, student.courseList.get(j).name);
+            }
+            assertEquals(1, student.favoriteCourses.length);
+            assertEquals("course " + i % COURSE_COUNT, student.favoriteCourses[0].name);
+            assertEquals("class " + i % 3, student.clazz.name);
+        }
+    }
+}
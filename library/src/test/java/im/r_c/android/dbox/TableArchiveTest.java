@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.ObjectColumn;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class TableArchiveTest extends DBoxTestCase {
+    private static final int COUNT = 1200;
+
+    @Table
+    static class Author {
+        long id;
+        @Column
+        String name;
+    }
+
+    @Table
+    static class Note {
+        long id;
+        @Column
+        String title;
+        @Column(fullText = true)
+        String content;
+        @Column
+        double score;
+        @Column
+        long time;
+        @Column
+        byte[] data;
+        @ObjectColumn(Author.class)
+        List<Author> authorList = new ArrayList<>();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<Note> notes = saveNotes();
+        DBox<Note> box = DBox.of(Note.class);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(box.exportTo(out));
+        assertTrue(box.clear());
+        assertEquals(0, box.findAll().results().all().size());
+
+        assertTrue(box.importFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertNotes(notes, box.findAll().results().all());
+
+        // Full-text table is filled as well
+        List<Note> matched = box.find(new DBoxCondition().matches("content", "content7")).results().all();
+        assertEquals(1, matched.size());
+        assertEquals("note 7", matched.get(0).title);
+
+        // Importing again replaces the objects rather than adding them
+        assertTrue(box.importFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertNotes(notes, box.findAll().results().all());
+    }
+
+    @Test
+    public void importFailureChangesNothing() throws Exception {
+        List<Note> notes = saveNotes();
+        DBox<Note> box = DBox.of(Note.class);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(box.exportTo(out));
+        byte[] bytes = out.toByteArray();
+
+        assertFalse(box.importFrom(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length / 2))));
+        assertFalse(box.importFrom(new ByteArrayInputStream("not an archive".getBytes("UTF-8"))));
+        assertFalse(DBox.of(Author.class).importFrom(new ByteArrayInputStream(bytes)));
+        assertNotes(notes, box.findAll().results().all());
+    }
+
+    @Test
+    public void importRejectsUnknownColumns() throws Exception {
+        List<Note> notes = saveNotes();
+        DBox<Note> box = DBox.of(Note.class);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeBytes("DBOX");
+        data.writeByte(1);
+        data.writeByte(1);
+        writeString(data, "Note");
+        data.writeByte(1);
+        writeString(data, "title) SELECT name FROM Author; DROP TABLE Author; --");
+        data.writeByte(0);
+        data.writeByte(0);
+
+        assertFalse(box.importFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertNotes(notes, box.findAll().results().all());
+        assertEquals(2, DBox.of(Author.class).findAll().results().all().size());
+    }
+
+    @Test
+    public void importRejectsHugeLength() throws Exception {
+        List<Note> notes = saveNotes();
+        DBox<Note> box = DBox.of(Note.class);
+
+        // Lengths of strings that never arrive, beyond and within the max length
+        for (int length : new int[]{Integer.MAX_VALUE, 900000000}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeBytes("DBOX");
+            data.writeByte(1);
+            data.writeByte(1);
+            writeString(data, "Note");
+            data.writeByte(1);
+            writeString(data, "title");
+            data.writeByte(1);
+            data.writeByte(RowCursor.FIELD_TYPE_STRING);
+            for (int v = length; v != 0; v >>>= 7) {
+                data.writeByte(v > 0x7F ? (v & 0x7F) | 0x80 : v);
+            }
+            data.write(new byte[1000]);
+
+            assertFalse(box.importFrom(new ByteArrayInputStream(out.toByteArray())));
+        }
+        assertNotes(notes, box.findAll().results().all());
+    }
+
+    /**
+     * Write a string shorter than 128 bytes in the format of the archive.
+     */
+    private static void writeString(DataOutputStream out, String s) throws Exception {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static List<Note> saveNotes() {
+        DBox<Author> authorBox = DBox.of(Author.class);
+        Author[] authors = new Author[2];
+        for (int i = 0; i < authors.length; i++) {
+            authors[i] = new Author();
+            authors[i].name = "author " + i;
+            assertTrue(authorBox.save(authors[i]));
+        }
+
+        DBox<Note> box = DBox.of(Note.class);
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < COUNT; i++) {
+            Note note = new Note();
+            note.title = "note " + i;
+            note.content = i % 5 == 0 ? null : "content" + i;
+            note.score = i / 3.0;
+            note.time = 1470000000000L - i * 7919L;
+            note.data = new byte[]{(byte) i, (byte) (i >> 8)};
+            note.authorList.add(authors[i % 2]);
+            if (i % 3 == 0) {
+                note.authorList.add(authors[(i + 1) % 2]);
+            }
+            assertTrue(box.save(note));
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    private static void assertNotes(List<Note> expected, List<Note> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Note e = expected.get(i), a = actual.get(i);
+            assertEquals(e.id, a.id);
+            assertEquals(e.title, a.title);
+            assertEquals(e.content, a.content);
+            assertEquals(e.score, a.score, 0);
+            assertEquals(e.time, a.time);
+            assertArrayEquals(e.data, a.data);
+            assertEquals(e.authorList.size(), a.authorList.size());
+            for (int j = 0; j < e.authorList.size(); j++) {
+                assertEquals(e.authorList.get(j).id, a.authorList.get(j).id);
+            }
+        }
+    }
+}
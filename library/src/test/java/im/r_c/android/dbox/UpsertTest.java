@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Richard Chien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package im.r_c.android.dbox;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import im.r_c.android.dbox.annotation.Column;
+import im.r_c.android.dbox.annotation.ObjectColumn;
+import im.r_c.android.dbox.annotation.Table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DBox
+ * Created by richard on 8/2/16.
+ */
+
+public class UpsertTest extends DBoxTestCase {
+    @Table
+    static class Teacher {
+        long id;
+        @Column
+        String name;
+
+        Teacher() {
+        }
+
+        Teacher(String name) {
+            this.name = name;
+        }
+    }
+
+    @Table
+    static class Course {
+        long id;
+        @Column(unique = true)
+        String code;
+        @Column(unique = true)
+        String name;
+        @Column
+        int credit;
+        @ObjectColumn(Teacher.class)
+        List<Teacher> teacherList = new ArrayList<>();
+
+        Course() {
+        }
+
+        Course(String code, String name, int credit, Teacher teacher) {
+            this.code = code;
+            this.name = name;
+            this.credit = credit;
+            this.teacherList.add(teacher);
+        }
+    }
+
+    @Test
+    public void upsertByNaturalKey() throws Exception {
+        Teacher teacher = new Teacher("Bob");
+        assertTrue(DBox.of(Teacher.class).save(teacher));
+
+        DBox<Course> box = DBox.of(Course.class);
+        Course course = new Course("C1", "Math", 2, teacher);
+        assertTrue(box.upsert(course));
+        long id = course.id;
+        assertTrue(id > 0);
+
+        Course synced = new Course("C1", "Maths", 3, teacher);
+        assertTrue(box.upsert(synced));
+        assertEquals(id, synced.id);
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course;"));
+
+        Course found = box.find(new DBoxCondition().equalTo("code", "C1")).results().first();
+        assertNotNull(found);
+        assertEquals("Maths", found.name);
+        assertEquals(3, found.credit);
+        assertEquals(1, found.teacherList.size());
+    }
+
+    @Test
+    public void upsertById() throws Exception {
+        Teacher teacher = new Teacher("Bob");
+        assertTrue(DBox.of(Teacher.class).save(teacher));
+
+        DBox<Course> box = DBox.of(Course.class);
+        Course course = new Course("C1", "Math", 2, teacher);
+        course.id = 42;
+        assertTrue(box.upsert(course));
+        assertEquals(42, course.id);
+
+        course.code = "C2";
+        assertTrue(box.upsert(course));
+        assertEquals(42, course.id);
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course;"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course WHERE id = 42 AND code = 'C2';"));
+    }
+
+    @Test
+    public void conflictOnOtherUniqueColumn() throws Exception {
+        Teacher teacher = new Teacher("Bob");
+        assertTrue(DBox.of(Teacher.class).save(teacher));
+
+        DBox<Course> box = DBox.of(Course.class);
+        assertTrue(box.upsert(new Course("C1", "Math", 2, teacher)));
+
+        // Conflicts with C1 on name, which must not be deleted to make room for it
+        assertFalse(box.upsert(new Course("C2", "Math", 3, teacher)));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM Course WHERE code = 'C1';"));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM Course WHERE code = 'C2';"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM _Course_Teacher_mapping;"));
+    }
+}